@@ -0,0 +1,10 @@
+package com.huawei.clustering;
+
+/**
+ * Tells long running work, such as a clustering pass, that its result is no longer needed.
+ * The work checks it now and then and stops early, since the single executor cannot start
+ * newer work before.
+ */
+interface Cancellation {
+    boolean isCancelled();
+}
@@ -2,30 +2,99 @@ package com.huawei.clustering;
 
 import androidx.annotation.NonNull;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
  * An object representing a cluster of items (markers) on the map.
+ * <p>
+ * Clusters are equal if they are the same tile of the same zoom level and layer, or, if they hold
+ * a single item, the same item of the same layer. Items are compared by identity, like the
+ * manager finds them, so an item whose own equality depends on its position keeps its marker
+ * when it moves. Items created by a {@link ClusterItemFactory} are the same if they have the
+ * same id. A cluster therefore stays equal to itself while its items change, so that its marker
+ * is updated rather than replaced.
  */
 public class Cluster<T extends ClusterItem> {
 
     private final double latitude;
     private final double longitude;
-    private final List<T> items;
+    private final int size;
+    private final ItemsLoader<T> itemsLoader;
+    // Loaded on first access. Threads racing for it may each load it, but they load the same items.
+    private volatile List<T> items;
+    // Set for a single item created by a ClusterItemFactory, which is new in every pass.
+    private final boolean hasItemId;
+    private final long itemId;
     private final double north;
     private final double west;
     private final double south;
     private final double east;
+    private final int layer;
+
+    /**
+     * Loads the items of a cluster that was built from aggregates, on first access.
+     */
+    interface ItemsLoader<T extends ClusterItem> {
+        @NonNull
+        List<T> loadItems(int layer, double north, double west, double south, double east);
+    }
 
     Cluster(double latitude, double longitude, @NonNull List<T> items,
-            double north, double west, double south, double east) {
+            double north, double west, double south, double east, int layer) {
         this.latitude = latitude;
         this.longitude = longitude;
+        this.size = items.size();
+        this.itemsLoader = null;
         this.items = items;
+        this.hasItemId = false;
+        this.itemId = 0;
+        this.north = north;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.layer = layer;
+    }
+
+    Cluster(double latitude, double longitude, @NonNull T item, long itemId,
+            double north, double west, double south, double east, int layer) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.size = 1;
+        this.itemsLoader = null;
+        this.items = Collections.singletonList(item);
+        this.hasItemId = true;
+        this.itemId = itemId;
         this.north = north;
         this.west = west;
         this.south = south;
         this.east = east;
+        this.layer = layer;
+    }
+
+    Cluster(double latitude, double longitude, int size, @NonNull ItemsLoader<T> itemsLoader,
+            double north, double west, double south, double east, int layer) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.size = size;
+        this.itemsLoader = itemsLoader;
+        this.hasItemId = false;
+        this.itemId = 0;
+        this.north = north;
+        this.west = west;
+        this.south = south;
+        this.east = east;
+        this.layer = layer;
+    }
+
+    // Returns this cluster if its items were given, or else a copy whose items are not loaded yet
+    // and are loaded with the given loader.
+    @NonNull
+    Cluster<T> withItemsLoader(@NonNull ItemsLoader<T> itemsLoader) {
+        if (this.itemsLoader == null) {
+            return this;
+        }
+        return new Cluster<>(latitude, longitude, size, itemsLoader, north, west, south, east, layer);
     }
 
     /**
@@ -46,6 +115,16 @@ public class Cluster<T extends ClusterItem> {
         return longitude;
     }
 
+    /**
+     * The number of items contained in the cluster. Prefer this over the size of
+     * {@link #getItems()}, which may have to look the items up first.
+     *
+     * @return the number of items contained in the cluster
+     */
+    public int getSize() {
+        return size;
+    }
+
     /**
      * The items contained in the cluster.
      *
@@ -53,31 +132,88 @@ public class Cluster<T extends ClusterItem> {
      */
     @NonNull
     public List<T> getItems() {
+        List<T> items = this.items;
+        if (items == null) {
+            items = itemsLoader.loadItems(layer, north, west, south, east);
+            this.items = items;
+        }
         return items;
     }
 
+    /**
+     * The layer of the items contained in the cluster, as chosen by the
+     * {@link ClusterManager.LayerSelector} of the manager.
+     *
+     * @return the layer of the cluster, 0 unless the manager has several layers
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    double north() {
+        return north;
+    }
+
+    double west() {
+        return west;
+    }
+
+    double south() {
+        return south;
+    }
+
+    double east() {
+        return east;
+    }
+
     boolean contains(double latitude, double longitude) {
         return longitude >= west && longitude <= east
                 && latitude <= north && latitude >= south;
     }
 
+    // Single items are identified by the item object, since several of them may share a tile.
+    private boolean isSingleItem() {
+        return size == 1 && items != null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Cluster cluster = (Cluster) o;
-        return Double.compare(cluster.latitude, latitude) == 0 &&
-                Double.compare(cluster.longitude, longitude) == 0;
+        if (cluster.layer != layer || cluster.isSingleItem() != isSingleItem()
+                || cluster.hasItemId != hasItemId) return false;
+        if (hasItemId) {
+            return cluster.itemId == itemId;
+        }
+        if (isSingleItem()) {
+            return items.get(0) == cluster.items.get(0);
+        }
+        return Double.compare(cluster.north, north) == 0 &&
+                Double.compare(cluster.west, west) == 0 &&
+                Double.compare(cluster.south, south) == 0 &&
+                Double.compare(cluster.east, east) == 0;
     }
 
     @Override
     public int hashCode() {
+        if (hasItemId) {
+            return 31 * (int) (itemId ^ (itemId >>> 32)) + layer;
+        }
+        if (isSingleItem()) {
+            return 31 * System.identityHashCode(items.get(0)) + layer;
+        }
         int result;
         long temp;
-        temp = Double.doubleToLongBits(latitude);
+        temp = Double.doubleToLongBits(north);
         result = (int) (temp ^ (temp >>> 32));
-        temp = Double.doubleToLongBits(longitude);
+        temp = Double.doubleToLongBits(west);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(south);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(east);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = 31 * result + layer;
         return result;
     }
 }
@@ -0,0 +1,158 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the first cluster of a list whose bounds contain a position, like scanning the list, but
+ * through a uniform grid over the bounds of the clusters. The clusters of a pass are tiles of the
+ * same size, so the cells are as large as the tile of the first cluster and every cluster is
+ * listed in the few cells its bounds overlap. Clusters spanning many more cells, e.g. kept from a
+ * pass at a lower zoom level, are scanned instead.
+ * <p>
+ * The clusters of every cell are stored in one array in list order, so that the first one
+ * containing the position is also the first one in the list.
+ */
+class ClusterGrid<T extends ClusterItem> {
+
+    private static final int NONE = -1;
+
+    // Clusters spanning more cells than this along either axis are scanned.
+    private static final int MAX_CELL_SPAN = 4;
+
+    // The grid has at most this many cells per cluster, so that scattered clusters do not make
+    // it large.
+    private static final int MAX_CELLS_PER_CLUSTER = 4;
+
+    private final List<Cluster<T>> clusters;
+
+    private double north;
+    private double west;
+    private double cellHeight;
+    private double cellWidth;
+    private int rows;
+    private int columns;
+
+    // The clusters of cell c are cellClusters[cellStarts[c]] to cellClusters[cellStarts[c + 1] - 1].
+    private int[] cellStarts;
+    private int[] cellClusters;
+
+    // Clusters spanning too many cells, in list order.
+    private int[] scannedClusters;
+    private int scannedClusterCount;
+
+    ClusterGrid(@NonNull List<Cluster<T>> clusters) {
+        this.clusters = clusters;
+        int count = clusters.size();
+        if (count == 0) {
+            return;
+        }
+
+        double south = Double.POSITIVE_INFINITY;
+        double east = Double.NEGATIVE_INFINITY;
+        north = Double.NEGATIVE_INFINITY;
+        west = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            Cluster<T> cluster = clusters.get(i);
+            north = Math.max(north, cluster.north());
+            west = Math.min(west, cluster.west());
+            south = Math.min(south, cluster.south());
+            east = Math.max(east, cluster.east());
+        }
+
+        Cluster<T> first = clusters.get(0);
+        cellHeight = Math.max(first.north() - first.south(), Double.MIN_NORMAL);
+        cellWidth = Math.max(first.east() - first.west(), Double.MIN_NORMAL);
+        // Coarser cells if the clusters are scattered over many more cells than there are clusters.
+        double cellCount = ((north - south) / cellHeight + 1) * ((east - west) / cellWidth + 1);
+        double maxCellCount = (double) MAX_CELLS_PER_CLUSTER * count;
+        if (cellCount > maxCellCount) {
+            double scale = Math.sqrt(cellCount / maxCellCount);
+            cellHeight *= scale;
+            cellWidth *= scale;
+        }
+        rows = (int) ((north - south) / cellHeight) + 1;
+        columns = (int) ((east - west) / cellWidth) + 1;
+
+        // Counted first, then filled, so that the clusters of every cell stay in list order.
+        cellStarts = new int[rows * columns + 1];
+        scannedClusters = new int[count];
+        for (int i = 0; i < count; i++) {
+            Cluster<T> cluster = clusters.get(i);
+            int firstRow = row(cluster.north());
+            int lastRow = row(cluster.south());
+            int firstColumn = column(cluster.west());
+            int lastColumn = column(cluster.east());
+            if (lastRow - firstRow >= MAX_CELL_SPAN || lastColumn - firstColumn >= MAX_CELL_SPAN) {
+                scannedClusters[scannedClusterCount++] = i;
+                continue;
+            }
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    cellStarts[row * columns + column + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < rows * columns; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        cellClusters = new int[cellStarts[rows * columns]];
+        int[] cellEnds = Arrays.copyOf(cellStarts, rows * columns);
+        for (int i = 0, scanned = 0; i < count; i++) {
+            if (scanned < scannedClusterCount && scannedClusters[scanned] == i) {
+                scanned++;
+                continue;
+            }
+            Cluster<T> cluster = clusters.get(i);
+            int lastRow = row(cluster.south());
+            int lastColumn = column(cluster.east());
+            for (int row = row(cluster.north()); row <= lastRow; row++) {
+                for (int column = column(cluster.west()); column <= lastColumn; column++) {
+                    cellClusters[cellEnds[row * columns + column]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first cluster whose bounds contain the position, or null if there is none.
+     */
+    @Nullable
+    Cluster<T> find(double latitude, double longitude) {
+        if (cellStarts == null) {
+            return null;
+        }
+        int found = NONE;
+        if (latitude <= north && longitude >= west) {
+            // Positions beyond the grid end up in its last row or column, where nothing contains them.
+            int cell = row(latitude) * columns + column(longitude);
+            for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+                if (clusters.get(cellClusters[i]).contains(latitude, longitude)) {
+                    found = cellClusters[i];
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < scannedClusterCount; i++) {
+            if (found != NONE && scannedClusters[i] > found) {
+                break;
+            }
+            if (clusters.get(scannedClusters[i]).contains(latitude, longitude)) {
+                found = scannedClusters[i];
+                break;
+            }
+        }
+        return found == NONE ? null : clusters.get(found);
+    }
+
+    private int row(double latitude) {
+        return Math.min((int) ((north - latitude) / cellHeight), rows - 1);
+    }
+
+    private int column(double longitude) {
+        return Math.min((int) ((longitude - west) / cellWidth), columns - 1);
+    }
+}
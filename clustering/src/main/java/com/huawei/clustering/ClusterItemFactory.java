@@ -0,0 +1,26 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Creates the cluster items of {@link PackedItems} once they are needed, i.e. when an item is
+ * rendered as a single marker or the items of a cluster are requested.
+ * <p>
+ * A new item is created every time, on the main thread or a background thread, so items should
+ * be cheap to create. They need not be equal by id: the clusters of single items compare the ids
+ * themselves.
+ *
+ * @param <T> the type of an item to be clustered
+ */
+public interface ClusterItemFactory<T extends ClusterItem> {
+    /**
+     * Creates the item with the given id and position.
+     *
+     * @param id        the id of the item in {@link PackedItems}
+     * @param latitude  the latitude of the item
+     * @param longitude the longitude of the item
+     * @return the item
+     */
+    @NonNull
+    T createItem(long id, double latitude, double longitude);
+}
@@ -1,20 +1,30 @@
 package com.huawei.clustering;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.os.AsyncTask;
+import android.content.res.Configuration;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.huawei.hms.maps.HuaweiMap;
 import com.huawei.hms.maps.model.LatLngBounds;
+import com.huawei.hms.maps.model.Marker;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Groups multiple items on a map into clusters based on the current zoom level.
@@ -22,27 +32,196 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  * @param <T> the type of an item to be clustered
  */
-public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCameraIdleListener {
+public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCameraIdleListener,
+        HuaweiMap.OnCameraMoveListener {
 
-    private static final int QUAD_TREE_BUCKET_CAPACITY = 4;
+    private static final int DEFAULT_QUAD_TREE_BUCKET_CAPACITY = 4;
+    // Quads at this depth are about 1 m high, finer than any zoom level needs.
+    private static final int DEFAULT_QUAD_TREE_MAX_DEPTH = 24;
     private static final int DEFAULT_MIN_CLUSTER_SIZE = 1;
+    private static final int DEFAULT_PREFETCH_PADDING = 1;
+    // Parallel passes split their work into this many tasks per thread, so that threads which
+    // finish early can take over the work of others.
+    private static final int TASKS_PER_THREAD = 4;
+
+    // Clustering while the camera moves stops after this many passes in a row over the budget.
+    private static final int MAX_OVER_BUDGET_PASSES = 3;
 
     private final HuaweiMap mHuaweiMap;
 
-    private final QuadTree<T> mQuadTree;
+    private final Context mApplicationContext;
+
+    // One renderer per layer.
+    private final List<ClusterRenderer<T>> mRenderers = new ArrayList<>();
+
+    private final int mLayerCount;
+
+    // Null if there is only one layer.
+    private final LayerSelector<T> mLayerSelector;
+
+    private final ClusterScheduler mScheduler;
+
+    // Runs the background work of this manager one task at a time.
+    private final Executor mExecutor;
+
+    // Changes of the items, queued by any thread and applied in order on the executor.
+    private final Queue<ItemsChange<T>> mItemsChanges = new ConcurrentLinkedQueue<>();
+
+    // Appends applied on the executor whose listeners are yet to be called on the main thread.
+    private final Queue<ItemsChange<T>> mAppliedAppends = new ConcurrentLinkedQueue<>();
 
-    private final ClusterRenderer<T> mRenderer;
+    // Only replaced on the executor, and never changed once published.
+    private volatile QuadTree<T> mQuadTree;
 
-    private final Executor mExecutor = Executors.newSingleThreadExecutor();
+    // Only used on the executor.
+    private final List<TileBinner> mTileBinners = new ArrayList<>();
+    private final SingleClusterCollector mSingleClusters = new SingleClusterCollector();
+    private final TileClusterCache<T> mTileClusterCache = new TileClusterCache<>();
+    private int mQuadTreeBucketCapacity = DEFAULT_QUAD_TREE_BUCKET_CAPACITY;
+    private int mQuadTreeMaxDepth = DEFAULT_QUAD_TREE_MAX_DEPTH;
 
-    private final ReentrantReadWriteLock quadTreeLock = new ReentrantReadWriteLock();
+    // The filter of the current clustering pass, and the loader of the items of its clusters,
+    // bound to the tree the pass clusters.
+    private long mClusterFilter = QuadTree.NO_FILTER;
+    private Cluster.ItemsLoader<T> mItemsLoader;
+    private QuadTree<T> mItemsLoaderQuadTree;
 
-    private AsyncTask mQuadTreeTask;
+    private final AtomicBoolean mQuadTreeTaskQueued = new AtomicBoolean();
 
-    private AsyncTask mClusterTask;
+    // Only used on the main thread.
+    private boolean mClusterTaskRunning;
+
+    // The minimum time between two passes while the camera moves, or 0 if they are turned off,
+    // and the time a pass may take then. Only used on the main thread.
+    private long mCameraMoveIntervalNanos;
+    private long mCameraMoveBudgetNanos;
+    private long mLastCameraMoveNanos;
+    private int mOverBudgetPasses;
+
+    private volatile boolean mReleased;
+
+    // Incremented by every call of cluster(), so that a pass knows when it has been superseded.
+    private volatile int mClusterGeneration;
+
+    // The latest camera position to cluster for, taken by the next clustering pass.
+    private final AtomicReference<ClusterRequest> mPendingClusterRequest = new AtomicReference<>();
 
     private int mMinClusterSize = DEFAULT_MIN_CLUSTER_SIZE;
 
+    private volatile ClusteringStrategy mClusteringStrategy = ClusteringStrategy.TILE_GRID;
+
+    // Null if items have no attributes.
+    private volatile AttributeSelector<T> mAttributeSelector;
+
+    private volatile long mFilter = QuadTree.NO_FILTER;
+
+    private volatile int mParallelism = 1;
+
+    private volatile long mTileCacheMaxBytes = TileClusterCache.DEFAULT_MAX_BYTES;
+    private volatile int mPrefetchPadding = DEFAULT_PREFETCH_PADDING;
+
+    // Taken from the tile cache after every clustering pass.
+    private volatile TileCacheStats mTileCacheStats = mTileClusterCache.getStats();
+
+    // The counts of all renderers when the last pass started rendering, taken on the main thread.
+    private RenderStats.Counts mLastPassStartCounts = new RenderStats.Counts();
+    private int mLastPassKeptCount;
+
+    // Registered while markers are pooled, to trim the pools when memory runs low.
+    private ComponentCallbacks2 mTrimMemoryCallbacks;
+
+    // Only built and replaced on the executor.
+    private volatile ClusterPyramid mClusterPyramid;
+
+    private QuadTree<T> mClusterPyramidQuadTree;
+
+    // The last index built for items with an index file, saved after the next clustering pass.
+    // Only used on the executor.
+    private ItemsChange<T> mUnsavedIndex;
+    private QuadTree<T> mUnsavedIndexQuadTree;
+
+    private final Runnable mSaveIndexRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveIndex();
+        }
+    };
+
+    // The camera position of a call of cluster(), cancelled by any later call.
+    private final class ClusterRequest implements Cancellation {
+
+        final LatLngBounds latLngBounds;
+        final float zoomLevel;
+        final int generation;
+        final boolean cameraMoving;
+
+        ClusterRequest(@NonNull LatLngBounds latLngBounds, float zoomLevel, int generation,
+                       boolean cameraMoving) {
+            this.latLngBounds = latLngBounds;
+            this.zoomLevel = zoomLevel;
+            this.generation = generation;
+            this.cameraMoving = cameraMoving;
+        }
+
+        // Only passes while the camera moves snap the grid, so that the passes of a pinch zoom
+        // share tiles while the pass once the camera stops clusters at the exact zoom level.
+        @NonNull
+        TileGrid tileGrid() {
+            return TileGrid.forZoom(zoomLevel, cameraMoving);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return generation != mClusterGeneration;
+        }
+    }
+
+    // A change of the items, applied to a copy of the published quad tree.
+    private static final class ItemsChange<T> {
+
+        static final int ADD = 0;
+        static final int REMOVE = 1;
+        static final int UPDATE = 2;
+        static final int REPLACE = 3;
+        static final int CLEAR = 4;
+        static final int LIMITS = 5;
+        static final int ATTRIBUTES = 6;
+
+        final int kind;
+        final List<T> items;
+        final int bucketCapacity;
+        final int maxDepth;
+        final OnItemsAppendedListener onItemsAppendedListener;
+        final File indexFile;
+        final long dataVersion;
+        final PackedItems packedItems;
+        final QuadTree.PointFactory<T> pointFactory;
+
+        ItemsChange(int kind, @NonNull List<T> items) {
+            this(kind, items, 0, 0, null);
+        }
+
+        ItemsChange(int kind, @NonNull List<T> items, int bucketCapacity, int maxDepth,
+                    @Nullable OnItemsAppendedListener onItemsAppendedListener) {
+            this(kind, items, bucketCapacity, maxDepth, onItemsAppendedListener, null, 0, null, null);
+        }
+
+        ItemsChange(int kind, @NonNull List<T> items, int bucketCapacity, int maxDepth,
+                    @Nullable OnItemsAppendedListener onItemsAppendedListener,
+                    @Nullable File indexFile, long dataVersion, @Nullable PackedItems packedItems,
+                    @Nullable QuadTree.PointFactory<T> pointFactory) {
+            this.kind = kind;
+            this.items = items;
+            this.bucketCapacity = bucketCapacity;
+            this.maxDepth = maxDepth;
+            this.onItemsAppendedListener = onItemsAppendedListener;
+            this.indexFile = indexFile;
+            this.dataVersion = dataVersion;
+            this.packedItems = packedItems;
+            this.pointFactory = pointFactory;
+        }
+    }
+
     /**
      * Defines signatures for methods that are called when a cluster or a cluster item is clicked.
      *
@@ -70,6 +249,53 @@ public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCamera
         boolean onClusterItemClick(@NonNull T clusterItem);
     }
 
+    /**
+     * Defines the signature of a method that is called when items passed to
+     * {@link ClusterManager#appendItems(Collection, OnItemsAppendedListener)} have been added.
+     */
+    public interface OnItemsAppendedListener {
+        /**
+         * Called on the main thread once the items have been added, after clustering
+         * with the new items has been requested.
+         *
+         * @param itemCount the number of items that were appended
+         */
+        void onItemsAppended(int itemCount);
+    }
+
+    /**
+     * Defines the signature of a method that puts an item into one of the layers of a
+     * {@link ClusterManager}.
+     *
+     * @param <T> the type of an item managed by {@link ClusterManager}.
+     */
+    public interface LayerSelector<T extends ClusterItem> {
+        /**
+         * Called on a background thread whenever the item is added or updated.
+         *
+         * @param clusterItem the item to put into a layer
+         * @return the layer of the item, from 0 to the number of layers minus one
+         */
+        int getLayer(@NonNull T clusterItem);
+    }
+
+    /**
+     * Defines the signature of a method that gives the attributes of an item, which
+     * {@link ClusterManager#setFilter(int)} filters the items by.
+     *
+     * @param <T> the type of an item managed by {@link ClusterManager}.
+     */
+    public interface AttributeSelector<T extends ClusterItem> {
+        /**
+         * Called on a background thread whenever the item is added or updated.
+         *
+         * @param clusterItem the item to get the attributes of
+         * @return the attributes of the item as a bit mask, e.g. a bit per kind of place, or 0 if
+         * it has none
+         */
+        int getAttributes(@NonNull T clusterItem);
+    }
+
     /**
      * Creates a new cluster manager using the default icon generator.
      * To customize marker icons, set a custom icon generator using
@@ -78,30 +304,144 @@ public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCamera
      * @param huawei the map instance where markers will be rendered
      */
     public ClusterManager(@NonNull Context context, @NonNull HuaweiMap huawei) {
+        this(context, huawei, ClusterScheduler.getDefault());
+    }
+
+    /**
+     * Creates a new cluster manager using the default icon generator, which runs its background
+     * work on the given scheduler.
+     *
+     * @param huawei    the map instance where markers will be rendered
+     * @param scheduler the scheduler running indexing and clustering, e.g. one shared by the
+     *                  managers of several maps
+     */
+    public ClusterManager(@NonNull Context context, @NonNull HuaweiMap huawei,
+                          @NonNull ClusterScheduler scheduler) {
+        this(context, huawei, scheduler, 1, new LayerSelector<T>() {
+            @Override
+            public int getLayer(@NonNull T clusterItem) {
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Creates a new cluster manager whose items are split into layers, e.g. kinds of places,
+     * which are clustered and rendered separately: a cluster only contains items of one layer,
+     * and every layer has its own icon generator and callbacks. All layers share one spatial
+     * index, which keeps the number of items of every layer for every region of at least 64
+     * items, so that one clustering pass computes the clusters of all layers. At the default
+     * limits of the index that costs about 4 bytes per item, plus 0.2 bytes per item for every
+     * layer after the first. Unlike a manager per layer, which would index and cluster on its
+     * own, this also dispatches the clicks on the markers of all layers, since a map only calls
+     * the last marker click listener set.
+     *
+     * @param huawei        the map instance where markers will be rendered
+     * @param scheduler     the scheduler running indexing and clustering
+     * @param layerCount    the number of layers, at most 128
+     * @param layerSelector puts every item into a layer
+     */
+    public ClusterManager(@NonNull Context context, @NonNull HuaweiMap huawei,
+                          @NonNull ClusterScheduler scheduler, int layerCount,
+                          @NonNull LayerSelector<T> layerSelector) {
         Preconditions.checkNotNull(context);
+        Preconditions.checkArgument(layerCount > 0 && layerCount <= QuadTree.MAX_LAYER_COUNT);
+        Preconditions.checkNotNull(layerSelector);
+        mApplicationContext = context.getApplicationContext();
         mHuaweiMap = Preconditions.checkNotNull(huawei);
-        mRenderer = new ClusterRenderer<>(context, huawei);
-        mQuadTree = new QuadTree<>(QUAD_TREE_BUCKET_CAPACITY);
+        mScheduler = Preconditions.checkNotNull(scheduler);
+        mExecutor = new SerialExecutor(scheduler);
+        mLayerCount = layerCount;
+        // With a single layer, there is nothing to select.
+        mLayerSelector = layerCount > 1 ? layerSelector : null;
+        for (int layer = 0; layer < layerCount; layer++) {
+            mRenderers.add(new ClusterRenderer<T>(context, huawei));
+        }
+        mHuaweiMap.setOnMarkerClickListener(new HuaweiMap.OnMarkerClickListener() {
+            @Override
+            public boolean onMarkerClick(Marker marker) {
+                Object markerTag = marker.getTag();
+                if (markerTag instanceof Cluster) {
+                    int layer = ((Cluster<?>) markerTag).getLayer();
+                    return layer < mRenderers.size() && mRenderers.get(layer).onMarkerClick(marker);
+                }
+                return false;
+            }
+        });
+        mQuadTree = new QuadTree<>(mQuadTreeBucketCapacity, mQuadTreeMaxDepth, mLayerCount);
     }
 
     /**
-     * Sets a custom icon generator thus replacing the default one.
+     * Sets a custom icon generator thus replacing the default one, for all layers. Markers on
+     * the map get their new icons with the next clustering pass.
      *
      * @param iconGenerator the custom icon generator that's used for generating marker icons
      */
     public void setIconGenerator(@NonNull IconGenerator<T> iconGenerator) {
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            setIconGenerator(layer, iconGenerator);
+        }
+    }
+
+    /**
+     * Sets a custom icon generator for the markers of one layer, thus replacing the default one.
+     * Markers on the map get their new icons with the next clustering pass.
+     *
+     * @param layer         the layer whose markers the icon generator is used for
+     * @param iconGenerator the custom icon generator that's used for generating marker icons
+     */
+    public void setIconGenerator(int layer, @NonNull IconGenerator<T> iconGenerator) {
+        Preconditions.checkArgument(layer >= 0 && layer < mLayerCount);
         Preconditions.checkNotNull(iconGenerator);
-        mRenderer.setIconGenerator(iconGenerator);
+        mRenderers.get(layer).setIconGenerator(iconGenerator);
     }
 
     /**
-     * Sets a callback that's invoked when a cluster or a cluster item is clicked.
+     * Sets whether marker icons are generated on a background thread while a pass prepares its
+     * marker changes, rather than on the main thread while the markers are added or updated. The
+     * icon generators must then be thread-safe, see {@link IconGenerator}; the default one is.
+     * Turned off by default. Takes effect on the next call of {@link #cluster()}.
+     *
+     * @param enabled whether to generate icons on a background thread
+     */
+    public void setBackgroundIconGeneration(boolean enabled) {
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            mRenderers.get(layer).setBackgroundIconGeneration(enabled);
+        }
+    }
+
+    /**
+     * Sets a callback that's invoked when a cluster or a cluster item is clicked, for all layers.
      *
      * @param callbacks the callback that's invoked when a cluster or an individual item is clicked.
      *                  To unset the callback, use <code>null</code>.
      */
     public void setCallbacks(@Nullable Callbacks<T> callbacks) {
-        mRenderer.setCallbacks(callbacks);
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            setCallbacks(layer, callbacks);
+        }
+    }
+
+    /**
+     * Sets a callback that's invoked when a cluster or a cluster item of one layer is clicked.
+     *
+     * @param layer     the layer whose clicks the callback is invoked for
+     * @param callbacks the callback that's invoked when a cluster or an individual item is clicked.
+     *                  To unset the callback, use <code>null</code>.
+     */
+    public void setCallbacks(int layer, @Nullable Callbacks<T> callbacks) {
+        Preconditions.checkArgument(layer >= 0 && layer < mLayerCount);
+        mRenderers.get(layer).setCallbacks(callbacks);
+    }
+
+    /**
+     * The number of layers the items are split into, 1 unless the manager was created with a
+     * {@link LayerSelector}.
+     *
+     * @return the number of layers
+     */
+    public int getLayerCount() {
+        return mLayerCount;
     }
 
     /**
@@ -111,26 +451,156 @@ public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCamera
      */
     public void addItems(@NonNull List<T> clusterItems) {
         Preconditions.checkNotNull(clusterItems);
-        buildQuadTree(clusterItems);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.REPLACE, clusterItems));
+        buildQuadTree();
     }
 
-    public void addItem(@NonNull final T clusterItem) {
-        quadTreeWriteLock(new Runnable() {
+    /**
+     * Sets items to be clustered thus replacing the old ones, reusing the spatial index saved in
+     * the given file if it was saved for the same items. Otherwise the index is built as usual and
+     * saved to the file after the map has been clustered, so that the next launch can cluster
+     * right away instead of indexing the items again.
+     * <p>
+     * The file does not contain the items themselves but their positions in the list, so the
+     * list must hold the same items in the same order, and in the same layers, whenever the
+     * data version is the same, and must not be modified afterwards. An index saved for another
+     * data version, number of items or {@link #setQuadTreeLimits(int, int) limits}, or one torn
+     * by a crash while it was saved, is ignored. The aggregates of
+     * {@link ClusteringStrategy#PYRAMID} are only saved with the index if that strategy is set.
+     * If the index cannot be saved, the items are still clustered.
+     *
+     * @param clusterItems the items to be clustered
+     * @param indexFile    the file the index is read from and saved to
+     * @param dataVersion  identifies the items, e.g. the version or a hash of the data set
+     */
+    public void addItems(@NonNull List<T> clusterItems, @NonNull File indexFile, long dataVersion) {
+        Preconditions.checkNotNull(clusterItems);
+        Preconditions.checkNotNull(indexFile);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.REPLACE, clusterItems, 0, 0, null,
+                indexFile, dataVersion, null, null));
+        buildQuadTree();
+    }
+
+    /**
+     * Sets items to be clustered thus replacing the old ones, given by id and position only.
+     * The positions are indexed without creating any items. Items are created by the given
+     * factory whenever they are needed, i.e. for single markers and for
+     * {@link Cluster#getItems()}, so only a small fraction of them ever exists at a time.
+     * <p>
+     * Items created by the factory cannot be removed or updated individually. Items added
+     * later with {@link #addItem(ClusterItem)} or {@link #appendItems(Collection)} can.
+     * With several layers, the items created by the factory are all in the first layer.
+     * They have no attributes, so they are hidden while {@link #setFilter(int)} filters by any.
+     * The ids identify single markers from one clustering pass to the next, so they should be
+     * unique.
+     *
+     * @param packedItems the ids and positions of the items to be clustered, which are moved into
+     *                    the index, leaving packedItems empty
+     * @param itemFactory the factory creating an item from its id and position
+     */
+    public void addItems(@NonNull PackedItems packedItems, @NonNull final ClusterItemFactory<T> itemFactory) {
+        Preconditions.checkNotNull(packedItems);
+        Preconditions.checkNotNull(itemFactory);
+        QuadTree.PointFactory<T> pointFactory = new QuadTree.PointFactory<T>() {
+            @NonNull
             @Override
-            public void run() {
-                Preconditions.checkNotNull(clusterItem);
-                mQuadTree.insert(clusterItem);
+            public T createPoint(long id, double latitude, double longitude) {
+                return itemFactory.createItem(id, latitude, longitude);
             }
-        });
+        };
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.REPLACE, Collections.<T>emptyList(), 0, 0, null,
+                null, 0, packedItems.take(), pointFactory));
+        buildQuadTree();
+    }
+
+    /**
+     * Adds items to be clustered to the existing ones. The items are added on a background thread,
+     * and the map is clustered again once all items appended so far have been added.
+     *
+     * @param clusterItems the items to be clustered
+     */
+    public void appendItems(@NonNull Collection<T> clusterItems) {
+        appendItems(clusterItems, null);
+    }
+
+    /**
+     * Adds items to be clustered to the existing ones. The items are added on a background thread,
+     * and the map is clustered again once all items appended so far have been added. Appending
+     * several batches in a row clusters the map only once.
+     *
+     * @param clusterItems the items to be clustered
+     * @param listener     the listener that's called once the items have been added, or <code>null</code>
+     */
+    public void appendItems(@NonNull Collection<T> clusterItems, @Nullable OnItemsAppendedListener listener) {
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.ADD, copyItems(clusterItems), 0, 0, listener));
+        buildQuadTree();
+    }
+
+    /**
+     * Adds an item to be clustered. Like all changes of the items, this never waits for
+     * clustering in progress and takes effect with the next call of {@link #cluster()}.
+     * <p>
+     * The changes queued until then are applied to one copy of the whole index, which other
+     * threads keep reading meanwhile. A pass with changes therefore takes time proportional to
+     * the number of items and briefly holds the index twice, however few items changed.
+     *
+     * @param clusterItem the item to be clustered
+     */
+    public void addItem(@NonNull T clusterItem) {
+        Preconditions.checkNotNull(clusterItem);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.ADD, Collections.singletonList(clusterItem)));
+    }
+
+    /**
+     * Removes an item that was added before. Call {@link #cluster()} to update the map.
+     * Items that are not found are ignored.
+     *
+     * @param clusterItem the item to be removed
+     */
+    public void removeItem(@NonNull T clusterItem) {
+        Preconditions.checkNotNull(clusterItem);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.REMOVE, Collections.singletonList(clusterItem)));
+    }
+
+    /**
+     * Removes items that were added before. Call {@link #cluster()} to update the map.
+     * Items that are not found are ignored.
+     *
+     * @param clusterItems the items to be removed
+     */
+    public void removeItems(@NonNull Collection<T> clusterItems) {
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.REMOVE, copyItems(clusterItems)));
+    }
+
+    /**
+     * Moves an item that was added before to its current position, after the position returned
+     * by the item has changed. Call {@link #cluster()} to update the map.
+     * Items that are not found are ignored.
+     *
+     * @param clusterItem the item that has moved
+     */
+    public void updateItem(@NonNull T clusterItem) {
+        Preconditions.checkNotNull(clusterItem);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.UPDATE, Collections.singletonList(clusterItem)));
+    }
+
+    /**
+     * Moves items that were added before to their current positions, after the positions returned
+     * by the items have changed. Call {@link #cluster()} to update the map.
+     * Items that are not found are ignored.
+     * <p>
+     * Every pass with changes copies the whole index, see {@link #addItem(ClusterItem)}. For
+     * items that move all the time, e.g. vehicles, queue the moves of an update with one call and
+     * call {@link #cluster()} once per update, rather than more often.
+     *
+     * @param clusterItems the items that have moved
+     */
+    public void updateItems(@NonNull Collection<T> clusterItems) {
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.UPDATE, copyItems(clusterItems)));
     }
 
     public void clearItems() {
-        quadTreeWriteLock(new Runnable() {
-            @Override
-            public void run() {
-                mQuadTree.clear();
-            }
-        });
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.CLEAR, Collections.<T>emptyList()));
     }
 
     /**
@@ -142,33 +612,349 @@ public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCamera
         mMinClusterSize = minClusterSize;
     }
 
+    /**
+     * Sets how the spatial index of the items is subdivided. A region of the map is split into
+     * four once it holds more than the bucket capacity, unless it is already split the maximum
+     * depth number of times. Regions at the maximum depth hold any number of items, which keeps
+     * the index small when many items share the same position. Rebuilds the index on the next
+     * call of {@link #cluster()} if it already contains items. The defaults are a bucket
+     * capacity of {@value #DEFAULT_QUAD_TREE_BUCKET_CAPACITY} and a maximum depth of
+     * {@value #DEFAULT_QUAD_TREE_MAX_DEPTH}.
+     *
+     * @param bucketCapacity the number of items a region holds before it is split
+     * @param maxDepth       the number of times the world may be split, at most 30
+     */
+    public void setQuadTreeLimits(int bucketCapacity, int maxDepth) {
+        Preconditions.checkArgument(bucketCapacity > 0);
+        Preconditions.checkArgument(maxDepth >= 0 && maxDepth <= QuadTree.KEY_DEPTH);
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.LIMITS, Collections.<T>emptyList(),
+                bucketCapacity, maxDepth, null));
+    }
+
+    /**
+     * Sets the strategy used to compute clusters. The default is {@link ClusteringStrategy#TILE_GRID}.
+     * Takes effect on the next call of {@link #cluster()}. With several layers,
+     * {@link ClusteringStrategy#PYRAMID} works like {@link ClusteringStrategy#TILE_GRID}, since
+     * the precomputed tiles do not tell layers apart.
+     *
+     * @param clusteringStrategy the strategy used to compute clusters
+     */
+    public void setClusteringStrategy(@NonNull ClusteringStrategy clusteringStrategy) {
+        Preconditions.checkNotNull(clusteringStrategy);
+        mClusteringStrategy = clusteringStrategy == ClusteringStrategy.PYRAMID && mLayerCount > 1
+                ? ClusteringStrategy.TILE_GRID : clusteringStrategy;
+    }
+
+    /**
+     * Sets what attributes the items have, which are kept in the spatial index with the items so
+     * that {@link #setFilter(int)} can filter by them without rebuilding it. The attributes of
+     * the items added so far are updated on the next call of {@link #cluster()}, those of items
+     * added or updated later when they are. Items created by a {@link ClusterItemFactory} have
+     * no attributes, since that would create them all.
+     *
+     * @param attributeSelector gives the attributes of every item, or null if items have none
+     */
+    public void setAttributeSelector(@Nullable AttributeSelector<T> attributeSelector) {
+        mAttributeSelector = attributeSelector;
+        mItemsChanges.add(new ItemsChange<>(ItemsChange.ATTRIBUTES, Collections.<T>emptyList()));
+    }
+
+    /**
+     * Shows only the items with any of the given attributes, see
+     * {@link #setAttributeSelector(AttributeSelector)}, and clusters the map again right away.
+     * The spatial index keeps which attributes occur in every region, so that regions without
+     * such items are skipped and the index is not rebuilt. Items without attributes are hidden.
+     * While a filter is set, {@link ClusteringStrategy#PYRAMID} works like
+     * {@link ClusteringStrategy#TILE_GRID}, since the precomputed tiles are not filtered. Must be
+     * called on the main thread.
+     *
+     * @param attributes the attributes to show the items of, as a bit mask
+     */
+    public void setFilter(int attributes) {
+        mFilter = QuadTree.attributeFilter(attributes);
+        cluster();
+    }
+
+    /**
+     * Shows all items again after {@link #setFilter(int)} and clusters the map again right away.
+     * Must be called on the main thread.
+     */
+    public void clearFilter() {
+        mFilter = QuadTree.NO_FILTER;
+        cluster();
+    }
+
+    /**
+     * Sets the number of threads a clustering pass or a rebuild of the spatial index uses. Above
+     * one, the visible tiles of {@link ClusteringStrategy#TILE_GRID} and
+     * {@link ClusteringStrategy#TILE_BINNING} are split into tasks for that many threads, and
+     * they and the subtrees of an index built from a whole set of items run on
+     * {@link ClusterScheduler#getForkJoinPool()}, which managers sharing the scheduler share. The
+     * pool may therefore run fewer of them at once. The clusters and the index are the same, and
+     * the clusters in the same order, as with a single thread, but a {@link ClusterItemFactory}
+     * may then be called from several threads at once. The default is 1. Takes effect on the
+     * next call of {@link #cluster()}.
+     *
+     * @param parallelism the number of threads, e.g. the number of available processors
+     */
+    public void setParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0);
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Sets the approximate heap size up to which {@link ClusteringStrategy#TILE_GRID} keeps the
+     * clusters of tiles it computed, over all zoom levels, so that later passes only compute the
+     * tiles they have not seen before or whose items changed since. The least recently used tiles
+     * are dropped first. The default is 4 MB; 0 turns the cache off. Takes effect on the next
+     * call of {@link #cluster()}.
+     *
+     * @param maxBytes the approximate heap size of the cache in bytes
+     */
+    public void setTileCacheSize(long maxBytes) {
+        Preconditions.checkArgument(maxBytes >= 0);
+        mTileCacheMaxBytes = maxBytes;
+    }
+
+    /**
+     * Sets the number of tiles around the visible region that {@link ClusteringStrategy#TILE_GRID}
+     * computes in advance after every pass, once the clusters of the visible region are
+     * delivered, so that a pass after a small pan finds them in the tile cache. The default is
+     * {@value #DEFAULT_PREFETCH_PADDING}; 0 computes only the visible tiles, as does turning the
+     * tile cache off with {@link #setTileCacheSize(long)}.
+     *
+     * @param padding the width of the ring of tiles computed in advance
+     */
+    public void setPrefetchPadding(int padding) {
+        Preconditions.checkArgument(padding >= 0);
+        mPrefetchPadding = padding;
+    }
+
+    /**
+     * Turns on clustering while the camera moves, for which the manager must also be set as
+     * {@link HuaweiMap.OnCameraMoveListener}. Camera moves then start a pass at most the given
+     * number of times per second, and not while one is running, so that the clusters follow a
+     * pan or zoom instead of changing only once the camera stops. With
+     * {@link ClusteringStrategy#TILE_GRID}, such passes mostly take the visible tiles from the
+     * tile cache. If clustering and rendering take longer than the given budget for several
+     * passes in a row, the manager goes back to clustering only when the camera stops, see
+     * {@link #isCameraMoveClusteringEnabled()}. Turned off by default. Must be called on the main
+     * thread.
+     *
+     * @param maxUpdatesPerSecond the maximum number of passes per second, or 0 to turn clustering
+     *                            while the camera moves off
+     * @param timeBudgetMillis    the time a pass may take, including rendering, e.g. a few frames;
+     *                            ignored if clustering while the camera moves is turned off
+     */
+    public void setCameraMoveClustering(int maxUpdatesPerSecond, long timeBudgetMillis) {
+        Preconditions.checkArgument(maxUpdatesPerSecond >= 0);
+        Preconditions.checkArgument(maxUpdatesPerSecond == 0 || timeBudgetMillis > 0);
+        mCameraMoveIntervalNanos = maxUpdatesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / maxUpdatesPerSecond;
+        mCameraMoveBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+        mOverBudgetPasses = 0;
+    }
+
+    /**
+     * Spreads the marker changes of a pass over frames, making them for at most the given time
+     * per frame, so that rendering thousands of clusters, e.g. when zooming out over dense data,
+     * does not freeze the map. The changes nearest to the center of the visible region are made
+     * first, and a newer pass cancels the changes an older one has left. Turned off by default.
+     * Must be called on the main thread.
+     *
+     * @param budgetMillis the time per frame, or 0 to make all changes of a pass at once
+     */
+    public void setRenderFrameBudget(long budgetMillis) {
+        Preconditions.checkArgument(budgetMillis >= 0);
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            mRenderers.get(layer).setFrameBudget(TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+        }
+    }
+
+    /**
+     * Keeps up to the given number of hidden markers per layer for reuse, instead of removing
+     * markers from the map and adding new ones, which is costly while zooming. Pooled markers
+     * are moved and given new icons when they are shown again. The pools are trimmed when the
+     * system runs low on memory. Turned off by default. Must be called on the main thread.
+     *
+     * @param maxSize the maximum number of hidden markers per layer, or 0 to turn pooling off
+     */
+    public void setMarkerPoolSize(int maxSize) {
+        Preconditions.checkArgument(maxSize >= 0);
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            mRenderers.get(layer).setMaxMarkerPoolSize(maxSize);
+        }
+        if (maxSize > 0 && mTrimMemoryCallbacks == null && !mReleased) {
+            mTrimMemoryCallbacks = new TrimMemoryCallbacks();
+            mApplicationContext.registerComponentCallbacks(mTrimMemoryCallbacks);
+        } else if (maxSize == 0 && mTrimMemoryCallbacks != null) {
+            mApplicationContext.unregisterComponentCallbacks(mTrimMemoryCallbacks);
+            mTrimMemoryCallbacks = null;
+        }
+    }
+
+    /**
+     * Returns whether camera moves start clustering passes, i.e. whether it was turned on with
+     * {@link #setCameraMoveClustering(int, long)} and has not been turned off since because
+     * passes took longer than their budget.
+     *
+     * @return true if camera moves start clustering passes
+     */
+    public boolean isCameraMoveClusteringEnabled() {
+        return mCameraMoveIntervalNanos > 0;
+    }
+
+    /**
+     * Returns how often the tile cache of {@link ClusteringStrategy#TILE_GRID} was hit and how
+     * much time it saved, as of the last clustering pass.
+     *
+     * @return the statistics of the tile cache
+     */
+    @NonNull
+    public TileCacheStats getTileCacheStats() {
+        return mTileCacheStats;
+    }
+
+    /**
+     * Returns how many markers the clustering passes added, updated in place and removed, and in
+     * how many frames, including the frames of the last pass so far. Must be called on the main
+     * thread.
+     *
+     * @return the statistics of the markers
+     */
+    @NonNull
+    public RenderStats getRenderStats() {
+        RenderStats.Counts total = new RenderStats.Counts();
+        int pendingCount = 0;
+        int pooledMarkerCount = 0;
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            ClusterRenderer<T> renderer = mRenderers.get(layer);
+            total.add(renderer.getCounts());
+            pendingCount += renderer.getPendingOperationCount();
+            pooledMarkerCount += renderer.getMarkerPoolSize();
+        }
+        RenderStats.Counts lastPass = new RenderStats.Counts();
+        lastPass.add(total);
+        lastPass.subtract(mLastPassStartCounts);
+        return new RenderStats(total, lastPass, mLastPassKeptCount, pendingCount, pooledMarkerCount);
+    }
+
+    /**
+     * Returns the size and build time of every zoom level precomputed by
+     * {@link ClusteringStrategy#PYRAMID}, or an empty list if nothing has been precomputed yet.
+     *
+     * @return the statistics of every precomputed zoom level
+     */
+    @NonNull
+    public List<PyramidLevelStats> getPyramidLevelStats() {
+        ClusterPyramid clusterPyramid = mClusterPyramid;
+        if (clusterPyramid == null) {
+            return Collections.emptyList();
+        }
+        return clusterPyramid.getLevelStats();
+    }
+
     @Override
     public void onCameraIdle() {
         cluster();
     }
 
-    private void buildQuadTree(@NonNull List<T> clusterItems) {
-        if (mQuadTreeTask != null) {
-            mQuadTreeTask.cancel(true);
+    @Override
+    public void onCameraMove() {
+        if (mCameraMoveIntervalNanos == 0 || mReleased) {
+            return;
         }
+        long now = System.nanoTime();
+        // A pass still running is left to finish rather than cancelled by every move, or no pass
+        // would finish while the camera moves if they take longer than the interval.
+        if (now - mLastCameraMoveNanos < mCameraMoveIntervalNanos || mClusterTaskRunning) {
+            return;
+        }
+        mLastCameraMoveNanos = now;
+        requestClusters(true);
+    }
 
-        mQuadTreeTask = new QuadTreeTask(clusterItems).executeOnExecutor(mExecutor);
+    /**
+     * Stops clustering and drops the changes of the items that have not been applied yet, e.g.
+     * when the map is destroyed. The manager must not be used afterwards. The scheduler is not
+     * released, since it may be shared; release it separately if it is not.
+     */
+    public void release() {
+        mReleased = true;
+        mClusterGeneration++;
+        mPendingClusterRequest.set(null);
+        mItemsChanges.clear();
+        mAppliedAppends.clear();
+        if (mTrimMemoryCallbacks != null) {
+            mApplicationContext.unregisterComponentCallbacks(mTrimMemoryCallbacks);
+            mTrimMemoryCallbacks = null;
+        }
+        cancelRendering();
     }
 
+    private void buildQuadTree() {
+        // A queued task applies all changes made before it runs, so one is enough.
+        if (!mReleased && mQuadTreeTaskQueued.compareAndSet(false, true)) {
+            mExecutor.execute(new QuadTreeTask());
+        }
+    }
+
+    /**
+     * Clusters the items for the current camera position and renders the clusters. A pass still
+     * running for an earlier position stops early and renders nothing, and any number of calls
+     * made meanwhile result in a single pass for the latest position.
+     */
     public void cluster() {
-        if (mClusterTask != null) {
-            mClusterTask.cancel(true);
+        requestClusters(false);
+    }
+
+    private void requestClusters(boolean cameraMoving) {
+        if (mReleased) {
+            return;
         }
 
-        mClusterTask = new ClusterTask(mHuaweiMap.getProjection().getVisibleRegion().latLngBounds,
-                mHuaweiMap.getCameraPosition().zoom).executeOnExecutor(mExecutor);
+        int generation = mClusterGeneration + 1;
+        mClusterGeneration = generation;
+        mPendingClusterRequest.set(new ClusterRequest(mHuaweiMap.getProjection().getVisibleRegion().latLngBounds,
+                mHuaweiMap.getCameraPosition().zoom, generation, cameraMoving));
+        // The markers must not change while the pass diffs them.
+        cancelRendering();
+
+        // Otherwise, the running task starts the next one when it is done.
+        if (!mClusterTaskRunning) {
+            mClusterTaskRunning = true;
+            mExecutor.execute(new ClusterTask());
+        }
     }
 
+    // Stops the renderers from applying what is left of the last pass over frames.
+    private void cancelRendering() {
+        for (int layer = 0; layer < mLayerCount; layer++) {
+            mRenderers.get(layer).cancel();
+        }
+    }
+
+    // Computes the clusters of the given region like a pass does, without rendering them. Used by
+    // tests; must be called on the executor.
     @NonNull
-    private List<Cluster<T>> getClusters(@NonNull LatLngBounds latLngBounds, float zoomLevel) {
-        List<Cluster<T>> clusters = new ArrayList<>();
+    List<Cluster<T>> getClusters(@NonNull LatLngBounds latLngBounds, float zoomLevel) {
+        return getClusters(new ClusterRequest(latLngBounds, zoomLevel, mClusterGeneration, false));
+    }
 
-        long tileCount = (long) (Math.pow(2, zoomLevel) * 2);
+    @NonNull
+    private List<Cluster<T>> getClusters(@NonNull ClusterRequest clusterRequest) {
+        long filter = mFilter;
+        QuadTree<T> quadTree = mQuadTree;
+        if (filter != mClusterFilter || quadTree != mItemsLoaderQuadTree) {
+            mClusterFilter = filter;
+            mItemsLoader = createItemsLoader(filter, quadTree);
+            mItemsLoaderQuadTree = quadTree;
+        }
+        // Only tiles that are new or changed since the last pass are aggregated again.
+        mTileClusterCache.prepare(mMinClusterSize, filter, mTileCacheMaxBytes);
+
+        List<Cluster<T>> clusters = new ArrayList<>();
+        LatLngBounds latLngBounds = clusterRequest.latLngBounds;
+        float zoomLevel = clusterRequest.zoomLevel;
 
         double startLatitude = latLngBounds.northeast.latitude;
         double endLatitude = latLngBounds.southwest.latitude;
@@ -176,142 +962,872 @@ public class ClusterManager<T extends ClusterItem> implements HuaweiMap.OnCamera
         double startLongitude = latLngBounds.southwest.longitude;
         double endLongitude = latLngBounds.northeast.longitude;
 
-        double stepLatitude = 180.0 / tileCount;
-        double stepLongitude = 360.0 / tileCount;
-
         if (startLongitude > endLongitude) { // Longitude +180°/-180° overlap.
             // [start longitude; 180]
-            getClustersInsideBounds(clusters, startLatitude, endLatitude,
-                    startLongitude, 180.0, stepLatitude, stepLongitude);
+            getClustersInsideBounds(clusters, clusterRequest, zoomLevel, startLatitude, endLatitude,
+                    startLongitude, 180.0);
             // [-180; end longitude]
-            getClustersInsideBounds(clusters, startLatitude, endLatitude,
-                    -180.0, endLongitude, stepLatitude, stepLongitude);
+            getClustersInsideBounds(clusters, clusterRequest, zoomLevel, startLatitude, endLatitude,
+                    -180.0, endLongitude);
         } else {
-            getClustersInsideBounds(clusters, startLatitude, endLatitude,
-                    startLongitude, endLongitude, stepLatitude, stepLongitude);
+            getClustersInsideBounds(clusters, clusterRequest, zoomLevel, startLatitude, endLatitude,
+                    startLongitude, endLongitude);
         }
 
         return clusters;
     }
 
-    private void getClustersInsideBounds(@NonNull final List<Cluster<T>> clusters,
+    private void getClustersInsideBounds(@NonNull List<Cluster<T>> clusters,
+                                         @NonNull ClusterRequest clusterRequest, float zoomLevel,
                                          double startLatitude, double endLatitude,
-                                         double startLongitude, double endLongitude,
-                                         final double stepLatitude, final double stepLongitude) {
-        final long startX = (long) ((startLongitude + 180.0) / stepLongitude);
-        final long startY = (long) ((90.0 - startLatitude) / stepLatitude);
+                                         double startLongitude, double endLongitude) {
+        ClusteringStrategy clusteringStrategy = mClusteringStrategy;
+        if (clusteringStrategy == ClusteringStrategy.PYRAMID && mClusterFilter == QuadTree.NO_FILTER
+                && zoomLevel < ClusterPyramid.MAX_ZOOM + 1) {
+            getPyramidClustersInsideBounds(clusters, (int) Math.max(zoomLevel, 0),
+                    startLatitude, endLatitude, startLongitude, endLongitude);
+            return;
+        }
 
-        final long endX = (long) ((endLongitude + 180.0) / stepLongitude) + 1;
-        final long endY = (long) ((90.0 - endLatitude) / stepLatitude) + 1;
+        TileGrid tileGrid = clusterRequest.tileGrid();
 
-        quadTreeReadLock(new Runnable() {
-            @Override
-            public void run() {
-                for (long tileX = startX; tileX <= endX; tileX++) {
-                    for (long tileY = startY; tileY <= endY; tileY++) {
-                        double north = 90.0 - tileY * stepLatitude;
-                        double west = tileX * stepLongitude - 180.0;
-                        double south = north - stepLatitude;
-                        double east = west + stepLongitude;
+        long startX = tileGrid.startColumn(startLongitude);
+        long startY = tileGrid.startRow(startLatitude);
 
-                        List<T> points = mQuadTree.queryRange(north, west, south, east);
+        long endX = tileGrid.endColumn(endLongitude);
+        long endY = tileGrid.endRow(endLatitude);
 
-                        if (points.isEmpty()) {
-                            continue;
-                        }
+        if (clusteringStrategy == ClusteringStrategy.TILE_BINNING) {
+            getBinnedClustersInsideTiles(clusters, clusterRequest, tileGrid, startX, startY, endX, endY);
+        } else {
+            getClustersInsideTiles(clusters, clusterRequest, tileGrid, startX, startY, endX, endY);
+        }
+    }
 
-                        if (points.size() >= mMinClusterSize) {
-                            double totalLatitude = 0;
-                            double totalLongitude = 0;
+    private void getClustersInsideTiles(@NonNull List<Cluster<T>> clusters, @NonNull Cancellation cancellation,
+                                        @NonNull TileGrid tileGrid,
+                                        long startX, long startY, long endX, long endY) {
+        int parallelism = mParallelism;
+        if (parallelism > 1) {
+            getClustersInsideTilesInParallel(clusters, cancellation, parallelism, tileGrid,
+                    startX, startY, endX, endY);
+            return;
+        }
 
-                            for (T point : points) {
-                                totalLatitude += point.getLatitude();
-                                totalLongitude += point.getLongitude();
-                            }
+        QuadTreeAggregate aggregate = new QuadTreeAggregate(mLayerCount);
+        for (long tileX = startX; tileX <= endX; tileX++) {
+            if (cancellation.isCancelled()) {
+                return;
+            }
+            for (long tileY = startY; tileY <= endY; tileY++) {
+                List<Cluster<T>> tileClusters = mTileClusterCache.get(tileGrid, tileY, tileX);
+                if (tileClusters == null) {
+                    long startNanos = System.nanoTime();
+                    tileClusters = getTileClusters(tileGrid, tileX, tileY, aggregate, mSingleClusters);
+                    mTileClusterCache.put(tileGrid, tileY, tileX, tileClusters, System.nanoTime() - startNanos);
+                }
+                addCachedClusters(clusters, tileClusters);
+            }
+        }
+    }
+
+    private void getClustersInsideTilesInParallel(@NonNull List<Cluster<T>> clusters,
+                                                  @NonNull Cancellation cancellation, int parallelism,
+                                                  @NonNull TileGrid tileGrid,
+                                                  long startX, long startY, long endX, long endY) {
+        // The tasks only compute the tiles missing from the cache, and the tiles are put into it
+        // and into the clusters afterwards in the same order as above, so the result does not
+        // depend on the parallelism.
+        TileRangeTask task = new TileRangeTask(cancellation, tileGrid, startX, startY, endX, endY,
+                parallelism);
+        for (int tile = 0; tile < task.tileClusters.length; tile++) {
+            task.tileClusters[tile] = mTileClusterCache.get(tileGrid, task.tileY(tile), task.tileX(tile));
+        }
+        mScheduler.getForkJoinPool().invoke(task);
 
-                            double latitude = totalLatitude / points.size();
-                            double longitude = totalLongitude / points.size();
+        for (int tile = 0; tile < task.tileClusters.length; tile++) {
+            List<Cluster<T>> tileClusters = task.tileClusters[tile];
+            if (tileClusters == null) {
+                // Cancelled before the tile was computed.
+                return;
+            }
+            if (task.computed[tile]) {
+                mTileClusterCache.put(tileGrid, task.tileY(tile), task.tileX(tile), tileClusters,
+                        task.computeNanos[tile]);
+            }
+            addCachedClusters(clusters, tileClusters);
+        }
+    }
 
-                            clusters.add(new Cluster<>(latitude, longitude,
-                                    points, north, west, south, east));
-                        } else {
-                            for (T point : points) {
-                                clusters.add(new Cluster<>(point.getLatitude(), point.getLongitude(),
-                                        Collections.singletonList(point), north, west, south, east));
+    // Adds copies of the cached clusters of a tile, so that the items loaded for the clusters of a
+    // pass are not kept in the cache, and are loaded from the tree of the pass.
+    private void addCachedClusters(@NonNull List<Cluster<T>> clusters, @NonNull List<Cluster<T>> tileClusters) {
+        for (int i = 0; i < tileClusters.size(); i++) {
+            clusters.add(tileClusters.get(i).withItemsLoader(mItemsLoader));
+        }
+    }
+
+    // Computes the tiles around the visible region of a pass that are not cached yet.
+    private void prefetchTiles(@NonNull ClusterRequest clusterRequest) {
+        int padding = mPrefetchPadding;
+        float zoomLevel = clusterRequest.zoomLevel;
+        ClusteringStrategy clusteringStrategy = mClusteringStrategy;
+        // Prefetched tiles are only of use if the tile cache keeps them.
+        if (padding == 0 || mTileCacheMaxBytes == 0 || clusteringStrategy == ClusteringStrategy.TILE_BINNING
+                || (clusteringStrategy == ClusteringStrategy.PYRAMID && mClusterFilter == QuadTree.NO_FILTER
+                && zoomLevel < ClusterPyramid.MAX_ZOOM + 1)) {
+            return;
+        }
+
+        LatLngBounds latLngBounds = clusterRequest.latLngBounds;
+        TileGrid tileGrid = clusterRequest.tileGrid();
+        long startY = Math.max(tileGrid.startRow(latLngBounds.northeast.latitude) - padding, 0);
+        long endY = Math.min(tileGrid.endRow(latLngBounds.southwest.latitude) + padding, tileGrid.tileCount - 1);
+        long startX = Math.max(tileGrid.startColumn(latLngBounds.southwest.longitude) - padding, 0);
+        long endX = Math.min(tileGrid.endColumn(latLngBounds.northeast.longitude) + padding, tileGrid.tileCount - 1);
+        if (latLngBounds.southwest.longitude > latLngBounds.northeast.longitude) { // Longitude +180°/-180° overlap.
+            prefetchTiles(clusterRequest, tileGrid, startX, startY, tileGrid.tileCount - 1, endY);
+            prefetchTiles(clusterRequest, tileGrid, 0, startY, endX, endY);
+        } else {
+            prefetchTiles(clusterRequest, tileGrid, startX, startY, endX, endY);
+        }
+    }
+
+    private void prefetchTiles(@NonNull Cancellation cancellation, @NonNull TileGrid tileGrid,
+                               long startX, long startY, long endX, long endY) {
+        QuadTreeAggregate aggregate = new QuadTreeAggregate(mLayerCount);
+        for (long tileX = startX; tileX <= endX; tileX++) {
+            if (cancellation.isCancelled()) {
+                return;
+            }
+            for (long tileY = startY; tileY <= endY; tileY++) {
+                if (!mTileClusterCache.contains(tileGrid, tileY, tileX)) {
+                    long startNanos = System.nanoTime();
+                    List<Cluster<T>> tileClusters = getTileClusters(tileGrid, tileX, tileY, aggregate, mSingleClusters);
+                    mTileClusterCache.put(tileGrid, tileY, tileX, tileClusters, System.nanoTime() - startNanos);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private List<Cluster<T>> getTileClusters(@NonNull TileGrid tileGrid, long tileX, long tileY,
+                                             @NonNull QuadTreeAggregate aggregate,
+                                             @NonNull SingleClusterCollector singleClusters) {
+        double north = tileGrid.north(tileY);
+        double west = tileGrid.west(tileX);
+        double south = tileGrid.south(tileY);
+        double east = tileGrid.east(tileX);
+
+        aggregate.reset();
+        mQuadTree.aggregateRange(north, west, south, east, mClusterFilter, aggregate);
+
+        if (aggregate.size == 0) {
+            return Collections.emptyList();
+        }
+        List<Cluster<T>> tileClusters = new ArrayList<>(1);
+        if (aggregate.layerSizes == null) {
+            addTileClusters(tileClusters, singleClusters, aggregate.size, aggregate.latitudeSum,
+                    aggregate.longitudeSum, north, west, south, east, 0);
+        } else {
+            // The same walk aggregated every layer.
+            for (int layer = 0; layer < mLayerCount; layer++) {
+                if (aggregate.layerSizes[layer] > 0) {
+                    addTileClusters(tileClusters, singleClusters, aggregate.layerSizes[layer],
+                            aggregate.layerLatitudeSums[layer], aggregate.layerLongitudeSums[layer],
+                            north, west, south, east, layer);
+                }
+            }
+        }
+        return tileClusters;
+    }
+
+    // Computes the clusters of the tiles in column-major order from the given start to end tile,
+    // splitting the range in halves until each task holds a few tiles.
+    private final class TileRangeTask extends RecursiveAction {
+
+        final Cancellation cancellation;
+        final TileGrid tileGrid;
+        final long startX;
+        final long startY;
+        final long rows;
+        final List<Cluster<T>>[] tileClusters;
+        final boolean[] computed;
+        final long[] computeNanos;
+        final int from;
+        final int to;
+        final int threshold;
+
+        TileRangeTask(@NonNull Cancellation cancellation, @NonNull TileGrid tileGrid,
+                      long startX, long startY, long endX, long endY, int parallelism) {
+            this.cancellation = cancellation;
+            this.tileGrid = tileGrid;
+            this.startX = startX;
+            this.startY = startY;
+            rows = endY - startY + 1;
+            int tileCount = (int) ((endX - startX + 1) * rows);
+            //noinspection unchecked
+            tileClusters = new List[tileCount];
+            computed = new boolean[tileCount];
+            computeNanos = new long[tileCount];
+            from = 0;
+            to = tileCount;
+            threshold = Math.max(tileCount / (TASKS_PER_THREAD * parallelism), 1);
+        }
+
+        TileRangeTask(@NonNull TileRangeTask parent, int from, int to) {
+            cancellation = parent.cancellation;
+            tileGrid = parent.tileGrid;
+            startX = parent.startX;
+            startY = parent.startY;
+            rows = parent.rows;
+            tileClusters = parent.tileClusters;
+            computed = parent.computed;
+            computeNanos = parent.computeNanos;
+            this.from = from;
+            this.to = to;
+            threshold = parent.threshold;
+        }
+
+        long tileX(int tile) {
+            return startX + tile / rows;
+        }
+
+        long tileY(int tile) {
+            return startY + tile % rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileRangeTask(this, from, middle), new TileRangeTask(this, middle, to));
+                return;
+            }
+
+            QuadTreeAggregate aggregate = new QuadTreeAggregate(mLayerCount);
+            SingleClusterCollector singleClusters = new SingleClusterCollector();
+            for (int tile = from; tile < to; tile++) {
+                if (cancellation.isCancelled()) {
+                    return;
+                }
+                if (tileClusters[tile] == null) {
+                    long startNanos = System.nanoTime();
+                    tileClusters[tile] = getTileClusters(tileGrid, tileX(tile), tileY(tile), aggregate,
+                            singleClusters);
+                    computeNanos[tile] = System.nanoTime() - startNanos;
+                    computed[tile] = true;
+                }
+            }
+        }
+    }
+
+    private void getBinnedClustersInsideTiles(@NonNull List<Cluster<T>> clusters, @NonNull Cancellation cancellation,
+                                              @NonNull TileGrid tileGrid,
+                                              long startX, long startY, long endX, long endY) {
+        // One query per block of tiles, which puts every point into its tile by arithmetic. The
+        // region is a single block unless blocks are binned in parallel.
+        int parallelism = mParallelism;
+        int blockCount = parallelism > 1 ? TASKS_PER_THREAD * parallelism : 1;
+        long columns = endX - startX + 1;
+        long rows = endY - startY + 1;
+        int columnBlocks = (int) Math.min(columns, blockCount);
+        int rowBlocks = (int) Math.min(rows, Math.max(blockCount / columnBlocks, 1));
+        while (mTileBinners.size() < columnBlocks * rowBlocks) {
+            mTileBinners.add(new TileBinner());
+        }
+
+        TileBlocksTask task = new TileBlocksTask(cancellation, tileGrid, startX, startY, columns, rows,
+                columnBlocks, rowBlocks, 0, columnBlocks * rowBlocks);
+        if (parallelism > 1) {
+            mScheduler.getForkJoinPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        if (cancellation.isCancelled()) {
+            return;
+        }
+
+        // Tiles are visited in column-major order whatever the blocks, so that the clusters, and
+        // the single items of a tile, are in the same order for any parallelism.
+        QuadTreeAggregate layerAggregate = new QuadTreeAggregate(mLayerCount);
+        for (int columnBlock = 0; columnBlock < columnBlocks; columnBlock++) {
+            for (long tileX = task.startColumn(columnBlock); tileX < task.startColumn(columnBlock + 1); tileX++) {
+                double west = tileGrid.west(tileX);
+                double east = tileGrid.east(tileX);
+                for (int rowBlock = 0; rowBlock < rowBlocks; rowBlock++) {
+                    TileBinner binner = mTileBinners.get(columnBlock * rowBlocks + rowBlock);
+                    for (long tileY = task.startRow(rowBlock); tileY < task.startRow(rowBlock + 1); tileY++) {
+                        int bin = binner.bin(tileY * tileGrid.tileCount + tileX);
+                        if (bin == TileBinner.NONE) {
+                            continue;
+                        }
+                        double north = tileGrid.north(tileY);
+                        double south = tileGrid.south(tileY);
+
+                        if (layerAggregate.layerSizes == null) {
+                            addBinClusters(clusters, binner, bin, binner.size(bin), binner.latitudeSum(bin),
+                                    binner.longitudeSum(bin), north, west, south, east, 0);
+                            continue;
+                        }
+                        // Bins do not tell layers apart, so their members are aggregated again.
+                        layerAggregate.reset();
+                        for (int member = binner.firstMember(bin); member != TileBinner.NONE;
+                             member = binner.nextMember(member)) {
+                            int point = binner.point(member);
+                            int layer = mQuadTree.layerAt(point);
+                            layerAggregate.layerSizes[layer]++;
+                            layerAggregate.layerLatitudeSums[layer] += mQuadTree.latitudeAt(point);
+                            layerAggregate.layerLongitudeSums[layer] += mQuadTree.longitudeAt(point);
+                        }
+                        for (int layer = 0; layer < mLayerCount; layer++) {
+                            if (layerAggregate.layerSizes[layer] > 0) {
+                                addBinClusters(clusters, binner, bin, layerAggregate.layerSizes[layer],
+                                        layerAggregate.layerLatitudeSums[layer],
+                                        layerAggregate.layerLongitudeSums[layer],
+                                        north, west, south, east, layer);
                             }
                         }
                     }
                 }
             }
-        });
+        }
     }
 
-    private void quadTreeWriteLock(@NonNull Runnable runnable) {
-        quadTreeLock.writeLock().lock();
+    private void addBinClusters(@NonNull List<Cluster<T>> clusters, @NonNull TileBinner binner, int bin,
+                                int size, double latitudeSum, double longitudeSum,
+                                double north, double west, double south, double east, int layer) {
+        if (size > 1 && size >= mMinClusterSize) {
+            clusters.add(new Cluster<>(latitudeSum / size, longitudeSum / size, size, mItemsLoader,
+                    north, west, south, east, layer));
+        } else {
+            for (int member = binner.firstMember(bin); member != TileBinner.NONE;
+                 member = binner.nextMember(member)) {
+                int index = binner.point(member);
+                if (mQuadTree.layerAt(index) == layer) {
+                    clusters.add(newSingleCluster(index, north, west, south, east, layer));
+                }
+            }
+        }
+    }
+
+    // Bins the points of the given blocks of tiles, one binner per block, splitting the blocks in
+    // halves until each task holds one block.
+    private final class TileBlocksTask extends RecursiveAction {
+
+        final Cancellation cancellation;
+        final TileGrid tileGrid;
+        final long startX;
+        final long startY;
+        final long columns;
+        final long rows;
+        final int columnBlocks;
+        final int rowBlocks;
+        final int from;
+        final int to;
+
+        TileBlocksTask(@NonNull Cancellation cancellation, @NonNull TileGrid tileGrid,
+                       long startX, long startY, long columns, long rows,
+                       int columnBlocks, int rowBlocks, int from, int to) {
+            this.cancellation = cancellation;
+            this.tileGrid = tileGrid;
+            this.startX = startX;
+            this.startY = startY;
+            this.columns = columns;
+            this.rows = rows;
+            this.columnBlocks = columnBlocks;
+            this.rowBlocks = rowBlocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        long startColumn(int columnBlock) {
+            return startX + columns * columnBlock / columnBlocks;
+        }
+
+        long startRow(int rowBlock) {
+            return startY + rows * rowBlock / rowBlocks;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileBlocksTask(cancellation, tileGrid, startX, startY, columns, rows,
+                                columnBlocks, rowBlocks, from, middle),
+                        new TileBlocksTask(cancellation, tileGrid, startX, startY, columns, rows,
+                                columnBlocks, rowBlocks, middle, to));
+                return;
+            }
+
+            int columnBlock = from / rowBlocks;
+            int rowBlock = from % rowBlocks;
+            TileBinner binner = mTileBinners.get(from);
+            binner.clear(tileGrid, cancellation);
+            mQuadTree.queryRange(tileGrid.north(startRow(rowBlock)), tileGrid.west(startColumn(columnBlock)),
+                    tileGrid.north(startRow(rowBlock + 1)), tileGrid.west(startColumn(columnBlock + 1)),
+                    mClusterFilter, binner);
+        }
+    }
+
+    // Returns the pool for parallel work, or null if the work is done on the executor alone.
+    @Nullable
+    private ForkJoinPool parallelForkJoinPool() {
+        return mParallelism > 1 ? mScheduler.getForkJoinPool() : null;
+    }
+
+    private void getPyramidClustersInsideBounds(@NonNull final List<Cluster<T>> clusters, int zoom,
+                                                double startLatitude, double endLatitude,
+                                                double startLongitude, double endLongitude) {
+        updateClusterPyramid();
+        mClusterPyramid.visitTiles(zoom, startLatitude, startLongitude, endLatitude, endLongitude,
+                new ClusterPyramid.TileVisitor() {
+                    @Override
+                    public void visitTile(double north, double west, double south, double east,
+                                          int size, double latitudeSum, double longitudeSum) {
+                        addTileClusters(clusters, mSingleClusters, size, latitudeSum, longitudeSum,
+                                north, west, south, east, 0);
+                    }
+                });
+    }
+
+    private void addTileClusters(@NonNull List<Cluster<T>> clusters, @NonNull SingleClusterCollector singleClusters,
+                                 int size, double latitudeSum, double longitudeSum,
+                                 double north, double west, double south, double east, int layer) {
+        // Single items are looked up right away, since the renderer needs them
+        // for the marker icon, title and snippet.
+        if (size > 1 && size >= mMinClusterSize) {
+            clusters.add(new Cluster<>(latitudeSum / size, longitudeSum / size, size,
+                    mItemsLoader, north, west, south, east, layer));
+        } else {
+            singleClusters.addClusters(clusters, north, west, south, east, layer);
+        }
+    }
+
+    // Returns the cluster of a single point. Points without an object get a new one from the
+    // factory on every pass, so their clusters are identified by the id of the point instead.
+    @NonNull
+    private Cluster<T> newSingleCluster(int point, double north, double west, double south, double east,
+                                        int layer) {
+        QuadTree<T> quadTree = mQuadTree;
+        T item = quadTree.pointAt(point);
+        if (quadTree.hasObjectAt(point)) {
+            return new Cluster<>(item.getLatitude(), item.getLongitude(), Collections.singletonList(item),
+                    north, west, south, east, layer);
+        }
+        return new Cluster<>(item.getLatitude(), item.getLongitude(), item, quadTree.idAt(point),
+                north, west, south, east, layer);
+    }
+
+    // Adds the clusters of the single points of a layer in a tile. Reused from tile to tile by
+    // one thread.
+    private final class SingleClusterCollector implements QuadTree.PointVisitor {
+
+        private List<Cluster<T>> clusters;
+        private double north;
+        private double west;
+        private double south;
+        private double east;
+        private int layer;
+
+        void addClusters(@NonNull List<Cluster<T>> clusters, double north, double west, double south,
+                         double east, int layer) {
+            this.clusters = clusters;
+            this.north = north;
+            this.west = west;
+            this.south = south;
+            this.east = east;
+            this.layer = layer;
+            mQuadTree.queryRange(layer, mClusterFilter, north, west, south, east, this);
+            this.clusters = null;
+        }
+
+        @Override
+        public boolean visitPoint(int index, double latitude, double longitude) {
+            clusters.add(newSingleCluster(index, north, west, south, east, layer));
+            return true;
+        }
+    }
+
+    // Applies the queued changes of the items to a copy of the quad tree and publishes the copy,
+    // so that readers on other threads keep a consistent tree. Must be called on the executor.
+    private void applyItemsChanges() {
+        QuadTree<T> quadTree = mQuadTree;
+        boolean copied = false;
+        ItemsChange<T> change;
+        while ((change = mItemsChanges.poll()) != null) {
+            switch (change.kind) {
+                case ItemsChange.REPLACE:
+                    quadTree = change.indexFile == null ? null : readIndex(change);
+                    copied = true;
+                    if (quadTree == null && change.packedItems != null) {
+                        quadTree = new QuadTree<>(mQuadTreeBucketCapacity, mQuadTreeMaxDepth, mLayerCount);
+                        quadTree.build(change.packedItems.latitudes(), change.packedItems.longitudes(),
+                                change.packedItems.ids(), change.packedItems.size(), change.pointFactory,
+                                parallelForkJoinPool());
+                    } else if (quadTree == null) {
+                        quadTree = new QuadTree<>(mQuadTreeBucketCapacity, mQuadTreeMaxDepth, mLayerCount);
+                        quadTree.build(change.items, getLayers(change.items), parallelForkJoinPool());
+                        if (change.indexFile != null) {
+                            // Later changes must not reach the tree that is saved for these items.
+                            mUnsavedIndex = change;
+                            mUnsavedIndexQuadTree = quadTree;
+                            copied = false;
+                        }
+                    }
+                    if (mAttributeSelector != null) {
+                        // Neither built with attributes nor saved with them.
+                        updateAttributes(quadTree);
+                    }
+                    mTileClusterCache.invalidateAll();
+                    break;
+                case ItemsChange.CLEAR:
+                    quadTree = new QuadTree<>(mQuadTreeBucketCapacity, mQuadTreeMaxDepth, mLayerCount);
+                    copied = true;
+                    mTileClusterCache.invalidateAll();
+                    break;
+                case ItemsChange.LIMITS:
+                    mQuadTreeBucketCapacity = change.bucketCapacity;
+                    mQuadTreeMaxDepth = change.maxDepth;
+                    quadTree = quadTree.withLimits(mQuadTreeBucketCapacity, mQuadTreeMaxDepth,
+                            parallelForkJoinPool());
+                    copied = true;
+                    mTileClusterCache.invalidateAll();
+                    break;
+                case ItemsChange.ATTRIBUTES:
+                    if (!copied) {
+                        quadTree = quadTree.copy();
+                        copied = true;
+                    }
+                    updateAttributes(quadTree);
+                    mTileClusterCache.invalidateAll();
+                    break;
+                default:
+                    if (!copied) {
+                        quadTree = quadTree.copy();
+                        copied = true;
+                    }
+                    for (T clusterItem : change.items) {
+                        if (change.kind == ItemsChange.ADD) {
+                            insertItem(quadTree, clusterItem);
+                        } else if (removeItem(quadTree, clusterItem) && change.kind == ItemsChange.UPDATE) {
+                            insertItem(quadTree, clusterItem);
+                        }
+                    }
+                    if (change.onItemsAppendedListener != null) {
+                        mAppliedAppends.add(change);
+                    }
+                    break;
+            }
+        }
+        mQuadTree = quadTree;
+    }
+
+    // Returns the saved tree for the items of the change, or null if it has to be built.
+    // Must be called on the executor.
+    @Nullable
+    private QuadTree<T> readIndex(@NonNull ItemsChange<T> change) {
+        IndexSnapshot<T> indexSnapshot;
         try {
-            runnable.run();
-        } finally {
-            quadTreeLock.writeLock().unlock();
+            indexSnapshot = IndexSnapshot.read(change.indexFile, change.dataVersion, change.items,
+                    mQuadTreeBucketCapacity, mQuadTreeMaxDepth, mLayerCount);
+        } catch (IOException | RuntimeException e) {
+            // An unreadable or damaged index is treated like a stale one, which is overwritten
+            // once the tree is built.
+            indexSnapshot = null;
+        }
+        if (indexSnapshot == null) {
+            return null;
+        }
+        if (indexSnapshot.clusterPyramid != null) {
+            mClusterPyramid = indexSnapshot.clusterPyramid;
+            mClusterPyramidQuadTree = indexSnapshot.quadTree;
         }
+        return indexSnapshot.quadTree;
     }
 
-    private void quadTreeReadLock(@NonNull Runnable runnable) {
-        quadTreeLock.readLock().lock();
+    // Must be called on the executor.
+    private void saveIndex() {
+        ItemsChange<T> change = mUnsavedIndex;
+        QuadTree<T> quadTree = mUnsavedIndexQuadTree;
+        if (change == null) {
+            return;
+        }
+        mUnsavedIndex = null;
+        mUnsavedIndexQuadTree = null;
+
+        // The pyramid is only saved for the strategy that uses it, or if it was built anyway.
+        ClusterPyramid clusterPyramid = mClusterPyramidQuadTree == quadTree ? mClusterPyramid : null;
+        if (clusterPyramid == null && mClusteringStrategy == ClusteringStrategy.PYRAMID) {
+            clusterPyramid = new ClusterPyramid(quadTree);
+            if (quadTree == mQuadTree) {
+                mClusterPyramid = clusterPyramid;
+                mClusterPyramidQuadTree = quadTree;
+            }
+        }
         try {
-            runnable.run();
-        } finally {
-            quadTreeLock.readLock().unlock();
+            IndexSnapshot.write(change.indexFile, change.dataVersion, change.items, quadTree, clusterPyramid);
+        } catch (IOException e) {
+            // Nothing is lost, the next call with the index file builds the tree again.
+        }
+    }
+
+    // Calls the listeners of the appends published so far. Must be called on the main thread.
+    private void notifyItemsAppended() {
+        ItemsChange<T> change;
+        while ((change = mAppliedAppends.poll()) != null) {
+            change.onItemsAppendedListener.onItemsAppended(change.items.size());
+        }
+    }
+
+    private void insertItem(@NonNull QuadTree<T> quadTree, @NonNull T clusterItem) {
+        AttributeSelector<T> attributeSelector = mAttributeSelector;
+        quadTree.insert(clusterItem, getLayer(clusterItem),
+                attributeSelector == null ? 0 : attributeSelector.getAttributes(clusterItem));
+        mTileClusterCache.invalidate(clusterItem.getLatitude(), clusterItem.getLongitude());
+    }
+
+    private boolean removeItem(@NonNull QuadTree<T> quadTree, @NonNull T clusterItem) {
+        int index = quadTree.indexOf(clusterItem);
+        if (index == QuadTree.NONE) {
+            return false;
+        }
+        // The tree still has the position the item had when it was added or last updated.
+        mTileClusterCache.invalidate(quadTree.latitudeAt(index), quadTree.longitudeAt(index));
+        quadTree.removeAt(index);
+        return true;
+    }
+
+    // Must be called on the executor.
+    private void updateClusterPyramid() {
+        if (mClusterPyramid == null || mClusterPyramidQuadTree != mQuadTree) {
+            mClusterPyramid = new ClusterPyramid(mQuadTree);
+            mClusterPyramidQuadTree = mQuadTree;
+        }
+    }
+
+    // Must be called on the executor.
+    private int getLayer(@NonNull T clusterItem) {
+        if (mLayerSelector == null) {
+            return 0;
+        }
+        int layer = mLayerSelector.getLayer(clusterItem);
+        Preconditions.checkArgument(layer >= 0 && layer < mLayerCount);
+        return layer;
+    }
+
+    // Sets the attributes of all items of the tree from the current selector. Must be called on
+    // the executor.
+    private void updateAttributes(@NonNull QuadTree<T> quadTree) {
+        AttributeSelector<T> attributeSelector = mAttributeSelector;
+        if (attributeSelector == null) {
+            quadTree.clearAttributes();
+            return;
+        }
+        int[] attributes = new int[quadTree.size()];
+        for (int point = 0; point < attributes.length; point++) {
+            // Points added by id keep no attributes rather than all being created here.
+            if (quadTree.hasObjectAt(point)) {
+                attributes[point] = attributeSelector.getAttributes(quadTree.pointAt(point));
+            }
+        }
+        quadTree.setAttributes(attributes);
+    }
+
+    // Returns the layers of the items, or null if there is only one layer. Must be called on the
+    // executor.
+    @Nullable
+    private byte[] getLayers(@NonNull List<T> clusterItems) {
+        if (mLayerSelector == null) {
+            return null;
+        }
+        byte[] layers = new byte[clusterItems.size()];
+        int i = 0;
+        for (T clusterItem : clusterItems) {
+            layers[i++] = (byte) getLayer(clusterItem);
         }
+        return layers;
     }
 
-    private class QuadTreeTask extends AsyncTask<Void, Void, Void> {
+    // Returns a loader of the items of clusters computed from the given tree with the given filter,
+    // which does not change with the items or the filter of later passes.
+    @NonNull
+    private static <T extends ClusterItem> Cluster.ItemsLoader<T> createItemsLoader(
+            final long filter, @NonNull final QuadTree<T> quadTree) {
+        return new Cluster.ItemsLoader<T>() {
+            @NonNull
+            @Override
+            public List<T> loadItems(int layer, double north, double west, double south, double east) {
+                List<T> items = new ArrayList<>();
+                quadTree.queryRange(layer, filter, north, west, south, east, items);
+                return items;
+            }
+        };
+    }
+
+    @NonNull
+    private static <T> List<T> copyItems(@NonNull Collection<T> clusterItems) {
+        List<T> items = new ArrayList<>(Preconditions.checkNotNull(clusterItems));
+        for (int i = 0; i < items.size(); i++) {
+            Preconditions.checkNotNull(items.get(i));
+        }
+        return items;
+    }
 
-        private final List<T> mClusterItems;
+    // Called on the main thread.
+    private class TrimMemoryCallbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            // Half the pools while the app runs low on memory, all of them once it is worse.
+            for (int layer = 0; layer < mLayerCount; layer++) {
+                ClusterRenderer<T> renderer = mRenderers.get(layer);
+                renderer.trimMarkerPool(level >= TRIM_MEMORY_RUNNING_CRITICAL ? 0 : renderer.getMarkerPoolSize() / 2);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
 
-        private QuadTreeTask(@NonNull List<T> clusterItems) {
-            mClusterItems = clusterItems;
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {
         }
+    }
+
+    private class QuadTreeTask implements Runnable {
 
         @Override
-        protected Void doInBackground(Void... params) {
-            quadTreeWriteLock(new Runnable() {
+        public void run() {
+            mQuadTreeTaskQueued.set(false);
+            applyItemsChanges();
+            if (mClusteringStrategy == ClusteringStrategy.PYRAMID) {
+                updateClusterPyramid();
+            }
+            mScheduler.executeOnMainThread(new Runnable() {
                 @Override
                 public void run() {
-                    mQuadTree.clear();
-                    for (T clusterItem : mClusterItems) {
-                        mQuadTree.insert(clusterItem);
-                    }
+                    onQuadTreeBuilt();
                 }
             });
-            return null;
         }
 
-        @Override
-        protected void onPostExecute(Void aVoid) {
+        // Called on the main thread.
+        private void onQuadTreeBuilt() {
+            if (mReleased) {
+                return;
+            }
             cluster();
-            mQuadTreeTask = null;
+            // Queued behind the clustering pass, so that saving does not delay the first clusters.
+            mExecutor.execute(mSaveIndexRunnable);
+            notifyItemsAppended();
         }
     }
 
-    private class ClusterTask extends AsyncTask<Void, Void, List<Cluster<T>>> {
+    private class ClusterTask implements Runnable {
 
-        private final LatLngBounds mLatLngBounds;
-        private final float mZoomLevel;
+        @Override
+        public void run() {
+            applyItemsChanges();
+            final ClusterRequest clusterRequest = mPendingClusterRequest.getAndSet(null);
+            final List<ClusterRenderer.RenderPlan<T>> renderPlans;
+            final long clusterNanos;
+            if (clusterRequest == null || clusterRequest.isCancelled()) {
+                renderPlans = null;
+                clusterNanos = 0;
+            } else {
+                long start = System.nanoTime();
+                List<Cluster<T>> clusters = getClusters(clusterRequest);
+                mTileCacheStats = mTileClusterCache.getStats();
+                // The markers only change once this task is done, so the plans stay valid.
+                renderPlans = clusterRequest.isCancelled() ? null : diff(clusters, clusterRequest.latLngBounds);
+                clusterNanos = System.nanoTime() - start;
+            }
+            mScheduler.executeOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    onClustered(clusterRequest, renderPlans, clusterNanos);
+                }
+            });
+            if (renderPlans != null) {
+                // Tiles the camera is likely to move to next, computed while the clusters render.
+                prefetchTiles(clusterRequest);
+            }
+        }
 
-        private ClusterTask(@NonNull LatLngBounds latLngBounds, float zoomLevel) {
-            mLatLngBounds = latLngBounds;
-            mZoomLevel = zoomLevel;
+        // Called on the main thread.
+        private void onClustered(@Nullable ClusterRequest clusterRequest,
+                                 @Nullable List<ClusterRenderer.RenderPlan<T>> renderPlans, long clusterNanos) {
+            mClusterTaskRunning = false;
+            if (mReleased) {
+                return;
+            }
+            // A newer request may have come in after the pass, in which case it renders instead.
+            if (renderPlans != null && mPendingClusterRequest.get() == null) {
+                long start = System.nanoTime();
+                RenderStats.Counts lastPassStartCounts = new RenderStats.Counts();
+                int kept = 0;
+                for (int layer = 0; layer < mLayerCount; layer++) {
+                    ClusterRenderer<T> renderer = mRenderers.get(layer);
+                    lastPassStartCounts.add(renderer.getCounts());
+                    ClusterRenderer.RenderPlan<T> renderPlan = renderer.apply(renderPlans.get(layer));
+                    kept += renderPlan.clusters.size() - renderPlan.addedClusters.size()
+                            - renderPlan.updatedClusters.size();
+                }
+                mLastPassStartCounts = lastPassStartCounts;
+                mLastPassKeptCount = kept;
+                if (clusterRequest.cameraMoving) {
+                    checkCameraMoveBudget(clusterNanos + System.nanoTime() - start);
+                }
+            }
+            notifyItemsAppended();
+            if (mPendingClusterRequest.get() != null) {
+                mClusterTaskRunning = true;
+                mExecutor.execute(new ClusterTask());
+            }
         }
 
-        @Override
-        protected List<Cluster<T>> doInBackground(Void... params) {
-            return getClusters(mLatLngBounds, mZoomLevel);
+        // Computes the changes of the markers of every layer that render the clusters, with the
+        // renderer of that layer.
+        @NonNull
+        private List<ClusterRenderer.RenderPlan<T>> diff(@NonNull List<Cluster<T>> clusters,
+                                                         @NonNull LatLngBounds latLngBounds) {
+            double centerLatitude = (latLngBounds.northeast.latitude + latLngBounds.southwest.latitude) / 2;
+            double centerLongitude = (latLngBounds.northeast.longitude + latLngBounds.southwest.longitude) / 2;
+            if (latLngBounds.southwest.longitude > latLngBounds.northeast.longitude) {
+                // Longitude +180°/-180° overlap.
+                centerLongitude += centerLongitude > 0 ? -180.0 : 180.0;
+            }
+            if (mLayerCount == 1) {
+                return Collections.singletonList(mRenderers.get(0).diff(clusters, centerLatitude, centerLongitude));
+            }
+            List<List<Cluster<T>>> layerClusters = new ArrayList<>(mLayerCount);
+            for (int layer = 0; layer < mLayerCount; layer++) {
+                layerClusters.add(new ArrayList<Cluster<T>>());
+            }
+            for (Cluster<T> cluster : clusters) {
+                layerClusters.get(cluster.getLayer()).add(cluster);
+            }
+            List<ClusterRenderer.RenderPlan<T>> renderPlans = new ArrayList<>(mLayerCount);
+            for (int layer = 0; layer < mLayerCount; layer++) {
+                renderPlans.add(mRenderers.get(layer).diff(layerClusters.get(layer), centerLatitude, centerLongitude));
+            }
+            return renderPlans;
         }
 
-        @Override
-        protected void onPostExecute(@NonNull List<Cluster<T>> clusters) {
-            mRenderer.render(clusters);
-            mClusterTask = null;
+        // Called on the main thread.
+        private void checkCameraMoveBudget(long passNanos) {
+            if (mCameraMoveIntervalNanos == 0) {
+                return;
+            }
+            if (passNanos <= mCameraMoveBudgetNanos) {
+                mOverBudgetPasses = 0;
+            } else if (++mOverBudgetPasses == MAX_OVER_BUDGET_PASSES) {
+                // Too slow to follow the camera, e.g. too many items or markers for this device.
+                mCameraMoveIntervalNanos = 0;
+                mOverBudgetPasses = 0;
+            }
         }
     }
 }
@@ -0,0 +1,272 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tile aggregates of all points in a {@link QuadTree} for every integer zoom level from 0 to
+ * {@link #MAX_ZOOM}, computed once and then looked up for each visible region.
+ * <p>
+ * A zoom level uses the same {@link TileGrid} as the tile clustering in {@link ClusterManager},
+ * i.e. 2<sup>zoom + 1</sup> rows and columns, which makes its tiles the quads at depth zoom + 1.
+ * Each level stores its non-empty tiles sorted by Morton code, so a level doubles as an
+ * implicit quad tree: the tiles of any quad are a contiguous run found by binary search.
+ * A level is built from the level below by merging runs of four, without touching the points.
+ */
+class ClusterPyramid {
+
+    static final int MAX_ZOOM = 16;
+
+    // Per tile: one Morton code, one size and two coordinate sums.
+    private static final int BYTES_PER_TILE = 8 + 4 + 8 + 8;
+    private static final int BYTES_PER_ARRAY = 16;
+
+    private final Level[] levels = new Level[MAX_ZOOM + 1];
+
+    /**
+     * Receives the non-empty tiles of a region.
+     */
+    interface TileVisitor {
+        void visitTile(double north, double west, double south, double east,
+                       int size, double latitudeSum, double longitudeSum);
+    }
+
+    private static class Level {
+
+        final long[] keys;
+        final int[] sizes;
+        final double[] latitudeSums;
+        final double[] longitudeSums;
+        final int count;
+        final long buildTimeNanos;
+
+        Level(@NonNull long[] keys, @NonNull int[] sizes, @NonNull double[] latitudeSums,
+              @NonNull double[] longitudeSums, int count, long buildTimeNanos) {
+            this.keys = keys;
+            this.sizes = sizes;
+            this.latitudeSums = latitudeSums;
+            this.longitudeSums = longitudeSums;
+            this.count = count;
+            this.buildTimeNanos = buildTimeNanos;
+        }
+    }
+
+    ClusterPyramid(@NonNull QuadTree<?> quadTree) {
+        long startTime = System.nanoTime();
+
+        int count = quadTree.size();
+        TileGrid tileGrid = tileGrid(MAX_ZOOM);
+        long[] keys = new long[count];
+        int[] order = new int[count];
+        for (int point = 0; point < count; point++) {
+            long row = tileGrid.row(quadTree.latitudeAt(point));
+            long column = tileGrid.column(quadTree.longitudeAt(point));
+            keys[point] = (QuadTree.spreadBits((int) row) << 1) | QuadTree.spreadBits((int) column);
+            order[point] = point;
+        }
+        RadixSort.sort(keys, order, count, 2 * depth(MAX_ZOOM));
+
+        int[] sizes = new int[count];
+        double[] latitudeSums = new double[count];
+        double[] longitudeSums = new double[count];
+        int tileCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (tileCount == 0 || keys[tileCount - 1] != keys[i]) {
+                keys[tileCount] = keys[i];
+                tileCount++;
+            }
+            sizes[tileCount - 1]++;
+            latitudeSums[tileCount - 1] += quadTree.latitudeAt(order[i]);
+            longitudeSums[tileCount - 1] += quadTree.longitudeAt(order[i]);
+        }
+        levels[MAX_ZOOM] = new Level(trim(keys, tileCount), trim(sizes, tileCount),
+                trim(latitudeSums, tileCount), trim(longitudeSums, tileCount), tileCount,
+                System.nanoTime() - startTime);
+
+        for (int zoom = MAX_ZOOM - 1; zoom >= 0; zoom--) {
+            levels[zoom] = buildParentLevel(levels[zoom + 1]);
+        }
+    }
+
+    /**
+     * Reads a pyramid written by {@link #write(ByteBuffer)}, starting at the position of the buffer.
+     *
+     * @throws IllegalArgumentException if the tiles read are not sorted or lie outside their level
+     */
+    ClusterPyramid(@NonNull ByteBuffer buffer) {
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            int count = (int) buffer.getLong();
+            long buildTimeNanos = buffer.getLong();
+            levels[zoom] = new Level(IndexSnapshot.getLongs(buffer, count), IndexSnapshot.getInts(buffer, count),
+                    IndexSnapshot.getDoubles(buffer, count), IndexSnapshot.getDoubles(buffer, count),
+                    count, buildTimeNanos);
+
+            // The lookups rely on the order of the tiles, so a damaged level is rejected here.
+            long[] keys = levels[zoom].keys;
+            long previousKey = -1;
+            for (int tile = 0; tile < count; tile++) {
+                Preconditions.checkArgument(keys[tile] > previousKey && keys[tile] < 1L << 2 * depth(zoom));
+                previousKey = keys[tile];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer)} writes.
+     */
+    long snapshotBytes() {
+        long bytes = 0;
+        for (Level level : levels) {
+            bytes += 16 + IndexSnapshot.longBytes(level.count) + IndexSnapshot.intBytes(level.count)
+                    + 2 * IndexSnapshot.doubleBytes(level.count);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes all levels at the position of the buffer.
+     */
+    void write(@NonNull ByteBuffer buffer) {
+        for (Level level : levels) {
+            buffer.putLong(level.count);
+            buffer.putLong(level.buildTimeNanos);
+            IndexSnapshot.putLongs(buffer, level.keys, level.count);
+            IndexSnapshot.putInts(buffer, level.sizes, level.count);
+            IndexSnapshot.putDoubles(buffer, level.latitudeSums, level.count);
+            IndexSnapshot.putDoubles(buffer, level.longitudeSums, level.count);
+        }
+    }
+
+    /**
+     * Visits the non-empty tiles of the given zoom level that intersect the given region,
+     * plus one extra row and column to the south and east as in {@link ClusterManager}.
+     */
+    void visitTiles(int zoom, double north, double west, double south, double east,
+                    @NonNull TileVisitor visitor) {
+        Level level = levels[zoom];
+        TileGrid tileGrid = tileGrid(zoom);
+
+        int startRow = (int) tileGrid.clamp((long) ((QuadTree.ROOT_NORTH - north) / tileGrid.stepLatitude));
+        int endRow = (int) tileGrid.clamp((long) ((QuadTree.ROOT_NORTH - south) / tileGrid.stepLatitude) + 1);
+        int startColumn = (int) tileGrid.clamp((long) ((west - QuadTree.ROOT_WEST) / tileGrid.stepLongitude));
+        int endColumn = (int) tileGrid.clamp((long) ((east - QuadTree.ROOT_WEST) / tileGrid.stepLongitude) + 1);
+
+        visitTiles(level, tileGrid, depth(zoom), 0, 0, 0, 0, level.count,
+                startRow, endRow, startColumn, endColumn, visitor);
+    }
+
+    @NonNull
+    List<PyramidLevelStats> getLevelStats() {
+        List<PyramidLevelStats> levelStats = new ArrayList<>(levels.length);
+        for (int zoom = 0; zoom < levels.length; zoom++) {
+            Level level = levels[zoom];
+            long memoryBytes = (long) level.keys.length * BYTES_PER_TILE + 4 * BYTES_PER_ARRAY;
+            levelStats.add(new PyramidLevelStats(zoom, level.count, memoryBytes, level.buildTimeNanos));
+        }
+        return levelStats;
+    }
+
+    private void visitTiles(@NonNull Level level, @NonNull TileGrid tileGrid, int depth,
+                            int quadDepth, int quadRow, int quadColumn, int from, int to,
+                            int startRow, int endRow, int startColumn, int endColumn,
+                            @NonNull TileVisitor visitor) {
+        if (from == to) {
+            return;
+        }
+
+        // The rows and columns of the level covered by the quad.
+        int span = 1 << (depth - quadDepth);
+        int firstRow = quadRow * span;
+        int firstColumn = quadColumn * span;
+        if (firstRow > endRow || firstRow + span - 1 < startRow
+                || firstColumn > endColumn || firstColumn + span - 1 < startColumn) {
+            return;
+        }
+
+        if (firstRow >= startRow && firstRow + span - 1 <= endRow
+                && firstColumn >= startColumn && firstColumn + span - 1 <= endColumn) {
+            for (int tile = from; tile < to; tile++) {
+                long key = level.keys[tile];
+                int row = compactBits(key >>> 1);
+                int column = compactBits(key);
+                visitor.visitTile(tileGrid.north(row), tileGrid.west(column),
+                        tileGrid.south(row), tileGrid.east(column),
+                        level.sizes[tile], level.latitudeSums[tile], level.longitudeSums[tile]);
+            }
+            return;
+        }
+
+        int shift = 2 * (depth - quadDepth - 1);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : QuadTree.upperBound(level.keys, from, to, shift, quadrant);
+            visitTiles(level, tileGrid, depth, quadDepth + 1, 2 * quadRow + (quadrant >> 1),
+                    2 * quadColumn + (quadrant & 1), from, end, startRow, endRow,
+                    startColumn, endColumn, visitor);
+            from = end;
+        }
+    }
+
+    @NonNull
+    private static Level buildParentLevel(@NonNull Level child) {
+        long startTime = System.nanoTime();
+
+        // Morton order is preserved when dropping the lowest quadrant, so children are adjacent.
+        long[] keys = new long[child.count];
+        int[] sizes = new int[child.count];
+        double[] latitudeSums = new double[child.count];
+        double[] longitudeSums = new double[child.count];
+        int tileCount = 0;
+        for (int i = 0; i < child.count; i++) {
+            long key = child.keys[i] >>> 2;
+            if (tileCount == 0 || keys[tileCount - 1] != key) {
+                keys[tileCount] = key;
+                tileCount++;
+            }
+            sizes[tileCount - 1] += child.sizes[i];
+            latitudeSums[tileCount - 1] += child.latitudeSums[i];
+            longitudeSums[tileCount - 1] += child.longitudeSums[i];
+        }
+
+        return new Level(trim(keys, tileCount), trim(sizes, tileCount), trim(latitudeSums, tileCount),
+                trim(longitudeSums, tileCount), tileCount, System.nanoTime() - startTime);
+    }
+
+    private static int depth(int zoom) {
+        return zoom + 1;
+    }
+
+    @NonNull
+    private static TileGrid tileGrid(int zoom) {
+        return new TileGrid(1L << depth(zoom));
+    }
+
+    // Inverse of QuadTree's bit spreading: collects every other bit, starting with the lowest.
+    private static int compactBits(long bits) {
+        bits &= 0x5555555555555555L;
+        bits = (bits | (bits >>> 1)) & 0x3333333333333333L;
+        bits = (bits | (bits >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits >>> 4)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits >>> 8)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) bits;
+    }
+
+    @NonNull
+    private static long[] trim(@NonNull long[] array, int length) {
+        return array.length == length ? array : Arrays.copyOf(array, length);
+    }
+
+    @NonNull
+    private static int[] trim(@NonNull int[] array, int length) {
+        return array.length == length ? array : Arrays.copyOf(array, length);
+    }
+
+    @NonNull
+    private static double[] trim(@NonNull double[] array, int length) {
+        return array.length == length ? array : Arrays.copyOf(array, length);
+    }
+}
@@ -6,6 +6,8 @@ import android.animation.ObjectAnimator;
 import android.animation.TypeEvaluator;
 import android.content.Context;
 
+import android.view.Choreographer;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.interpolator.view.animation.FastOutSlowInInterpolator;
@@ -16,10 +18,14 @@ import com.huawei.hms.maps.model.LatLng;
 import com.huawei.hms.maps.model.Marker;
 import com.huawei.hms.maps.model.MarkerOptions;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickListener {
 
@@ -27,21 +33,136 @@ class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickL
 
     private static final int FOREGROUND_MARKER_Z_INDEX = 1;
 
-    private final HuaweiMap mHuaweiMap;
+    // Until shorter frames are seen.
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 16_666_667L;
 
-    private final List<Cluster<T>> mClusters = new ArrayList<>();
+    private final HuaweiMap mHuaweiMap;
 
+    // Only changed on the main thread by apply and over the frames after it, and read by diff in
+    // the background while no plan is applied, since pending frames are cancelled first.
     private final Map<Cluster<T>, MarkerState> mMarkers = new HashMap<>();
+    private int mMarkersVersion;
 
-    private IconGenerator<T> mIconGenerator;
+    // Used in the background by diff, which only generates icons if told to.
+    private volatile IconGenerator<T> mIconGenerator;
+    private volatile boolean mBackgroundIconGeneration;
 
     private RenderPostProcessor<T> mRenderPostProcessor;
 
     private ClusterManager.Callbacks<T> mCallbacks;
 
+    // Hidden markers kept for reuse, oldest first, and the animations running on markers, which
+    // are not pooled so that no animation moves a reused marker. Only used on the main thread.
+    private final ArrayDeque<Marker> mMarkerPool = new ArrayDeque<>();
+    private final Map<Marker, Animator> mMarkerAnimators = new HashMap<>();
+    private int mMaxMarkerPoolSize;
+
+    // The plan applied over frames, if any, and its next operation. Only used on the main thread.
+    private RenderPlan<T> mPendingPlan;
+    private int mNextOperation;
+    private long mFrameBudgetNanos;
+    private long mLastFrameTimeNanos;
+    private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyFrame(frameTimeNanos);
+        }
+    };
+
+    // Counted on the main thread.
+    private final RenderStats.Counts mCounts = new RenderStats.Counts();
+
+    /**
+     * The changes of the markers that render the clusters of a pass.
+     */
+    static final class RenderPlan<T extends ClusterItem> {
+
+        final List<Cluster<T>> clusters;
+        final double centerLatitude;
+        final double centerLongitude;
+        // The version of the markers the plan was computed for.
+        final int markersVersion;
+        // The removals, updates and additions, numbered in this order, to apply over frames
+        // nearest to the center first, or null if they are applied at once.
+        int[] operations;
+
+        // Clusters whose markers are removed, and the positions, as latitude and longitude, the
+        // markers move to first, or NaN if they are removed right away.
+        final List<Cluster<T>> removedClusters;
+        final double[] removedTargets;
+
+        // Clusters whose markers are kept but updated in place, whether more than their positions
+        // changed, and then their new icons, titles and snippets. Icons are null until apply
+        // generates them unless diff did.
+        final List<Cluster<T>> updatedClusters;
+        final boolean[] updatedContents;
+        final BitmapDescriptor[] updatedIcons;
+        final String[] updatedTitles;
+        final String[] updatedSnippets;
+        // The icon generator of the icons.
+        final IconGenerator<T> iconGenerator;
+
+        // Clusters of several items equal to those of markers that are kept as they are. Their
+        // markers are re-tagged with them, so that no marker holds on to the items, or the index,
+        // of an older pass. Single items are the same in both.
+        final List<Cluster<T>> keptClusters;
+
+        // Clusters whose markers are added, with their icons, null until apply generates them
+        // unless diff did, titles and snippets, and the positions the markers move from, or NaN
+        // if they fade in.
+        final List<Cluster<T>> addedClusters;
+        final BitmapDescriptor[] icons;
+        final String[] titles;
+        final String[] snippets;
+        final double[] addedOrigins;
+
+        RenderPlan(@NonNull List<Cluster<T>> clusters, double centerLatitude, double centerLongitude,
+                   int markersVersion,
+                   @NonNull List<Cluster<T>> removedClusters, @NonNull List<Cluster<T>> updatedClusters,
+                   @NonNull List<Cluster<T>> keptClusters, @NonNull IconGenerator<T> iconGenerator,
+                   @NonNull List<Cluster<T>> addedClusters) {
+            this.clusters = clusters;
+            this.centerLatitude = centerLatitude;
+            this.centerLongitude = centerLongitude;
+            this.markersVersion = markersVersion;
+            this.removedClusters = removedClusters;
+            removedTargets = new double[2 * removedClusters.size()];
+            Arrays.fill(removedTargets, Double.NaN);
+            this.updatedClusters = updatedClusters;
+            updatedContents = new boolean[updatedClusters.size()];
+            updatedIcons = new BitmapDescriptor[updatedClusters.size()];
+            updatedTitles = new String[updatedClusters.size()];
+            updatedSnippets = new String[updatedClusters.size()];
+            this.keptClusters = keptClusters;
+            this.iconGenerator = iconGenerator;
+            this.addedClusters = addedClusters;
+            icons = new BitmapDescriptor[addedClusters.size()];
+            titles = new String[addedClusters.size()];
+            snippets = new String[addedClusters.size()];
+            addedOrigins = new double[2 * addedClusters.size()];
+            Arrays.fill(addedOrigins, Double.NaN);
+        }
+
+        int operationCount() {
+            return removedClusters.size() + updatedClusters.size() + addedClusters.size();
+        }
+
+        @NonNull
+        Cluster<T> operationCluster(int operation) {
+            if (operation < removedClusters.size()) {
+                return removedClusters.get(operation);
+            }
+            operation -= removedClusters.size();
+            if (operation < updatedClusters.size()) {
+                return updatedClusters.get(operation);
+            }
+            return addedClusters.get(operation - updatedClusters.size());
+        }
+    }
+
     ClusterRenderer(@NonNull Context context, @NonNull HuaweiMap huaweiMap) {
         mHuaweiMap = huaweiMap;
-        mHuaweiMap.setOnMarkerClickListener(this);
         mIconGenerator = new DefaultIconGenerator<>(context);
         mRenderPostProcessor = new DefaultRenderPostProcessor<>();
     }
@@ -52,14 +173,12 @@ class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickL
         if (markerTag instanceof Cluster) {
             //noinspection unchecked
             Cluster<T> cluster = (Cluster<T>) marker.getTag();
-            //noinspection ConstantConditions
-            List<T> clusterItems = cluster.getItems();
-
             if (mCallbacks != null) {
-                if (clusterItems.size() > 1) {
+                //noinspection ConstantConditions
+                if (cluster.getSize() > 1) {
                     return mCallbacks.onClusterClick(cluster);
                 } else {
-                    return mCallbacks.onClusterItemClick(clusterItems.get(0));
+                    return mCallbacks.onClusterItemClick(cluster.getItems().get(0));
                 }
             }
         }
@@ -73,92 +192,395 @@ class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickL
 
     void setIconGenerator(@NonNull IconGenerator<T> iconGenerator) {
         mIconGenerator = iconGenerator;
+        // The markers on the map get icons of the new generator with the next pass.
+        for (MarkerState markerState : mMarkers.values()) {
+            markerState.setDirty(true);
+        }
+    }
+
+    void setBackgroundIconGeneration(boolean backgroundIconGeneration) {
+        mBackgroundIconGeneration = backgroundIconGeneration;
     }
 
     void setRenderPostProcessor(@NonNull RenderPostProcessor<T> renderPostProcessor) {
         mRenderPostProcessor = renderPostProcessor;
     }
 
-    void render(@NonNull List<Cluster<T>> clusters) {
+    /**
+     * Sets the time per frame the markers of a plan may be changed in, or 0 to change them at
+     * once.
+     */
+    void setFrameBudget(long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+    }
+
+    void setMaxMarkerPoolSize(int maxMarkerPoolSize) {
+        mMaxMarkerPoolSize = maxMarkerPoolSize;
+        trimMarkerPool(maxMarkerPoolSize);
+    }
+
+    /**
+     * Removes the oldest hidden markers from the map until at most the given number is left.
+     */
+    void trimMarkerPool(int size) {
+        while (mMarkerPool.size() > size) {
+            mMarkerPool.pollFirst().remove();
+            mCounts.removeMarkerCalls++;
+        }
+    }
+
+    int getMarkerPoolSize() {
+        return mMarkerPool.size();
+    }
+
+    @NonNull
+    RenderStats.Counts getCounts() {
+        return mCounts;
+    }
+
+    int getPendingOperationCount() {
+        return mPendingPlan == null ? 0 : mPendingPlan.operationCount() - mNextOperation;
+    }
+
+    /**
+     * Computes the changes of the markers that render the given clusters, including the icons,
+     * titles and snippets of new and updated markers, so that {@link #apply(RenderPlan)} only has
+     * to make them. Called on a background thread while no plan is applied, so it must not touch
+     * the map.
+     *
+     * @param centerLatitude  the latitude of the center of the visible region
+     * @param centerLongitude the longitude of the center of the visible region
+     */
+    @NonNull
+    RenderPlan<T> diff(@NonNull List<Cluster<T>> clusters, double centerLatitude, double centerLongitude) {
         List<Cluster<T>> clustersToAdd = new ArrayList<>();
+        List<Cluster<T>> clustersToUpdate = new ArrayList<>();
         List<Cluster<T>> clustersToRemove = new ArrayList<>();
+        List<Cluster<T>> clustersToKeep = new ArrayList<>();
 
+        // Clusters keep their markers while their items change, see Cluster#equals(Object).
         for (Cluster<T> cluster : clusters) {
-            if (!mMarkers.containsKey(cluster)) {
+            MarkerState markerState = mMarkers.get(cluster);
+            if (markerState == null) {
                 clustersToAdd.add(cluster);
+            } else if (markerState.isDirty() || isMoved(markerState, cluster) || isResized(markerState, cluster)) {
+                clustersToUpdate.add(cluster);
+            } else if (cluster.getSize() > 1 && getCluster(markerState) != cluster) {
+                clustersToKeep.add(cluster);
             }
         }
 
-        for (Cluster<T> cluster : mMarkers.keySet()) {
-            if (!clusters.contains(cluster)) {
+        Set<Cluster<T>> clusterSet = new HashSet<>(clusters);
+        for (MarkerState markerState : mMarkers.values()) {
+            Cluster<T> cluster = getCluster(markerState);
+            if (!clusterSet.contains(cluster)) {
                 clustersToRemove.add(cluster);
             }
         }
 
-        mClusters.addAll(clustersToAdd);
-        mClusters.removeAll(clustersToRemove);
+        IconGenerator<T> iconGenerator = mIconGenerator;
+        boolean generateIcons = mBackgroundIconGeneration;
+        RenderPlan<T> plan = new RenderPlan<>(clusters, centerLatitude, centerLongitude, mMarkersVersion,
+                clustersToRemove, clustersToUpdate, clustersToKeep, iconGenerator, clustersToAdd);
+
+        for (int i = 0; i < clustersToUpdate.size(); i++) {
+            Cluster<T> clusterToUpdate = clustersToUpdate.get(i);
+            MarkerState markerState = mMarkers.get(clusterToUpdate);
+            // A single item that moved may have changed otherwise too.
+            if (markerState.isDirty() || isResized(markerState, clusterToUpdate) || clusterToUpdate.getSize() == 1) {
+                plan.updatedContents[i] = true;
+                if (generateIcons) {
+                    plan.updatedIcons[i] = getMarkerIcon(iconGenerator, clusterToUpdate);
+                }
+                plan.updatedTitles[i] = getMarkerTitle(clusterToUpdate);
+                plan.updatedSnippets[i] = getMarkerSnippet(clusterToUpdate);
+            }
+        }
 
-        // Remove the old clusters.
-        for (Cluster<T> clusterToRemove : clustersToRemove) {
-            Marker markerToRemove = mMarkers.get(clusterToRemove).getMarker();
-            markerToRemove.setZIndex(BACKGROUND_MARKER_Z_INDEX);
+        // Removed clusters move into the new cluster containing them, e.g. when zooming out, and
+        // added clusters come out of the removed one containing them, e.g. when zooming in.
+        ClusterGrid<T> newClusters = new ClusterGrid<>(clusters);
+        ClusterGrid<T> removedClusters = new ClusterGrid<>(clustersToRemove);
 
-            Cluster<T> parentCluster = findParentCluster(mClusters, clusterToRemove.getLatitude(),
+        for (int i = 0; i < clustersToRemove.size(); i++) {
+            Cluster<T> clusterToRemove = clustersToRemove.get(i);
+            Cluster<T> parentCluster = newClusters.find(clusterToRemove.getLatitude(),
                     clusterToRemove.getLongitude());
             if (parentCluster != null) {
-                animateMarkerToLocation(markerToRemove, new LatLng(parentCluster.getLatitude(),
-                        parentCluster.getLongitude()), true);
-            } else {
-                markerToRemove.remove();
+                plan.removedTargets[2 * i] = parentCluster.getLatitude();
+                plan.removedTargets[2 * i + 1] = parentCluster.getLongitude();
             }
-
-            mMarkers.remove(clusterToRemove);
         }
 
-        // Add the new clusters.
-        for (Cluster<T> clusterToAdd : clustersToAdd) {
-            Marker markerToAdd;
-
-            BitmapDescriptor markerIcon = getMarkerIcon(clusterToAdd);
-            String markerTitle = getMarkerTitle(clusterToAdd);
-            String markerSnippet = getMarkerSnippet(clusterToAdd);
+        for (int i = 0; i < clustersToAdd.size(); i++) {
+            Cluster<T> clusterToAdd = clustersToAdd.get(i);
+            if (generateIcons) {
+                plan.icons[i] = getMarkerIcon(iconGenerator, clusterToAdd);
+            }
+            plan.titles[i] = getMarkerTitle(clusterToAdd);
+            plan.snippets[i] = getMarkerSnippet(clusterToAdd);
 
-            Cluster parentCluster = findParentCluster(clustersToRemove, clusterToAdd.getLatitude(),
+            Cluster<T> parentCluster = removedClusters.find(clusterToAdd.getLatitude(),
                     clusterToAdd.getLongitude());
             if (parentCluster != null) {
-                markerToAdd = mHuaweiMap.addMarker(new MarkerOptions()
-                        .position(new LatLng(parentCluster.getLatitude(), parentCluster.getLongitude()))
-                        .icon(markerIcon)
-                        .title(markerTitle)
-                        .snippet(markerSnippet)
-                        .zIndex(FOREGROUND_MARKER_Z_INDEX));
-                animateMarkerToLocation(markerToAdd,
-                        new LatLng(clusterToAdd.getLatitude(), clusterToAdd.getLongitude()), false);
-            } else {
-                markerToAdd = mHuaweiMap.addMarker(new MarkerOptions()
-                        .position(new LatLng(clusterToAdd.getLatitude(), clusterToAdd.getLongitude()))
-                        .icon(markerIcon)
-                        .title(markerTitle)
-                        .snippet(markerSnippet)
-                        .alpha(0.0F)
-                        .zIndex(FOREGROUND_MARKER_Z_INDEX));
-                animateMarkerAppearance(markerToAdd);
+                plan.addedOrigins[2 * i] = parentCluster.getLatitude();
+                plan.addedOrigins[2 * i + 1] = parentCluster.getLongitude();
+            }
+        }
+
+        if (mFrameBudgetNanos > 0) {
+            plan.operations = sortOperations(plan);
+        }
+        return plan;
+    }
+
+    // Orders the operations of the plan by the distance of their clusters to the center, by
+    // sorting the squared distances, whose float bits are ordered like them, with the operations
+    // in the low bits.
+    @NonNull
+    private static <T extends ClusterItem> int[] sortOperations(@NonNull RenderPlan<T> plan) {
+        int operationCount = plan.operationCount();
+        double longitudeScale = Math.cos(Math.toRadians(plan.centerLatitude));
+        long[] keys = new long[operationCount];
+        for (int operation = 0; operation < operationCount; operation++) {
+            Cluster<T> cluster = plan.operationCluster(operation);
+            double latitudeDistance = cluster.getLatitude() - plan.centerLatitude;
+            double longitudeDistance = Math.abs(cluster.getLongitude() - plan.centerLongitude);
+            if (longitudeDistance > 180.0) {
+                longitudeDistance = 360.0 - longitudeDistance;
+            }
+            longitudeDistance *= longitudeScale;
+            float distance = (float) (latitudeDistance * latitudeDistance + longitudeDistance * longitudeDistance);
+            keys[operation] = (long) Float.floatToIntBits(distance) << 32 | operation;
+        }
+        Arrays.sort(keys);
+        int[] operations = new int[operationCount];
+        for (int i = 0; i < operationCount; i++) {
+            operations[i] = (int) keys[i];
+        }
+        return operations;
+    }
+
+    /**
+     * Adds, updates and removes the markers as computed by {@link #diff(List, double, double)},
+     * at once or, with a frame budget, over the next frames. Cancels what is left of the plan
+     * applied before. Called on the main thread.
+     *
+     * @return the plan that was applied, computed again if the markers changed since
+     */
+    @NonNull
+    RenderPlan<T> apply(@NonNull RenderPlan<T> plan) {
+        cancel();
+        if (plan.markersVersion != mMarkersVersion) {
+            // Computed for markers that have changed since.
+            plan = diff(plan.clusters, plan.centerLatitude, plan.centerLongitude);
+        }
+        mMarkersVersion++;
+
+        // Cheap, so done at once rather than within the frame budget.
+        for (Cluster<T> clusterToKeep : plan.keptClusters) {
+            retag(clusterToKeep);
+        }
+
+        int operationCount = plan.operationCount();
+        if (plan.operations == null || mFrameBudgetNanos == 0) {
+            for (int operation = 0; operation < operationCount; operation++) {
+                applyOperation(plan, operation);
+            }
+            mCounts.operations += operationCount;
+            mCounts.frames++;
+        } else if (operationCount > 0) {
+            mPendingPlan = plan;
+            mNextOperation = 0;
+            mLastFrameTimeNanos = 0;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+        return plan;
+    }
+
+    /**
+     * Stops applying the plan over frames, e.g. since the markers are about to be diffed for a
+     * newer one. The markers changed so far stay. Called on the main thread.
+     */
+    void cancel() {
+        if (mPendingPlan != null) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mPendingPlan = null;
+        }
+    }
+
+    private void applyFrame(long frameTimeNanos) {
+        RenderPlan<T> plan = mPendingPlan;
+        if (plan == null) {
+            return;
+        }
+        if (mLastFrameTimeNanos != 0 && frameTimeNanos > mLastFrameTimeNanos) {
+            // Frames of the display are the shortest seen, any longer ones dropped some.
+            long frameIntervalNanos = frameTimeNanos - mLastFrameTimeNanos;
+            mFrameIntervalNanos = Math.min(mFrameIntervalNanos, frameIntervalNanos);
+            mCounts.droppedFrames += Math.max(Math.round((double) frameIntervalNanos / mFrameIntervalNanos) - 1, 0);
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+
+        // At least one operation per frame, so that any budget makes progress.
+        long deadline = System.nanoTime() + mFrameBudgetNanos;
+        int operationCount = plan.operationCount();
+        int firstOperation = mNextOperation;
+        do {
+            applyOperation(plan, plan.operations[mNextOperation++]);
+        } while (mNextOperation < operationCount && System.nanoTime() < deadline);
+        mCounts.operations += mNextOperation - firstOperation;
+        mCounts.frames++;
+
+        if (mNextOperation < operationCount) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            mPendingPlan = null;
+        }
+    }
+
+    private void applyOperation(@NonNull RenderPlan<T> plan, int operation) {
+        if (operation < plan.removedClusters.size()) {
+            removeCluster(plan, operation);
+            return;
+        }
+        operation -= plan.removedClusters.size();
+        if (operation < plan.updatedClusters.size()) {
+            updateCluster(plan, operation);
+            return;
+        }
+        addCluster(plan, operation - plan.updatedClusters.size());
+    }
+
+    private void removeCluster(@NonNull RenderPlan<T> plan, int i) {
+        Marker markerToRemove = mMarkers.remove(plan.removedClusters.get(i)).getMarker();
+        markerToRemove.setZIndex(BACKGROUND_MARKER_Z_INDEX);
+
+        if (!Double.isNaN(plan.removedTargets[2 * i])) {
+            animateMarkerToLocation(markerToRemove,
+                    new LatLng(plan.removedTargets[2 * i], plan.removedTargets[2 * i + 1]), true);
+        } else {
+            removeMarker(markerToRemove);
+        }
+        mCounts.removed++;
+    }
+
+    // Updates the marker of a changed cluster in place.
+    private void updateCluster(@NonNull RenderPlan<T> plan, int i) {
+        Cluster<T> clusterToUpdate = plan.updatedClusters.get(i);
+        MarkerState markerState = mMarkers.get(clusterToUpdate);
+        Marker markerToUpdate = markerState.getMarker();
+        boolean moved = isMoved(markerState, clusterToUpdate);
+        retag(clusterToUpdate);
+
+        if (moved) {
+            animateMarkerToLocation(markerToUpdate,
+                    new LatLng(clusterToUpdate.getLatitude(), clusterToUpdate.getLongitude()), false);
+        }
+        if (plan.updatedContents[i]) {
+            BitmapDescriptor icon = plan.updatedIcons[i];
+            markerToUpdate.setIcon(icon != null ? icon : getMarkerIcon(plan.iconGenerator, clusterToUpdate));
+            markerToUpdate.setTitle(plan.updatedTitles[i]);
+            markerToUpdate.setSnippet(plan.updatedSnippets[i]);
+            // Still dirty if the icon generator was replaced after the diff.
+            if (plan.iconGenerator == mIconGenerator) {
+                markerState.setDirty(false);
             }
-            markerToAdd.setTag(clusterToAdd);
+        }
+        mCounts.updated++;
+    }
 
-            mMarkers.put(clusterToAdd, new MarkerState(markerToAdd));
+    // Makes the given cluster the key, tag and cluster of the marker of the equal cluster it
+    // replaces. The key has to be replaced as well, since the map keeps the key it first got.
+    private void retag(@NonNull Cluster<T> cluster) {
+        MarkerState markerState = mMarkers.remove(cluster);
+        mMarkers.put(cluster, markerState);
+        markerState.getMarker().setTag(cluster);
+        markerState.setCluster(cluster);
+    }
+
+    private void addCluster(@NonNull RenderPlan<T> plan, int i) {
+        Cluster<T> clusterToAdd = plan.addedClusters.get(i);
+        BitmapDescriptor icon = plan.icons[i] != null ? plan.icons[i] : getMarkerIcon(plan.iconGenerator, clusterToAdd);
+        Marker markerToAdd;
+
+        if (!Double.isNaN(plan.addedOrigins[2 * i])) {
+            markerToAdd = addMarker(new LatLng(plan.addedOrigins[2 * i], plan.addedOrigins[2 * i + 1]),
+                    icon, plan.titles[i], plan.snippets[i], 1.0F);
+            animateMarkerToLocation(markerToAdd,
+                    new LatLng(clusterToAdd.getLatitude(), clusterToAdd.getLongitude()), false);
+        } else {
+            markerToAdd = addMarker(new LatLng(clusterToAdd.getLatitude(), clusterToAdd.getLongitude()),
+                    icon, plan.titles[i], plan.snippets[i], 0.0F);
+            animateMarkerAppearance(markerToAdd);
         }
+        markerToAdd.setTag(clusterToAdd);
+
+        mMarkers.put(clusterToAdd, new MarkerState(markerToAdd, clusterToAdd));
+        mCounts.added++;
     }
 
+    // Shows a hidden marker from the pool, or adds a new one if the pool is empty.
     @NonNull
-    private BitmapDescriptor getMarkerIcon(@NonNull Cluster<T> cluster) {
+    private Marker addMarker(@NonNull LatLng position, @NonNull BitmapDescriptor icon,
+                             @Nullable String title, @Nullable String snippet, float alpha) {
+        Marker marker = mMarkerPool.pollLast();
+        if (marker == null) {
+            mCounts.addMarkerCalls++;
+            return mHuaweiMap.addMarker(new MarkerOptions()
+                    .position(position)
+                    .icon(icon)
+                    .title(title)
+                    .snippet(snippet)
+                    .alpha(alpha)
+                    .zIndex(FOREGROUND_MARKER_Z_INDEX));
+        }
+        marker.setPosition(position);
+        marker.setIcon(icon);
+        marker.setTitle(title);
+        marker.setSnippet(snippet);
+        marker.setAlpha(alpha);
+        marker.setZIndex(FOREGROUND_MARKER_Z_INDEX);
+        marker.setVisible(true);
+        return marker;
+    }
+
+    // Hides the marker and keeps it for reuse, or removes it if the pool is full.
+    private void removeMarker(@NonNull Marker marker) {
+        if (mMarkerPool.size() < mMaxMarkerPoolSize && !mMarkerAnimators.containsKey(marker)) {
+            marker.setVisible(false);
+            marker.setTag(null);
+            mMarkerPool.addLast(marker);
+        } else {
+            marker.remove();
+            mCounts.removeMarkerCalls++;
+        }
+    }
+
+    @NonNull
+    private Cluster<T> getCluster(@NonNull MarkerState markerState) {
+        //noinspection unchecked
+        return (Cluster<T>) Preconditions.checkNotNull(markerState.getCluster());
+    }
+
+    private boolean isMoved(@NonNull MarkerState markerState, @NonNull Cluster<T> cluster) {
+        Cluster<T> renderedCluster = getCluster(markerState);
+        return renderedCluster.getLatitude() != cluster.getLatitude()
+                || renderedCluster.getLongitude() != cluster.getLongitude();
+    }
+
+    private boolean isResized(@NonNull MarkerState markerState, @NonNull Cluster<T> cluster) {
+        return getCluster(markerState).getSize() != cluster.getSize();
+    }
+
+    @NonNull
+    private BitmapDescriptor getMarkerIcon(@NonNull IconGenerator<T> iconGenerator, @NonNull Cluster<T> cluster) {
         BitmapDescriptor clusterIcon;
 
-        List<T> clusterItems = cluster.getItems();
-        if (clusterItems.size() > 1) {
-            clusterIcon = mIconGenerator.getClusterIcon(cluster);
+        if (cluster.getSize() > 1) {
+            clusterIcon = iconGenerator.getClusterIcon(cluster);
         } else {
-            clusterIcon = mIconGenerator.getMarkerIcon(clusterItems.get(0));
+            clusterIcon = iconGenerator.getMarkerIcon(cluster.getItems().get(0));
         }
 
         return Preconditions.checkNotNull(clusterIcon);
@@ -166,36 +588,22 @@ class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickL
 
     @Nullable
     private String getMarkerTitle(@NonNull Cluster<T> cluster) {
-        List<T> clusterItems = cluster.getItems();
-        if (clusterItems.size() > 1) {
+        if (cluster.getSize() > 1) {
             return null;
         } else {
-            return clusterItems.get(0).getTitle();
+            return cluster.getItems().get(0).getTitle();
         }
     }
 
     @Nullable
     private String getMarkerSnippet(@NonNull Cluster<T> cluster) {
-        List<T> clusterItems = cluster.getItems();
-        if (clusterItems.size() > 1) {
+        if (cluster.getSize() > 1) {
             return null;
         } else {
-            return clusterItems.get(0).getSnippet();
+            return cluster.getItems().get(0).getSnippet();
         }
     }
 
-    @Nullable
-    private Cluster<T> findParentCluster(@NonNull List<Cluster<T>> clusters,
-                                         double latitude, double longitude) {
-        for (Cluster<T> cluster : clusters) {
-            if (cluster.contains(latitude, longitude)) {
-                return cluster;
-            }
-        }
-
-        return null;
-    }
-
     private void animateMarkerToLocation(@NonNull final Marker marker, @NonNull LatLng targetLocation,
                                          final boolean removeAfter) {
         ObjectAnimator objectAnimator = ObjectAnimator.ofObject(marker, "position",
@@ -204,16 +612,36 @@ class ClusterRenderer<T extends ClusterItem> implements HuaweiMap.OnMarkerClickL
         objectAnimator.addListener(new AnimatorListenerAdapter() {
             @Override
             public void onAnimationEnd(Animator animation) {
+                onMarkerAnimationEnd(marker, animation);
                 if (removeAfter) {
-                    marker.remove();
+                    removeMarker(marker);
                 }
             }
         });
-        objectAnimator.start();
+        startMarkerAnimation(marker, objectAnimator);
+    }
+
+    private void animateMarkerAppearance(@NonNull final Marker marker) {
+        ObjectAnimator objectAnimator = ObjectAnimator.ofFloat(marker, "alpha", 1.0F);
+        objectAnimator.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                onMarkerAnimationEnd(marker, animation);
+            }
+        });
+        startMarkerAnimation(marker, objectAnimator);
     }
 
-    private void animateMarkerAppearance(@NonNull Marker marker) {
-        ObjectAnimator.ofFloat(marker, "alpha", 1.0F).start();
+    private void startMarkerAnimation(@NonNull Marker marker, @NonNull Animator animator) {
+        mMarkerAnimators.put(marker, animator);
+        animator.start();
+    }
+
+    private void onMarkerAnimationEnd(@NonNull Marker marker, @NonNull Animator animator) {
+        // A later animation of the marker may still be running.
+        if (mMarkerAnimators.get(marker) == animator) {
+            mMarkerAnimators.remove(marker);
+        }
     }
 
     private static class LatLngTypeEvaluator implements TypeEvaluator<LatLng> {
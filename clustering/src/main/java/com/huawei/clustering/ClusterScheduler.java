@@ -0,0 +1,167 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background work of {@link ClusterManager}s, i.e. indexing and clustering, and
+ * delivers its results on the main thread. Pass one to
+ * {@link ClusterManager#ClusterManager(android.content.Context, com.huawei.hms.maps.HuaweiMap, ClusterScheduler)}
+ * to share threads between managers or to control where work runs.
+ * <p>
+ * The work of a single manager never runs concurrently, whatever the scheduler, so one manager
+ * uses at most one thread at a time, except for the parallel work set up with
+ * {@link ClusterManager#setParallelism(int)}, which runs on {@link #getForkJoinPool()}. A
+ * scheduler can be shared by any number of managers.
+ */
+public abstract class ClusterScheduler {
+
+    // Like AsyncTask: enough threads for a few managers, while leaving a core for the UI.
+    private static final int DEFAULT_THREAD_COUNT =
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ClusterScheduler sDefault;
+    private static ForkJoinPool sDefaultForkJoinPool;
+
+    /**
+     * Runs a task on a background thread.
+     *
+     * @param task the task to run
+     */
+    public abstract void executeInBackground(@NonNull Runnable task);
+
+    /**
+     * Runs a task on the main thread, after the tasks passed before.
+     *
+     * @param task the task to run
+     */
+    public abstract void executeOnMainThread(@NonNull Runnable task);
+
+    /**
+     * Frees the threads owned by the scheduler. Managers using the scheduler must not be used
+     * afterwards.
+     */
+    public abstract void release();
+
+    /**
+     * Returns the pool that the parallel work of managers using this scheduler runs on. Unless
+     * the scheduler was created with one, this is a pool with a thread per available processor
+     * shared by the whole app, whose threads stop when idle.
+     *
+     * @return the pool running parallel work
+     */
+    @NonNull
+    public ForkJoinPool getForkJoinPool() {
+        synchronized (ClusterScheduler.class) {
+            if (sDefaultForkJoinPool == null) {
+                sDefaultForkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            }
+            return sDefaultForkJoinPool;
+        }
+    }
+
+    /**
+     * Returns the scheduler used by managers that are not given one: a pool of a few threads
+     * shared by the whole app, whose threads stop when idle. Releasing it has no effect.
+     *
+     * @return the shared scheduler
+     */
+    @NonNull
+    public static synchronized ClusterScheduler getDefault() {
+        if (sDefault == null) {
+            ExecutorService pool = newThreadPool(DEFAULT_THREAD_COUNT, "ClusterScheduler");
+            sDefault = new ExecutorClusterScheduler(pool, new MainThreadExecutor(), null);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Creates a scheduler with its own pool of threads, which stop when idle and are shut down by
+     * {@link #release()}.
+     *
+     * @param threadCount the maximum number of threads
+     * @return the new scheduler
+     */
+    @NonNull
+    public static ClusterScheduler newThreadPool(int threadCount) {
+        Preconditions.checkArgument(threadCount > 0);
+        ExecutorService pool = newThreadPool(threadCount, "ClusterScheduler");
+        return new ExecutorClusterScheduler(pool, new MainThreadExecutor(), pool);
+    }
+
+    /**
+     * Creates a scheduler that runs background work on the given executor, e.g. one shared with
+     * other parts of the app. The executor is owned by the caller and not shut down by
+     * {@link #release()}.
+     *
+     * @param backgroundExecutor the executor running background work
+     * @return the new scheduler
+     */
+    @NonNull
+    public static ClusterScheduler create(@NonNull Executor backgroundExecutor) {
+        return new ExecutorClusterScheduler(Preconditions.checkNotNull(backgroundExecutor),
+                new MainThreadExecutor(), null);
+    }
+
+    /**
+     * Creates a scheduler that runs background work and delivers results on the given executors.
+     * It does not depend on Android, so it can also run in a plain JVM, e.g. in tests. The
+     * executors are owned by the caller and not shut down by {@link #release()}.
+     *
+     * @param backgroundExecutor the executor running background work
+     * @param mainThreadExecutor the executor delivering results, in order
+     * @return the new scheduler
+     */
+    @NonNull
+    public static ClusterScheduler create(@NonNull Executor backgroundExecutor,
+                                          @NonNull Executor mainThreadExecutor) {
+        return new ExecutorClusterScheduler(Preconditions.checkNotNull(backgroundExecutor),
+                Preconditions.checkNotNull(mainThreadExecutor), null);
+    }
+
+    /**
+     * Like {@link #create(Executor, Executor)}, but runs the parallel work of managers on the
+     * given pool, e.g. one shared with other parts of the app. The pool is owned by the caller
+     * and not shut down by {@link #release()}.
+     *
+     * @param backgroundExecutor the executor running background work
+     * @param mainThreadExecutor the executor delivering results, in order
+     * @param forkJoinPool       the pool running parallel work
+     * @return the new scheduler
+     */
+    @NonNull
+    public static ClusterScheduler create(@NonNull Executor backgroundExecutor,
+                                          @NonNull Executor mainThreadExecutor,
+                                          @NonNull ForkJoinPool forkJoinPool) {
+        return new ExecutorClusterScheduler(Preconditions.checkNotNull(backgroundExecutor),
+                Preconditions.checkNotNull(mainThreadExecutor), null,
+                Preconditions.checkNotNull(forkJoinPool));
+    }
+
+    @NonNull
+    private static ExecutorService newThreadPool(int threadCount, @NonNull final String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + " #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,27 @@
+package com.huawei.clustering;
+
+/**
+ * Selects how {@link ClusterManager} computes clusters for the visible region.
+ */
+public enum ClusteringStrategy {
+    /**
+     * Splits the visible region into tiles for the current zoom level and aggregates the items
+     * of each tile from the spatial index whenever clustering is requested. This is the default.
+     */
+    TILE_GRID,
+
+    /**
+     * Like {@link #TILE_GRID}, but looks up all items of the visible region at once and then
+     * assigns each of them to its tile. Visits every visible item, so it is only worth it when
+     * the visible tiles hold few items each; otherwise {@link #TILE_GRID} is faster.
+     */
+    TILE_BINNING,
+
+    /**
+     * Aggregates the items into tiles for every integer zoom level once after the items change,
+     * so that clustering only looks up the precomputed tiles of the visible region. Uses more
+     * memory than {@link #TILE_GRID}; see {@link ClusterManager#getPyramidLevelStats()}.
+     * Above the highest precomputed zoom level, clusters are computed as with {@link #TILE_GRID}.
+     */
+    PYRAMID
+}
@@ -21,6 +21,9 @@ import com.huawei.hms.maps.model.BitmapDescriptorFactory;
  * The implementation of {@link IconGenerator} that generates icons with the default style
  * and caches them for subsequent use. To customize the style of generated icons use
  * {@link DefaultIconGenerator#setIconStyle(IconStyle)}.
+ * <p>
+ * It is thread-safe, so it can be used with background icon generation, see
+ * {@link ClusterManager#setBackgroundIconGeneration(boolean)}.
  */
 public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerator<T> {
 
@@ -28,7 +31,10 @@ public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerato
 
     private final Context mContext;
 
-    private IconStyle mIconStyle;
+    // Guards the cached icons and the style, so that no icon is cached with a replaced style.
+    private final Object mLock = new Object();
+
+    private volatile IconStyle mIconStyle;
 
     private BitmapDescriptor mClusterItemIcon;
 
@@ -43,12 +49,18 @@ public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerato
     }
 
     /**
-     * Sets a custom icon style used to generate marker icons.
+     * Sets a custom icon style used to generate marker icons. Icons cached with the previous
+     * style are dropped.
      *
      * @param iconStyle the custom icon style used to generate marker icons
      */
     public void setIconStyle(@NonNull IconStyle iconStyle) {
-        mIconStyle = Preconditions.checkNotNull(iconStyle);
+        Preconditions.checkNotNull(iconStyle);
+        synchronized (mLock) {
+            mIconStyle = iconStyle;
+            mClusterItemIcon = null;
+            mClusterIcons.clear();
+        }
     }
 
     /**
@@ -59,14 +71,16 @@ public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerato
     @NonNull
     public BitmapDescriptor getClusterIcon(@NonNull Cluster<T> cluster) {
         int clusterBucket = getClusterIconBucket(cluster);
-        BitmapDescriptor clusterIcon = mClusterIcons.get(clusterBucket);
+        synchronized (mLock) {
+            BitmapDescriptor clusterIcon = mClusterIcons.get(clusterBucket);
 
-        if (clusterIcon == null) {
-            clusterIcon = createClusterIcon(clusterBucket);
-            mClusterIcons.put(clusterBucket, clusterIcon);
-        }
+            if (clusterIcon == null) {
+                clusterIcon = createClusterIcon(clusterBucket);
+                mClusterIcons.put(clusterBucket, clusterIcon);
+            }
 
-        return clusterIcon;
+            return clusterIcon;
+        }
     }
 
     /**
@@ -77,10 +91,12 @@ public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerato
     @NonNull
     @Override
     public BitmapDescriptor getMarkerIcon(@NonNull T clusterItem) {
-        if (mClusterItemIcon == null) {
-            mClusterItemIcon = createClusterItemIcon();
+        synchronized (mLock) {
+            if (mClusterItemIcon == null) {
+                mClusterItemIcon = createClusterItemIcon();
+            }
+            return mClusterItemIcon;
         }
-        return mClusterItemIcon;
     }
 
     @NonNull
@@ -129,7 +145,7 @@ public class DefaultIconGenerator<T extends ClusterItem> implements IconGenerato
     }
 
     private int getClusterIconBucket(@NonNull Cluster<T> cluster) {
-        int itemCount = cluster.getItems().size();
+        int itemCount = cluster.getSize();
         if (itemCount <= CLUSTER_ICON_BUCKETS[0]) {
             return itemCount;
         }
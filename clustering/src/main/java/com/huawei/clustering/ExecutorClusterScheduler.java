@@ -0,0 +1,57 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@link ClusterScheduler} running tasks on two executors, optionally owning the background
+ * one, and parallel work on the given pool or the default one. Does not touch Android classes
+ * itself, only through the executors it is given.
+ */
+final class ExecutorClusterScheduler extends ClusterScheduler {
+
+    private final Executor mBackgroundExecutor;
+    private final Executor mMainThreadExecutor;
+    private final ExecutorService mOwnedExecutor;
+    private final ForkJoinPool mForkJoinPool;
+
+    ExecutorClusterScheduler(@NonNull Executor backgroundExecutor, @NonNull Executor mainThreadExecutor,
+                             @Nullable ExecutorService ownedExecutor) {
+        this(backgroundExecutor, mainThreadExecutor, ownedExecutor, null);
+    }
+
+    ExecutorClusterScheduler(@NonNull Executor backgroundExecutor, @NonNull Executor mainThreadExecutor,
+                             @Nullable ExecutorService ownedExecutor, @Nullable ForkJoinPool forkJoinPool) {
+        mBackgroundExecutor = backgroundExecutor;
+        mMainThreadExecutor = mainThreadExecutor;
+        mOwnedExecutor = ownedExecutor;
+        mForkJoinPool = forkJoinPool;
+    }
+
+    @Override
+    public void executeInBackground(@NonNull Runnable task) {
+        mBackgroundExecutor.execute(task);
+    }
+
+    @Override
+    public void executeOnMainThread(@NonNull Runnable task) {
+        mMainThreadExecutor.execute(task);
+    }
+
+    @NonNull
+    @Override
+    public ForkJoinPool getForkJoinPool() {
+        return mForkJoinPool != null ? mForkJoinPool : super.getForkJoinPool();
+    }
+
+    @Override
+    public void release() {
+        if (mOwnedExecutor != null) {
+            mOwnedExecutor.shutdown();
+        }
+    }
+}
@@ -7,6 +7,12 @@ import com.huawei.hms.maps.model.BitmapDescriptor;
 /**
  * Generates icons for clusters and cluster items. Note that its implementations
  * should cache generated icons for subsequent use.
+ * <p>
+ * Icons are generated on the main thread while markers are added or updated, unless background
+ * icon generation is turned on with {@link ClusterManager#setBackgroundIconGeneration(boolean)}.
+ * Then its methods may be called from background threads, possibly concurrently, e.g. when
+ * managers sharing a {@link ClusterScheduler} share an icon generator, and must not touch views
+ * that are attached to a window.
  */
 public interface IconGenerator<T extends ClusterItem> {
     /**c
@@ -0,0 +1,112 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A map from objects, compared by identity, to non-negative ints. Entries are kept in flat
+ * arrays with open addressing and linear probing, so that neither keys nor values are boxed.
+ */
+class IdentityIntMap {
+
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] keys;
+    private int[] values;
+    private int size;
+
+    IdentityIntMap(int expectedSize) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new Object[capacity];
+        values = new int[capacity];
+    }
+
+    IdentityIntMap(@NonNull IdentityIntMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    /**
+     * Returns the value of the given key, or {@link #NONE} if there is none.
+     */
+    int get(@NonNull Object key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+        }
+        return NONE;
+    }
+
+    void put(@NonNull Object key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        if (2 * size > keys.length) {
+            resize(2 * keys.length);
+        }
+    }
+
+    void remove(@NonNull Object key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == null) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // Shift later entries of the probe sequence back, so that no lookup stops at the hole.
+        int hole = slot;
+        for (slot = (slot + 1) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            int home = hash(keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        keys[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new Object[capacity];
+        values = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(@NonNull Object key) {
+        int hash = System.identityHashCode(key) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
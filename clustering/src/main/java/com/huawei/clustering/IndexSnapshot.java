@@ -0,0 +1,248 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link QuadTree}, and its {@link ClusterPyramid} if one was built, saved to a file, so that
+ * the same items do not have to be indexed again after a restart.
+ * <p>
+ * The file is memory-mapped and the arrays of the index are copied out of it in bulk, without
+ * parsing or sorting anything. Items are not saved; points refer to their position in the list
+ * of items instead, so the same list has to be passed when reading.
+ * <p>
+ * A header identifies the format, the version of the items given by the app, the number of
+ * items, the limits and the number of layers of the tree, and whether a pyramid follows the tree.
+ * A file that does not match is stale and is ignored. The header is only written once the rest
+ * of the file is on disk, and holds a checksum of itself, so a file torn by a crash is detected
+ * without reading it all. The rest is not checksummed; instead the links of the tree and the
+ * order of the pyramid are checked as they are read, so a damaged file cannot fail a later query.
+ */
+final class IndexSnapshot<T extends QuadTreePoint> {
+
+    private static final int MAGIC = 0x48434958;
+    private static final int FORMAT_VERSION = 4;
+
+    private static final int FLAG_CLUSTER_PYRAMID = 1;
+
+    // Magic, format version, data version, item count, bucket size, maximum depth, layer count,
+    // payload length, flags and the checksum of the fields before it, padded so that the payload
+    // starts aligned.
+    private static final int HEADER_BYTES = 56;
+    private static final int HEADER_CHECKSUM_OFFSET = 48;
+
+    final QuadTree<T> quadTree;
+    @Nullable
+    final ClusterPyramid clusterPyramid;
+
+    private IndexSnapshot(@NonNull QuadTree<T> quadTree, @Nullable ClusterPyramid clusterPyramid) {
+        this.quadTree = quadTree;
+        this.clusterPyramid = clusterPyramid;
+    }
+
+    /**
+     * Reads the index of the given items from the given file.
+     *
+     * @return the index, or null if there is no file or it was saved for other items, limits or
+     * layer count
+     * @throws IllegalArgumentException if the index read is damaged
+     */
+    @Nullable
+    static <T extends QuadTreePoint> IndexSnapshot<T> read(@NonNull File file, long dataVersion,
+                                                           @NonNull List<T> items, int bucketSize,
+                                                           int maxDepth, int layerCount) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long length = channel.size();
+            if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION
+                    || buffer.getLong(8) != dataVersion || buffer.getInt(16) != items.size()
+                    || buffer.getInt(20) != bucketSize || buffer.getInt(24) != maxDepth
+                    || buffer.getInt(28) != layerCount
+                    || buffer.getLong(32) != length - HEADER_BYTES
+                    || buffer.getLong(HEADER_CHECKSUM_OFFSET) != checksum(buffer, 0, HEADER_CHECKSUM_OFFSET)) {
+                return null;
+            }
+
+            buffer.position(HEADER_BYTES);
+            QuadTree<T> quadTree = QuadTree.read(buffer, items);
+            ClusterPyramid clusterPyramid = (buffer.getInt(40) & FLAG_CLUSTER_PYRAMID) != 0
+                    ? new ClusterPyramid(buffer) : null;
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            return new IndexSnapshot<>(quadTree, clusterPyramid);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Saves the index of the given items, with the pyramid if it is not null, to the given file.
+     * The file is written next to its final location and then renamed, so a reader never sees it
+     * half written.
+     */
+    static <T extends QuadTreePoint> void write(@NonNull File file, long dataVersion,
+                                                @NonNull List<T> items, @NonNull QuadTree<T> quadTree,
+                                                @Nullable ClusterPyramid clusterPyramid) throws IOException {
+        IdentityIntMap itemPositions = new IdentityIntMap(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            itemPositions.put(items.get(i), i);
+        }
+
+        long payloadBytes = quadTree.snapshotBytes()
+                + (clusterPyramid == null ? 0 : clusterPyramid.snapshotBytes());
+        if (HEADER_BYTES + payloadBytes > Integer.MAX_VALUE) {
+            throw new IOException("Index too large to map: " + payloadBytes + " bytes");
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw");
+        try {
+            randomAccessFile.setLength(HEADER_BYTES + payloadBytes);
+            MappedByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + payloadBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.position(HEADER_BYTES);
+            quadTree.write(buffer, itemPositions);
+            if (clusterPyramid != null) {
+                clusterPyramid.write(buffer);
+            }
+            // The payload reaches the disk before the header that makes the file valid.
+            buffer.force();
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putLong(8, dataVersion);
+            buffer.putInt(16, items.size());
+            buffer.putInt(20, quadTree.bucketSize());
+            buffer.putInt(24, quadTree.maxDepth());
+            buffer.putInt(28, quadTree.layerCount());
+            buffer.putLong(32, payloadBytes);
+            buffer.putInt(40, clusterPyramid == null ? 0 : FLAG_CLUSTER_PYRAMID);
+            buffer.putLong(HEADER_CHECKSUM_OFFSET, checksum(buffer, 0, HEADER_CHECKSUM_OFFSET));
+            buffer.force();
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            tempFile.delete();
+            throw e;
+        }
+        randomAccessFile.close();
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
+    }
+
+    static long byteBytes(int count) {
+        return align(count);
+    }
+
+    static long intBytes(int count) {
+        return align(4L * count);
+    }
+
+    static long longBytes(int count) {
+        return 8L * count;
+    }
+
+    static long doubleBytes(int count) {
+        return 8L * count;
+    }
+
+    // The array helpers go through views of the buffer, which copy in bulk instead of per value.
+
+    static void putBytes(@NonNull ByteBuffer buffer, @NonNull byte[] values, int count) {
+        buffer.duplicate().put(values, 0, count);
+        skip(buffer, byteBytes(count));
+    }
+
+    static void putInts(@NonNull ByteBuffer buffer, @NonNull int[] values, int count) {
+        buffer.asIntBuffer().put(values, 0, count);
+        skip(buffer, intBytes(count));
+    }
+
+    static void putLongs(@NonNull ByteBuffer buffer, @NonNull long[] values, int count) {
+        buffer.asLongBuffer().put(values, 0, count);
+        skip(buffer, longBytes(count));
+    }
+
+    static void putDoubles(@NonNull ByteBuffer buffer, @NonNull double[] values, int count) {
+        buffer.asDoubleBuffer().put(values, 0, count);
+        skip(buffer, doubleBytes(count));
+    }
+
+    @NonNull
+    static byte[] getBytes(@NonNull ByteBuffer buffer, int count) {
+        byte[] values = new byte[count];
+        buffer.duplicate().get(values);
+        skip(buffer, byteBytes(count));
+        return values;
+    }
+
+    @NonNull
+    static int[] getInts(@NonNull ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        skip(buffer, intBytes(count));
+        return values;
+    }
+
+    @NonNull
+    static long[] getLongs(@NonNull ByteBuffer buffer, int count) {
+        long[] values = new long[count];
+        buffer.asLongBuffer().get(values);
+        skip(buffer, longBytes(count));
+        return values;
+    }
+
+    @NonNull
+    static double[] getDoubles(@NonNull ByteBuffer buffer, int count) {
+        double[] values = new double[count];
+        buffer.asDoubleBuffer().get(values);
+        skip(buffer, doubleBytes(count));
+        return values;
+    }
+
+    private static void skip(@NonNull ByteBuffer buffer, long bytes) {
+        buffer.position(buffer.position() + (int) bytes);
+    }
+
+    // Keeps every array 8-byte aligned, so that long and double views stay aligned too.
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // CRC32 cannot read a ByteBuffer before API 26, so the bytes are copied out first.
+    private static long checksum(@NonNull ByteBuffer buffer, int offset, int length) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        byte[] bytes = new byte[length];
+        source.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,21 @@
+package com.huawei.clustering;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Posts tasks to the main looper.
+ */
+class MainThreadExecutor implements Executor {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        mHandler.post(task);
+    }
+}
@@ -1,12 +1,18 @@
 package com.huawei.clustering;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.huawei.hms.maps.model.Marker;
 
+/**
+ * A marker on the map and the cluster it shows. A marker is dirty if its icon no longer matches
+ * its cluster, e.g. after the icon generator was replaced, and is updated by the next pass.
+ */
 public class MarkerState {
 
     private final Marker marker;
+    private Cluster<?> cluster;
     private boolean isDirty;
 
     public MarkerState(@NonNull Marker marker, boolean isDirty) {
@@ -18,11 +24,25 @@ public class MarkerState {
         this(marker, false);
     }
 
+    MarkerState(@NonNull Marker marker, @NonNull Cluster<?> cluster) {
+        this(marker, false);
+        this.cluster = cluster;
+    }
+
     @NonNull
     public Marker getMarker() {
         return marker;
     }
 
+    @Nullable
+    Cluster<?> getCluster() {
+        return cluster;
+    }
+
+    void setCluster(@NonNull Cluster<?> cluster) {
+        this.cluster = cluster;
+    }
+
     public boolean isDirty() {
         return isDirty;
     }
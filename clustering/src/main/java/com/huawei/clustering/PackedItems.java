@@ -0,0 +1,215 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Ids and positions of items to be clustered, kept in flat arrays instead of one object per item.
+ * Pass them to {@link ClusterManager#addItems(PackedItems, ClusterItemFactory)}, which indexes
+ * the positions directly and only creates the items that are actually needed. The manager keeps
+ * the arrays as those of its index rather than copying them, so they are moved out of this
+ * instance, which is left empty.
+ * <p>
+ * Items can be added one by one or read in bulk from a binary or CSV source:
+ * <ul>
+ * <li>Binary records of {@value #RECORD_BYTES} bytes each: the id as a long followed by the
+ * latitude and the longitude as doubles, e.g. as written by {@link java.io.DataOutputStream}.</li>
+ * <li>CSV lines of the form <code>id,latitude,longitude</code>. Empty lines are skipped, as is
+ * a first line that does not start with a number, e.g. a header.</li>
+ * </ul>
+ */
+public final class PackedItems {
+
+    /**
+     * The size of a binary record.
+     */
+    public static final int RECORD_BYTES = 8 + 8 + 8;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int RECORDS_PER_CHUNK = 4096;
+
+    private long[] ids;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int size;
+
+    public PackedItems() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize the number of items that will be added, to avoid growing the arrays
+     */
+    public PackedItems(int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0);
+        ids = new long[expectedSize];
+        latitudes = new double[expectedSize];
+        longitudes = new double[expectedSize];
+    }
+
+    /**
+     * Reads binary records until the end of the stream. The stream is not closed.
+     *
+     * @param inputStream the stream to read from
+     * @return the items read
+     * @throws IOException if reading fails or the stream ends within a record
+     */
+    @NonNull
+    public static PackedItems readBinary(@NonNull InputStream inputStream) throws IOException {
+        Preconditions.checkNotNull(inputStream);
+        PackedItems packedItems = new PackedItems();
+
+        // Records are decoded from a chunk at a time, carrying a partial record over to the next.
+        byte[] chunk = new byte[RECORDS_PER_CHUNK * RECORD_BYTES];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int length = 0;
+        int read;
+        while ((read = inputStream.read(chunk, length, chunk.length - length)) != -1) {
+            length += read;
+            int recordsLength = length - length % RECORD_BYTES;
+            for (int offset = 0; offset < recordsLength; offset += RECORD_BYTES) {
+                packedItems.add(buffer.getLong(offset), buffer.getDouble(offset + 8),
+                        buffer.getDouble(offset + 16));
+            }
+            System.arraycopy(chunk, recordsLength, chunk, 0, length - recordsLength);
+            length -= recordsLength;
+        }
+        if (length != 0) {
+            throw new IOException("Stream ends within a record after " + packedItems.size + " records");
+        }
+        return packedItems;
+    }
+
+    /**
+     * Reads binary records from the position to the limit of the buffer, in the byte order of the
+     * buffer, e.g. from a memory-mapped file. The position of the buffer is not changed.
+     *
+     * @param buffer the buffer to read from
+     * @return the items read
+     * @throws IllegalArgumentException if the remaining bytes are not a whole number of records
+     */
+    @NonNull
+    public static PackedItems readBinary(@NonNull ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer);
+        Preconditions.checkArgument(buffer.remaining() % RECORD_BYTES == 0);
+        int count = buffer.remaining() / RECORD_BYTES;
+        PackedItems packedItems = new PackedItems(count);
+        for (int offset = buffer.position(); packedItems.size < count; offset += RECORD_BYTES) {
+            packedItems.add(buffer.getLong(offset), buffer.getDouble(offset + 8),
+                    buffer.getDouble(offset + 16));
+        }
+        return packedItems;
+    }
+
+    /**
+     * Reads CSV lines until the end of the reader. The reader is not closed.
+     *
+     * @param reader the reader to read from
+     * @return the items read
+     * @throws IOException if reading fails or a line is malformed
+     */
+    @NonNull
+    public static PackedItems readCsv(@NonNull Reader reader) throws IOException {
+        Preconditions.checkNotNull(reader);
+        PackedItems packedItems = new PackedItems();
+        BufferedReader bufferedReader = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            int firstComma = line.indexOf(',');
+            int secondComma = firstComma == -1 ? -1 : line.indexOf(',', firstComma + 1);
+            try {
+                if (secondComma == -1 || line.indexOf(',', secondComma + 1) != -1) {
+                    throw new NumberFormatException();
+                }
+                packedItems.add(Long.parseLong(line.substring(0, firstComma).trim()),
+                        Double.parseDouble(line.substring(firstComma + 1, secondComma)),
+                        Double.parseDouble(line.substring(secondComma + 1)));
+            } catch (NumberFormatException e) {
+                if (lineNumber == 1 && !startsWithNumber(line)) {
+                    continue;
+                }
+                throw new IOException("Malformed line " + lineNumber + ": " + line);
+            }
+        }
+        return packedItems;
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param id        the id passed to {@link ClusterItemFactory#createItem(long, double, double)}
+     * @param latitude  the latitude of the item
+     * @param longitude the longitude of the item
+     */
+    public void add(long id, double latitude, double longitude) {
+        if (size == ids.length) {
+            int capacity = Math.max(size + (size >> 1), DEFAULT_CAPACITY);
+            ids = Arrays.copyOf(ids, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+        }
+        ids[size] = id;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+    }
+
+    /**
+     * The number of items.
+     *
+     * @return the number of items
+     */
+    public int size() {
+        return size;
+    }
+
+    // Moves the items into a new instance and leaves these empty, so that the new one owns the
+    // arrays and whoever holds it may reorder them.
+    @NonNull
+    PackedItems take() {
+        PackedItems taken = new PackedItems(0);
+        taken.ids = ids;
+        taken.latitudes = latitudes;
+        taken.longitudes = longitudes;
+        taken.size = size;
+        ids = new long[0];
+        latitudes = new double[0];
+        longitudes = new double[0];
+        size = 0;
+        return taken;
+    }
+
+    @NonNull
+    long[] ids() {
+        return ids;
+    }
+
+    @NonNull
+    double[] latitudes() {
+        return latitudes;
+    }
+
+    @NonNull
+    double[] longitudes() {
+        return longitudes;
+    }
+
+    private static boolean startsWithNumber(@NonNull String line) {
+        String trimmed = line.trim();
+        char first = trimmed.charAt(0);
+        return Character.isDigit(first) || first == '-' || first == '+' || first == '.';
+    }
+}
@@ -0,0 +1,76 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over a range of indices on a fork/join pool, split in halves down to parts of a
+ * given size, or in one part on the calling thread if there is no pool.
+ */
+final class ParallelRange {
+
+    /**
+     * The body of the loop, run for parts of the range. Parts do not overlap and may run
+     * concurrently.
+     */
+    interface Body {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the body over [0, count) and returns once all parts are done.
+     *
+     * @param forkJoinPool the pool to run parts on, or null to run the whole range directly
+     * @param grainSize    the size below which a part is not split any further
+     */
+    static void run(@Nullable ForkJoinPool forkJoinPool, int count, int grainSize, @NonNull Body body) {
+        if (forkJoinPool == null || count <= grainSize) {
+            body.run(0, count);
+        } else {
+            forkJoinPool.invoke(new Part(body, 0, count, Math.max(grainSize, 1)));
+        }
+    }
+
+    /**
+     * Returns the size of the parts that gives every thread of the pool a few parts to do, but
+     * none smaller than the given minimum.
+     */
+    static int grainSize(@Nullable ForkJoinPool forkJoinPool, int count, int minGrainSize) {
+        if (forkJoinPool == null) {
+            return Math.max(count, 1);
+        }
+        // A few parts per thread, so that threads which finish early can take over from others.
+        return Math.max(count / (4 * forkJoinPool.getParallelism()), minGrainSize);
+    }
+
+    private static final class Part extends RecursiveAction {
+
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int grainSize;
+
+        Part(@NonNull Body body, int from, int to, int grainSize) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grainSize = grainSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grainSize) {
+                body.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Part(body, from, middle, grainSize), new Part(body, middle, to, grainSize));
+        }
+    }
+
+    private ParallelRange() {
+    }
+}
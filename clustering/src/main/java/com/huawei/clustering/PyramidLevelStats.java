@@ -0,0 +1,65 @@
+package com.huawei.clustering;
+
+/**
+ * Describes one zoom level of the precomputed clusters used by {@link ClusteringStrategy#PYRAMID}.
+ */
+public final class PyramidLevelStats {
+
+    private final int zoom;
+    private final int clusterCount;
+    private final long memoryBytes;
+    private final long buildTimeNanos;
+
+    PyramidLevelStats(int zoom, int clusterCount, long memoryBytes, long buildTimeNanos) {
+        this.zoom = zoom;
+        this.clusterCount = clusterCount;
+        this.memoryBytes = memoryBytes;
+        this.buildTimeNanos = buildTimeNanos;
+    }
+
+    /**
+     * The integer zoom level.
+     *
+     * @return the integer zoom level
+     */
+    public int getZoom() {
+        return zoom;
+    }
+
+    /**
+     * The number of non-empty tiles, i.e. clusters, stored for the zoom level.
+     *
+     * @return the number of clusters stored for the zoom level
+     */
+    public int getClusterCount() {
+        return clusterCount;
+    }
+
+    /**
+     * The approximate heap size of the zoom level in bytes.
+     *
+     * @return the approximate heap size of the zoom level in bytes
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * The time it took to build the zoom level in nanoseconds.
+     *
+     * @return the time it took to build the zoom level in nanoseconds
+     */
+    public long getBuildTimeNanos() {
+        return buildTimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "PyramidLevelStats{" +
+                "zoom=" + zoom +
+                ", clusterCount=" + clusterCount +
+                ", memoryBytes=" + memoryBytes +
+                ", buildTimeNanos=" + buildTimeNanos +
+                '}';
+    }
+}
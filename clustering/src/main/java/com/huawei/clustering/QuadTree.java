@@ -1,38 +1,1871 @@
 package com.huawei.clustering;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * A point quad tree stored as a struct of arrays instead of a graph of node objects.
+ * <p>
+ * Nodes are identified by an index into the node arrays. The four children of a node are
+ * allocated together, so a node only stores the index of its north-west child and the others
+ * follow as north-east, south-west and south-east. Node bounds are not stored at all, they are
+ * derived while walking down from the root by halving the parent bounds.
+ * <p>
+ * Points are identified by an index into the point arrays. The points of a node form a singly
+ * linked list threaded through {@link #nextPoint}, so a node costs three ints regardless of the
+ * bucket size.
+ * <p>
+ * Every node also keeps the size, coordinate sums and bounding box of its subtree, so that
+ * {@link #aggregateRange(double, double, double, double, QuadTreeAggregate)} can account for
+ * a subtree that lies entirely inside the range without visiting its points.
+ * <p>
+ * Points can be removed again by index, see {@link #indexOf(QuadTreePoint)}. A removal updates
+ * the aggregates along the path of the point and collapses subtrees that no longer hold more
+ * than a bucket of points, whose child nodes are then reused by later subdivisions.
+ * <p>
+ * Nodes at the maximum depth are never subdivided and hold any number of points instead, so
+ * that points sharing the same coordinates cannot make the tree grow without bound.
+ * <p>
+ * A tree can also be built from ids and coordinates alone, see
+ * {@link #build(double[], double[], long[], int, PointFactory, ForkJoinPool)}. Such points have
+ * no object until one is asked for, which the {@link PointFactory} then creates from the id.
+ * <p>
+ * Points can be tagged with one of several layers. A tree with more than one layer keeps the
+ * size and coordinate sums of every layer but the last for every node as well, so that
+ * {@link #aggregateRange(double, double, double, double, QuadTreeAggregate)} aggregates all layers
+ * in the same walk. The last layer has the rest of the subtree, which saves its share of memory.
+ * <p>
+ * Points can also carry a mask of attributes, which queries can filter by. Every node then keeps
+ * the union and the intersection of the masks of its subtree, so that a filtered query skips
+ * subtrees without matching points and takes subtrees whose points all match from their
+ * aggregates. Attributes are not part of a snapshot, see {@link #setAttributes(int[])}.
+ */
 class QuadTree<T extends QuadTreePoint> {
 
+    static final int NONE = -1;
+
+    // Depth of the quadrant keys used by bulk loading, two bits per level.
+    static final int KEY_DEPTH = 30;
+
+    // Layers are stored as bytes.
+    static final int MAX_LAYER_COUNT = 128;
+
+    // A filter matching every point, including those without attributes.
+    static final long NO_FILTER = -1L;
+
+    // The mask of points without attributes, a bit that no filter of attributes has.
+    private static final long NO_ATTRIBUTES = 1L << 32;
+
+    private static final int INITIAL_POINT_CAPACITY = 64;
+
+    // Points a subtree needs for its node to keep aggregates per layer. Smaller subtrees are
+    // walked instead, which costs at most as many points, so that only a few nodes pay the
+    // 20 bytes per layer.
+    private static final int LAYER_AGGREGATE_MIN_SIZE = 64;
+
+    private static final int INITIAL_LAYER_SLOT_CAPACITY = 16;
+
+    // Points per part below which a parallel build does not split a loop over the points.
+    private static final int MIN_GRAIN_SIZE = 4096;
+
+    static final double ROOT_NORTH = 90.0;
+    static final double ROOT_WEST = -180.0;
+    static final double ROOT_SOUTH = -90.0;
+    static final double ROOT_EAST = 180.0;
+
     private final int bucketSize;
+    private final int maxDepth;
+    private final int layerCount;
+    // The layers whose aggregates are stored, all but the last, whose aggregates are the rest of
+    // the subtree aggregates.
+    private final int storedLayerCount;
+
+    // Node arrays.
+    private int[] firstChild;
+    private int[] firstPoint;
+    private int[] pointCount;
+    private int nodeCount;
+
+    // Blocks of four child nodes freed by collapsing, linked through firstChild.
+    private int freeChildren;
+
+    // Nodes from the root to the node holding a point, filled by findPath.
+    private final int[] path = new int[KEY_DEPTH + 1];
+
+    // Subtree aggregates, parallel to the node arrays.
+    private int[] subtreeSize;
+    private double[] latitudeSum;
+    private double[] longitudeSum;
+    private double[] minLatitude;
+    private double[] maxLatitude;
+    private double[] minLongitude;
+    private double[] maxLongitude;
+
+    // Subtree aggregates of every stored layer, storedLayerCount per slot. Only the nodes of at
+    // least LAYER_AGGREGATE_MIN_SIZE points take a slot, which they keep until they are freed;
+    // layerSlot, parallel to the node arrays, is NONE for the others. Freed slots are chained
+    // through their first layerSize like freed children. All null if there is only one layer.
+    private int[] layerSlot;
+    private int[] layerSize;
+    private double[] layerLatitudeSum;
+    private double[] layerLongitudeSum;
+    private int layerSlotCount;
+    private int freeLayerSlots;
+
+    // The union and intersection of the attribute masks of the subtree, parallel to the node
+    // arrays. Null until attributes are set.
+    private long[] anyAttributes;
+    private long[] allAttributes;
+
+    // Point arrays. Points without an object are null in points, which is only allocated once a
+    // point has one, and are created from ids, which is null if every point has an object.
+    private double[] latitudes;
+    private double[] longitudes;
+    private Object[] points;
+    private long[] ids;
+    private int[] nextPoint;
+    // The layer of every point. Null if there is only one layer.
+    private byte[] layers;
+    // The attributes of every point. Null until attributes are set.
+    private int[] attributes;
+    private int size;
 
-    private QuadTreeNode<T> root;
+    private PointFactory<T> pointFactory;
 
-    QuadTree(int bucketSize) {
+    // Index of every point, built on the first lookup by identity and then kept up to date.
+    private IdentityIntMap pointIndices;
+
+    // A subtree of a bulk build, laid out before it is built so that it can be built on its own.
+    private static final class Subtree {
+
+        final int depth;
+        final int from;
+        final int to;
+        int nodeCount;
+        int node;
+        int firstFreeNode;
+
+        Subtree(int depth, int from, int to) {
+            this.depth = depth;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Receives the points of a range query by index and coordinates. The point itself is not
+     * passed, since touching every point object costs more than the query; visitors that need
+     * it can look it up with {@link #pointAt(int)}.
+     */
+    interface PointVisitor {
+        /**
+         * @return whether to go on, false stops the query
+         */
+        boolean visitPoint(int index, double latitude, double longitude);
+    }
+
+    /**
+     * Creates the objects of points that were added by id and coordinates only.
+     */
+    interface PointFactory<T> {
+        @NonNull
+        T createPoint(long id, double latitude, double longitude);
+    }
+
+    QuadTree(int bucketSize, int maxDepth) {
+        this(bucketSize, maxDepth, 1);
+    }
+
+    QuadTree(int bucketSize, int maxDepth, int layerCount) {
+        Preconditions.checkArgument(bucketSize > 0);
+        Preconditions.checkArgument(maxDepth >= 0 && maxDepth <= KEY_DEPTH);
+        Preconditions.checkArgument(layerCount > 0 && layerCount <= MAX_LAYER_COUNT);
         this.bucketSize = bucketSize;
-        this.root = createRootNode(bucketSize);
+        this.maxDepth = maxDepth;
+        this.layerCount = layerCount;
+        storedLayerCount = layerCount - 1;
+        // A full tree has roughly one node per bucket, so size the node arrays accordingly.
+        allocate(INITIAL_POINT_CAPACITY, INITIAL_POINT_CAPACITY / bucketSize + 4);
+    }
+
+    private QuadTree(@NonNull QuadTree<T> other) {
+        bucketSize = other.bucketSize;
+        maxDepth = other.maxDepth;
+        layerCount = other.layerCount;
+        storedLayerCount = other.storedLayerCount;
+
+        firstChild = Arrays.copyOf(other.firstChild, other.nodeCount);
+        firstPoint = Arrays.copyOf(other.firstPoint, other.nodeCount);
+        pointCount = Arrays.copyOf(other.pointCount, other.nodeCount);
+        nodeCount = other.nodeCount;
+        freeChildren = other.freeChildren;
+
+        subtreeSize = Arrays.copyOf(other.subtreeSize, other.nodeCount);
+        latitudeSum = Arrays.copyOf(other.latitudeSum, other.nodeCount);
+        longitudeSum = Arrays.copyOf(other.longitudeSum, other.nodeCount);
+        minLatitude = Arrays.copyOf(other.minLatitude, other.nodeCount);
+        maxLatitude = Arrays.copyOf(other.maxLatitude, other.nodeCount);
+        minLongitude = Arrays.copyOf(other.minLongitude, other.nodeCount);
+        maxLongitude = Arrays.copyOf(other.maxLongitude, other.nodeCount);
+        if (other.layerSlot != null) {
+            layerSlot = Arrays.copyOf(other.layerSlot, other.nodeCount);
+            layerSize = Arrays.copyOf(other.layerSize, other.layerSlotCount * storedLayerCount);
+            layerLatitudeSum = Arrays.copyOf(other.layerLatitudeSum, other.layerSlotCount * storedLayerCount);
+            layerLongitudeSum = Arrays.copyOf(other.layerLongitudeSum, other.layerSlotCount * storedLayerCount);
+            layerSlotCount = other.layerSlotCount;
+            freeLayerSlots = other.freeLayerSlots;
+        }
+        if (other.anyAttributes != null) {
+            anyAttributes = Arrays.copyOf(other.anyAttributes, other.nodeCount);
+            allAttributes = Arrays.copyOf(other.allAttributes, other.nodeCount);
+        }
+
+        // Leave room for growth, since a copy is usually made to be changed.
+        int pointCapacity = Math.max(other.size + (other.size >> 3), INITIAL_POINT_CAPACITY);
+        latitudes = Arrays.copyOf(other.latitudes, pointCapacity);
+        longitudes = Arrays.copyOf(other.longitudes, pointCapacity);
+        points = other.points == null ? null : Arrays.copyOf(other.points, pointCapacity);
+        ids = other.ids == null ? null : Arrays.copyOf(other.ids, pointCapacity);
+        nextPoint = Arrays.copyOf(other.nextPoint, pointCapacity);
+        layers = other.layers == null ? null : Arrays.copyOf(other.layers, pointCapacity);
+        attributes = other.attributes == null ? null : Arrays.copyOf(other.attributes, pointCapacity);
+        size = other.size;
+        pointFactory = other.pointFactory;
+
+        pointIndices = other.pointIndices == null ? null : new IdentityIntMap(other.pointIndices);
+    }
+
+    /**
+     * Reads a tree written by {@link #write(ByteBuffer, IdentityIntMap)}, starting at the position
+     * of the buffer. The points are taken from the given list by the positions that were written.
+     *
+     * @throws IllegalArgumentException if the nodes and points read do not link up into a tree
+     */
+    @NonNull
+    static <T extends QuadTreePoint> QuadTree<T> read(@NonNull ByteBuffer buffer, @NonNull List<T> items) {
+        int bucketSize = buffer.getInt();
+        int maxDepth = buffer.getInt();
+        int nodeCount = buffer.getInt();
+        int freeChildren = buffer.getInt();
+        int size = buffer.getInt();
+        int layerCount = buffer.getInt();
+        QuadTree<T> quadTree = new QuadTree<>(bucketSize, maxDepth, layerCount);
+        quadTree.nodeCount = nodeCount;
+        quadTree.freeChildren = freeChildren;
+        quadTree.size = size;
+
+        quadTree.firstChild = IndexSnapshot.getInts(buffer, nodeCount);
+        quadTree.firstPoint = IndexSnapshot.getInts(buffer, nodeCount);
+        quadTree.pointCount = IndexSnapshot.getInts(buffer, nodeCount);
+        quadTree.subtreeSize = IndexSnapshot.getInts(buffer, nodeCount);
+        quadTree.latitudeSum = IndexSnapshot.getDoubles(buffer, nodeCount);
+        quadTree.longitudeSum = IndexSnapshot.getDoubles(buffer, nodeCount);
+        quadTree.minLatitude = IndexSnapshot.getDoubles(buffer, nodeCount);
+        quadTree.maxLatitude = IndexSnapshot.getDoubles(buffer, nodeCount);
+        quadTree.minLongitude = IndexSnapshot.getDoubles(buffer, nodeCount);
+        quadTree.maxLongitude = IndexSnapshot.getDoubles(buffer, nodeCount);
+        if (layerCount > 1) {
+            int layerSlotCount = buffer.getInt();
+            quadTree.freeLayerSlots = buffer.getInt();
+            quadTree.layerSlotCount = layerSlotCount;
+            int storedLayerCount = quadTree.storedLayerCount;
+            quadTree.layerSlot = IndexSnapshot.getInts(buffer, nodeCount);
+            quadTree.layerSize = IndexSnapshot.getInts(buffer, layerSlotCount * storedLayerCount);
+            quadTree.layerLatitudeSum = IndexSnapshot.getDoubles(buffer, layerSlotCount * storedLayerCount);
+            quadTree.layerLongitudeSum = IndexSnapshot.getDoubles(buffer, layerSlotCount * storedLayerCount);
+        }
+
+        quadTree.latitudes = IndexSnapshot.getDoubles(buffer, size);
+        quadTree.longitudes = IndexSnapshot.getDoubles(buffer, size);
+        quadTree.nextPoint = IndexSnapshot.getInts(buffer, size);
+        if (layerCount > 1) {
+            quadTree.layers = IndexSnapshot.getBytes(buffer, size);
+        }
+        int[] itemPositions = IndexSnapshot.getInts(buffer, size);
+        quadTree.points = new Object[size];
+        for (int point = 0; point < size; point++) {
+            quadTree.points[point] = items.get(itemPositions[point]);
+        }
+        quadTree.checkLinks();
+        return quadTree;
+    }
+
+    // Checks that the nodes, points and free lists read from a snapshot link up into a tree, so
+    // that a damaged file is rejected when it is read rather than failing a later query or update.
+    private void checkLinks() {
+        Preconditions.checkArgument(nodeCount >= 1 && (nodeCount - 1) % 4 == 0 && size >= 0);
+        boolean[] seenNodes = new boolean[nodeCount];
+        boolean[] seenPoints = new boolean[size];
+        Preconditions.checkArgument(checkLinks(0, 0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                seenNodes, seenPoints) == size);
+
+        int freeBlocks = 0;
+        for (int child = freeChildren; child != NONE; child = firstChild[child]) {
+            freeBlocks++;
+            Preconditions.checkArgument(isChildBlock(child) && !seenNodes[child] && freeBlocks <= nodeCount / 4);
+        }
+        if (layerSlot != null) {
+            int freeSlots = 0;
+            for (int slot = freeLayerSlots; slot != NONE; slot = layerSize[slot * storedLayerCount]) {
+                freeSlots++;
+                Preconditions.checkArgument(slot >= 0 && slot < layerSlotCount && freeSlots <= layerSlotCount);
+            }
+        }
+    }
+
+    // Checks the subtree of a node with the given bounds and returns the number of points in it.
+    private int checkLinks(int node, int depth, double north, double west, double south, double east,
+                           @NonNull boolean[] seenNodes, @NonNull boolean[] seenPoints) {
+        Preconditions.checkArgument(!seenNodes[node]);
+        seenNodes[node] = true;
+        Preconditions.checkArgument(layerSlot == null || layerSlot[node] == NONE
+                || layerSlot[node] >= 0 && layerSlot[node] < layerSlotCount);
+
+        int count = pointCount[node];
+        Preconditions.checkArgument(count >= 0 && count <= size);
+        int point = firstPoint[node];
+        for (int i = 0; i < count; i++) {
+            Preconditions.checkArgument(point >= 0 && point < size && !seenPoints[point]);
+            Preconditions.checkArgument(layers == null || layers[point] >= 0 && layers[point] < layerCount);
+            Preconditions.checkArgument(isInside(latitudes[point], longitudes[point], north, west, south, east));
+            seenPoints[point] = true;
+            point = nextPoint[point];
+        }
+        Preconditions.checkArgument(point == NONE);
+
+        int child = firstChild[node];
+        if (child != NONE) {
+            Preconditions.checkArgument(depth < maxDepth && isChildBlock(child));
+            double northSouthHalf = north - (north - south) / 2.0;
+            double eastWestHalf = east - (east - west) / 2.0;
+            count += checkLinks(child, depth + 1, north, west, northSouthHalf, eastWestHalf,
+                    seenNodes, seenPoints);
+            count += checkLinks(child + 1, depth + 1, north, eastWestHalf, northSouthHalf, east,
+                    seenNodes, seenPoints);
+            count += checkLinks(child + 2, depth + 1, northSouthHalf, west, south, eastWestHalf,
+                    seenNodes, seenPoints);
+            count += checkLinks(child + 3, depth + 1, northSouthHalf, eastWestHalf, south, east,
+                    seenNodes, seenPoints);
+        }
+        Preconditions.checkArgument(subtreeSize[node] == count);
+        return count;
+    }
+
+    // Returns whether a point belongs in a node with the given bounds by the edge rules of
+    // insert. Points outside the bounds of the root belong to the nearest node on its edge.
+    private static boolean isInside(double latitude, double longitude,
+                                    double north, double west, double south, double east) {
+        return (south == ROOT_SOUTH || latitude >= south) && (north == ROOT_NORTH || latitude < north)
+                && (west == ROOT_WEST || longitude > west) && (east == ROOT_EAST || longitude <= east);
+    }
+
+    private boolean isChildBlock(int child) {
+        return child >= 1 && child <= nodeCount - 4 && (child - 1) % 4 == 0;
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(ByteBuffer, IdentityIntMap)} writes.
+     */
+    long snapshotBytes() {
+        long bytes = 24 + 4 * IndexSnapshot.intBytes(nodeCount) + 6 * IndexSnapshot.doubleBytes(nodeCount)
+                + 2 * IndexSnapshot.doubleBytes(size) + 2 * IndexSnapshot.intBytes(size);
+        if (layerCount > 1) {
+            bytes += 8 + IndexSnapshot.intBytes(nodeCount) + IndexSnapshot.intBytes(layerSlotCount * storedLayerCount)
+                    + 2 * IndexSnapshot.doubleBytes(layerSlotCount * storedLayerCount) + IndexSnapshot.byteBytes(size);
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the tree at the position of the buffer. Instead of the points themselves, their
+     * positions in the list of items given to {@link #read(ByteBuffer, List)} are written.
+     *
+     * @throws IllegalArgumentException if a point has no position or no object
+     */
+    void write(@NonNull ByteBuffer buffer, @NonNull IdentityIntMap itemPositions) {
+        Preconditions.checkArgument(ids == null);
+        buffer.putInt(bucketSize);
+        buffer.putInt(maxDepth);
+        buffer.putInt(nodeCount);
+        buffer.putInt(freeChildren);
+        buffer.putInt(size);
+        buffer.putInt(layerCount);
+
+        IndexSnapshot.putInts(buffer, firstChild, nodeCount);
+        IndexSnapshot.putInts(buffer, firstPoint, nodeCount);
+        IndexSnapshot.putInts(buffer, pointCount, nodeCount);
+        IndexSnapshot.putInts(buffer, subtreeSize, nodeCount);
+        IndexSnapshot.putDoubles(buffer, latitudeSum, nodeCount);
+        IndexSnapshot.putDoubles(buffer, longitudeSum, nodeCount);
+        IndexSnapshot.putDoubles(buffer, minLatitude, nodeCount);
+        IndexSnapshot.putDoubles(buffer, maxLatitude, nodeCount);
+        IndexSnapshot.putDoubles(buffer, minLongitude, nodeCount);
+        IndexSnapshot.putDoubles(buffer, maxLongitude, nodeCount);
+        if (layerCount > 1) {
+            buffer.putInt(layerSlotCount);
+            buffer.putInt(freeLayerSlots);
+            IndexSnapshot.putInts(buffer, layerSlot, nodeCount);
+            IndexSnapshot.putInts(buffer, layerSize, layerSlotCount * storedLayerCount);
+            IndexSnapshot.putDoubles(buffer, layerLatitudeSum, layerSlotCount * storedLayerCount);
+            IndexSnapshot.putDoubles(buffer, layerLongitudeSum, layerSlotCount * storedLayerCount);
+        }
+
+        IndexSnapshot.putDoubles(buffer, latitudes, size);
+        IndexSnapshot.putDoubles(buffer, longitudes, size);
+        IndexSnapshot.putInts(buffer, nextPoint, size);
+        if (layerCount > 1) {
+            IndexSnapshot.putBytes(buffer, layers, size);
+        }
+        int[] positions = new int[size];
+        for (int point = 0; point < size; point++) {
+            positions[point] = itemPositions.get(points[point]);
+            Preconditions.checkArgument(positions[point] != IdentityIntMap.NONE);
+        }
+        IndexSnapshot.putInts(buffer, positions, size);
+    }
+
+    int bucketSize() {
+        return bucketSize;
+    }
+
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    int layerCount() {
+        return layerCount;
+    }
+
+    /**
+     * Returns a copy of this tree that can be changed without affecting this one.
+     */
+    @NonNull
+    QuadTree<T> copy() {
+        return new QuadTree<>(this);
+    }
+
+    /**
+     * Returns a new tree with the points of this one, subdivided according to the given limits.
+     */
+    @NonNull
+    QuadTree<T> withLimits(int bucketSize, int maxDepth, @Nullable ForkJoinPool forkJoinPool) {
+        QuadTree<T> quadTree = new QuadTree<>(bucketSize, maxDepth, layerCount);
+        quadTree.pointFactory = pointFactory;
+        quadTree.build(points, latitudes, longitudes, ids, layers, attributes, size, false, forkJoinPool);
+        return quadTree;
     }
 
     void insert(@NonNull T point) {
-        root.insert(point);
+        insert(point, 0);
+    }
+
+    /**
+     * Adds the point to the given layer.
+     */
+    void insert(@NonNull T point, int layer) {
+        insert(point, layer, 0);
+    }
+
+    /**
+     * Adds the point with the given attributes to the given layer.
+     */
+    void insert(@NonNull T point, int layer, int pointAttributes) {
+        Preconditions.checkArgument(layer >= 0 && layer < layerCount);
+        double latitude = point.getLatitude();
+        double longitude = point.getLongitude();
+
+        // Ignore objects that do not belong in this quad tree.
+        if (!contains(ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST, latitude, longitude)) {
+            return;
+        }
+        if (attributes == null && pointAttributes != 0) {
+            // The points so far have none.
+            setAttributes(new int[size]);
+        }
+        long attributeMask = attributeMask(pointAttributes);
+
+        int node = 0;
+        double north = ROOT_NORTH;
+        double west = ROOT_WEST;
+        double south = ROOT_SOUTH;
+        double east = ROOT_EAST;
+
+        for (int depth = 0; ; depth++) {
+            accumulate(node, latitude, longitude, attributeMask);
+            if (layerSlot != null) {
+                accumulateLayer(node, latitude, longitude, layer);
+            }
+
+            // If there is space in this quad, or it must not be subdivided, add the object here.
+            if (pointCount[node] < bucketSize || depth == maxDepth) {
+                addPoint(node, point, latitude, longitude, layer, pointAttributes);
+                return;
+            }
+
+            // Otherwise, subdivide and then add the point to whichever child will accept it.
+            if (firstChild[node] == NONE) {
+                subdivide(node);
+            }
+
+            double northSouthHalf = north - (north - south) / 2.0;
+            double eastWestHalf = east - (east - west) / 2.0;
+
+            // Children are tried in the order north-west, north-east, south-west, south-east,
+            // so points on a shared edge go to the northern and western quad.
+            int quadrant = 0;
+            if (latitude >= northSouthHalf) {
+                south = northSouthHalf;
+            } else {
+                north = northSouthHalf;
+                quadrant += 2;
+            }
+            if (longitude <= eastWestHalf) {
+                east = eastWestHalf;
+            } else {
+                west = eastWestHalf;
+                quadrant += 1;
+            }
+
+            node = firstChild[node] + quadrant;
+        }
+    }
+
+    /**
+     * Replaces the contents of the tree with the given points in a single pass.
+     * <p>
+     * Every point gets a key that encodes the quadrants on its path from the root (a Morton
+     * code computed with the same edge rules as {@link #insert(QuadTreePoint)}). Sorting by
+     * key makes the points of every subtree contiguous, so the tree is laid out by splitting
+     * sorted ranges and each point is written exactly once. As a side effect, the points of a
+     * node end up next to each other in memory.
+     */
+    void build(@NonNull List<T> points) {
+        build(points, null);
+    }
+
+    /**
+     * Like {@link #build(List)}, but splits the work over the threads of the given pool, if any.
+     * The subtrees below the top few levels are built concurrently, each into a range of nodes
+     * reserved for it, so the tree is the same as one built by a single thread.
+     */
+    void build(@NonNull List<T> points, @Nullable ForkJoinPool forkJoinPool) {
+        build(points, null, forkJoinPool);
+    }
+
+    /**
+     * Like {@link #build(List, ForkJoinPool)}, but puts every point into the layer at the same
+     * position of the given array, or all of them into the first layer if it is null.
+     */
+    void build(@NonNull List<T> points, @Nullable byte[] pointLayers, @Nullable ForkJoinPool forkJoinPool) {
+        final Object[] items = points.toArray();
+        final double[] pointLatitudes = new double[items.length];
+        final double[] pointLongitudes = new double[items.length];
+        ParallelRange.run(forkJoinPool, items.length,
+                ParallelRange.grainSize(forkJoinPool, items.length, MIN_GRAIN_SIZE), new ParallelRange.Body() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            //noinspection unchecked
+                            T point = (T) items[i];
+                            pointLatitudes[i] = point.getLatitude();
+                            pointLongitudes[i] = point.getLongitude();
+                        }
+                    }
+                });
+        build(items, pointLatitudes, pointLongitudes, null, pointLayers, null, items.length, false, forkJoinPool);
+    }
+
+    /**
+     * Replaces the contents of the tree with the points given by the first count ids and
+     * coordinates, like {@link #build(List, ForkJoinPool)}. No point objects are created; the
+     * given factory creates one from the id whenever a point is asked for.
+     * <p>
+     * The tree takes over the given arrays and sorts them in place, so the caller must not use
+     * them afterwards. The points outside the tree end up behind the others and are overwritten
+     * by later insertions, as is whatever follows the first count points.
+     */
+    void build(@NonNull double[] latitudes, @NonNull double[] longitudes, @NonNull long[] ids,
+               int count, @NonNull PointFactory<T> pointFactory, @Nullable ForkJoinPool forkJoinPool) {
+        if (latitudes.length < INITIAL_POINT_CAPACITY) {
+            latitudes = Arrays.copyOf(latitudes, INITIAL_POINT_CAPACITY);
+            longitudes = Arrays.copyOf(longitudes, INITIAL_POINT_CAPACITY);
+            ids = Arrays.copyOf(ids, INITIAL_POINT_CAPACITY);
+        }
+        this.pointFactory = pointFactory;
+        build(null, latitudes, longitudes, ids, null, null, count, true, forkJoinPool);
+    }
+
+    // Sorts the given points into a new tree. If inPlace is set, only coordinates and ids may be
+    // given, and they are sorted in place and kept as the arrays of the tree.
+    private void build(@Nullable final Object[] items, @NonNull final double[] pointLatitudes,
+                       @NonNull final double[] pointLongitudes, @Nullable final long[] pointIds,
+                       @Nullable final byte[] pointLayers, @Nullable final int[] pointAttributes, int count,
+                       boolean inPlace, @Nullable ForkJoinPool forkJoinPool) {
+        final long[] keys = new long[count];
+        ParallelRange.run(forkJoinPool, count, ParallelRange.grainSize(forkJoinPool, count, MIN_GRAIN_SIZE),
+                new ParallelRange.Body() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            double latitude = pointLatitudes[i];
+                            double longitude = pointLongitudes[i];
+                            // Ignore objects that do not belong in this quad tree.
+                            keys[i] = contains(ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST, latitude, longitude)
+                                    ? quadrantKey(latitude, longitude) : NONE;
+                        }
+                    }
+                });
+
+        final int[] order = new int[count];
+        int validCount = 0;
+        int invalidStart = count;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] != NONE) {
+                keys[validCount] = keys[i];
+                order[validCount] = i;
+                validCount++;
+            } else {
+                order[--invalidStart] = i;
+            }
+        }
+
+        RadixSort.sort(keys, order, validCount, 2 * KEY_DEPTH);
+
+        // The top levels are laid out first, down to subtrees small enough to give every thread
+        // a few. Counting the nodes of every subtree then tells which nodes it will take, which
+        // are the ones it would take if the whole tree was built depth-first in one go.
+        int threshold = ParallelRange.grainSize(forkJoinPool, validCount, bucketSize + 1);
+        final List<Subtree> subtrees = new ArrayList<>();
+        int totalNodeCount = 1 + collectSubtrees(0, 0, validCount, keys, threshold, subtrees);
+        ParallelRange.run(forkJoinPool, subtrees.size(), 1, new ParallelRange.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    Subtree subtree = subtrees.get(i);
+                    subtree.nodeCount = countNodes(subtree.depth, subtree.from, subtree.to, keys);
+                }
+            }
+        });
+        for (Subtree subtree : subtrees) {
+            totalNodeCount += subtree.nodeCount;
+        }
+
+        if (inPlace) {
+            permute(order, count, pointLatitudes, pointLongitudes, pointIds);
+            allocate(pointLatitudes, pointLongitudes, totalNodeCount);
+            ids = pointIds;
+            size = validCount;
+            layOut(0, 0, 0, validCount, keys, threshold, subtrees.iterator());
+            buildSubtrees(subtrees, keys, forkJoinPool);
+            mergeTop(0, 0, 0, validCount, keys, threshold);
+            addLayerAggregates(0);
+            return;
+        }
+
+        int pointCapacity = Math.max(validCount, INITIAL_POINT_CAPACITY);
+        allocate(pointCapacity, totalNodeCount);
+        if (items != null) {
+            points = new Object[pointCapacity];
+        }
+        if (pointIds != null) {
+            ids = new long[pointCapacity];
+        }
+        if (layerCount > 1) {
+            layers = new byte[pointCapacity];
+        }
+        if (pointAttributes != null) {
+            allocateAttributes(pointCapacity, totalNodeCount);
+        }
+        ParallelRange.run(forkJoinPool, validCount, ParallelRange.grainSize(forkJoinPool, validCount, MIN_GRAIN_SIZE),
+                new ParallelRange.Body() {
+                    @Override
+                    public void run(int from, int to) {
+                        for (int i = from; i < to; i++) {
+                            int index = order[i];
+                            latitudes[i] = pointLatitudes[index];
+                            longitudes[i] = pointLongitudes[index];
+                            if (items != null) {
+                                points[i] = items[index];
+                            }
+                            if (pointIds != null) {
+                                ids[i] = pointIds[index];
+                            }
+                            if (layers != null && pointLayers != null) {
+                                layers[i] = pointLayers[index];
+                            }
+                            if (pointAttributes != null) {
+                                attributes[i] = pointAttributes[index];
+                            }
+                        }
+                    }
+                });
+        size = validCount;
+
+        layOut(0, 0, 0, validCount, keys, threshold, subtrees.iterator());
+        buildSubtrees(subtrees, keys, forkJoinPool);
+        mergeTop(0, 0, 0, validCount, keys, threshold);
+        addLayerAggregates(0);
+    }
+
+    private void buildSubtrees(@NonNull final List<Subtree> subtrees, @NonNull final long[] keys,
+                               @Nullable ForkJoinPool forkJoinPool) {
+        ParallelRange.run(forkJoinPool, subtrees.size(), 1, new ParallelRange.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    Subtree subtree = subtrees.get(i);
+                    build(subtree.node, subtree.depth, subtree.from, subtree.to, keys, subtree.firstFreeNode);
+                }
+            }
+        });
+    }
+
+    // Moves the point at order[i] to i, for every i below count. Each cycle of the permutation is
+    // followed from its start, and the positions it fills are marked by setting their order to
+    // themselves, so no second set of arrays is needed.
+    private static void permute(@NonNull int[] order, int count, @NonNull double[] latitudes,
+                                @NonNull double[] longitudes, @NonNull long[] ids) {
+        for (int start = 0; start < count; start++) {
+            if (order[start] == start) {
+                continue;
+            }
+            double latitude = latitudes[start];
+            double longitude = longitudes[start];
+            long id = ids[start];
+            int i = start;
+            while (order[i] != start) {
+                int from = order[i];
+                latitudes[i] = latitudes[from];
+                longitudes[i] = longitudes[from];
+                ids[i] = ids[from];
+                order[i] = i;
+                i = from;
+            }
+            latitudes[i] = latitude;
+            longitudes[i] = longitude;
+            ids[i] = id;
+            order[i] = i;
+        }
     }
 
+    /**
+     * Returns the points inside the given range. Like a tile of {@link TileGrid}, the range
+     * contains its north and west edges but not its south and east edges, unless they are the
+     * edge of the world.
+     */
     @NonNull
     List<T> queryRange(double north, double west, double south, double east) {
-        List<T> points = new ArrayList<>();
-        root.queryRange(new QuadTreeRect(north, west, south, east), points);
-        return points;
+        List<T> pointsInRange = new ArrayList<>();
+        queryRange(north, west, south, east, pointsInRange);
+        return pointsInRange;
+    }
+
+    /**
+     * Adds the points inside the given range to the given list, which can be reused across
+     * queries. The range has the same edges as in
+     * {@link #queryRange(double, double, double, double)}.
+     */
+    void queryRange(double north, double west, double south, double east,
+                    @NonNull List<? super T> pointsInRange) {
+        queryRange(0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                north, west, south, east, NONE, NO_FILTER, pointsInRange);
+    }
+
+    /**
+     * Like {@link #queryRange(double, double, double, double, List)}, but only adds the points of
+     * the given layer. Subtrees without points of that layer are skipped.
+     */
+    void queryRange(int layer, double north, double west, double south, double east,
+                    @NonNull List<? super T> pointsInRange) {
+        queryRange(layer, NO_FILTER, north, west, south, east, pointsInRange);
+    }
+
+    /**
+     * Like {@link #queryRange(int, double, double, double, double, List)}, but only adds the points
+     * that match the given filter, see {@link #attributeFilter(int)}. Subtrees without matching
+     * points are skipped.
+     */
+    void queryRange(int layer, long filter, double north, double west, double south, double east,
+                    @NonNull List<? super T> pointsInRange) {
+        queryRange(0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                north, west, south, east, layerCount > 1 ? layer : NONE, filter, pointsInRange);
+    }
+
+    /**
+     * Passes the points inside the given range to the given visitor. The range has the same
+     * edges as in {@link #queryRange(double, double, double, double)}.
+     *
+     * @return false if the visitor stopped the query
+     */
+    boolean queryRange(double north, double west, double south, double east,
+                       @NonNull PointVisitor visitor) {
+        return queryRange(north, west, south, east, NO_FILTER, visitor);
+    }
+
+    /**
+     * Like {@link #queryRange(double, double, double, double, PointVisitor)}, but only passes the
+     * points that match the given filter.
+     *
+     * @return false if the visitor stopped the query
+     */
+    boolean queryRange(double north, double west, double south, double east, long filter,
+                       @NonNull PointVisitor visitor) {
+        return queryRange(0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                north, west, south, east, NONE, filter, visitor);
+    }
+
+    /**
+     * Like {@link #queryRange(double, double, double, double, long, PointVisitor)}, but only passes
+     * the points of the given layer. Subtrees without points of that layer are skipped.
+     *
+     * @return false if the visitor stopped the query
+     */
+    boolean queryRange(int layer, long filter, double north, double west, double south, double east,
+                       @NonNull PointVisitor visitor) {
+        return queryRange(0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                north, west, south, east, layerCount > 1 ? layer : NONE, filter, visitor);
+    }
+
+    /**
+     * Adds the number and coordinate sums of the points inside the given range to the aggregate,
+     * and those of every layer if the tree has more than one, in which case the aggregate must
+     * have been created for as many layers.
+     * The range has the same edges as in {@link #queryRange(double, double, double, double)}.
+     * Subtrees whose bounding box lies inside the range are added from their aggregates.
+     */
+    void aggregateRange(double north, double west, double south, double east,
+                        @NonNull QuadTreeAggregate aggregate) {
+        aggregateRange(north, west, south, east, NO_FILTER, aggregate);
+    }
+
+    /**
+     * Like {@link #aggregateRange(double, double, double, double, QuadTreeAggregate)}, but only
+     * adds the points that match the given filter. Subtrees without matching points are skipped,
+     * and those whose points all match are still added from their aggregates; the points of the
+     * other subtrees inside the range are visited one by one.
+     */
+    void aggregateRange(double north, double west, double south, double east, long filter,
+                        @NonNull QuadTreeAggregate aggregate) {
+        aggregateRange(0, ROOT_NORTH, ROOT_WEST, ROOT_SOUTH, ROOT_EAST,
+                north, west, south, east, filter, aggregate);
+        if (layerSlot != null) {
+            // The last layer has whatever the stored layers do not.
+            int size = aggregate.size;
+            double latitudeSum = aggregate.latitudeSum;
+            double longitudeSum = aggregate.longitudeSum;
+            for (int layer = 0; layer < storedLayerCount; layer++) {
+                size -= aggregate.layerSizes[layer];
+                latitudeSum -= aggregate.layerLatitudeSums[layer];
+                longitudeSum -= aggregate.layerLongitudeSums[layer];
+            }
+            aggregate.layerSizes[storedLayerCount] = size;
+            aggregate.layerLatitudeSums[storedLayerCount] = size == 0 ? 0.0 : latitudeSum;
+            aggregate.layerLongitudeSums[storedLayerCount] = size == 0 ? 0.0 : longitudeSum;
+        }
+    }
+
+    /**
+     * Returns the index of the given point, or {@link #NONE} if it is not in the tree.
+     * Points are compared by identity, so the point may have moved since it was added.
+     * Points created by the {@link PointFactory} are never found.
+     */
+    int indexOf(@NonNull T point) {
+        if (pointIndices == null) {
+            pointIndices = new IdentityIntMap(points == null ? 0 : size);
+            for (int index = 0; points != null && index < size; index++) {
+                if (points[index] != null) {
+                    pointIndices.put(points[index], index);
+                }
+            }
+        }
+        return pointIndices.get(point);
+    }
+
+    /**
+     * Removes the point at the given index. The point with the highest index takes its place,
+     * so that the indices of the remaining points stay below {@link #size()}.
+     */
+    void removeAt(int index) {
+        Preconditions.checkArgument(index >= 0 && index < size);
+        double latitude = latitudes[index];
+        double longitude = longitudes[index];
+        int layer = layers == null ? 0 : layers[index];
+
+        int depth = findPath(index, latitude, longitude);
+        int node = path[depth];
+        unlinkPoint(node, index);
+        pointCount[node]--;
+
+        // Update the aggregates bottom up, so that every node sees its updated children.
+        for (; depth >= 0; depth--) {
+            node = path[depth];
+            subtreeSize[node]--;
+            if (subtreeSize[node] == 0) {
+                latitudeSum[node] = 0.0;
+                longitudeSum[node] = 0.0;
+            } else {
+                latitudeSum[node] -= latitude;
+                longitudeSum[node] -= longitude;
+            }
+            if (layerSlot != null && layerSlot[node] != NONE && layer < storedLayerCount) {
+                int i = layerSlot[node] * storedLayerCount + layer;
+                layerSize[i]--;
+                if (layerSize[i] == 0) {
+                    layerLatitudeSum[i] = 0.0;
+                    layerLongitudeSum[i] = 0.0;
+                } else {
+                    layerLatitudeSum[i] -= latitude;
+                    layerLongitudeSum[i] -= longitude;
+                }
+            }
+            if (firstChild[node] != NONE && subtreeSize[node] <= bucketSize) {
+                collapse(node);
+            }
+            updateBounds(node);
+            if (anyAttributes != null) {
+                updateAttributes(node);
+            }
+        }
+
+        if (pointIndices != null && points != null && points[index] != null) {
+            pointIndices.remove(points[index]);
+        }
+
+        int last = size - 1;
+        if (index != last) {
+            // Move the last point into the hole, relinking it from its node.
+            node = path[findPath(last, latitudes[last], longitudes[last])];
+            if (firstPoint[node] == last) {
+                firstPoint[node] = index;
+            } else {
+                int previous = firstPoint[node];
+                while (nextPoint[previous] != last) {
+                    previous = nextPoint[previous];
+                }
+                nextPoint[previous] = index;
+            }
+            latitudes[index] = latitudes[last];
+            longitudes[index] = longitudes[last];
+            nextPoint[index] = nextPoint[last];
+            if (ids != null) {
+                ids[index] = ids[last];
+            }
+            if (layers != null) {
+                layers[index] = layers[last];
+            }
+            if (attributes != null) {
+                attributes[index] = attributes[last];
+            }
+            if (points != null) {
+                points[index] = points[last];
+                if (pointIndices != null && points[index] != null) {
+                    pointIndices.put(points[index], index);
+                }
+            }
+        }
+        if (points != null) {
+            points[last] = null;
+        }
+        size--;
+    }
+
+    int size() {
+        return size;
+    }
+
+    double latitudeAt(int point) {
+        return latitudes[point];
     }
 
-    void clear() {
-        root = createRootNode(bucketSize);
+    double longitudeAt(int point) {
+        return longitudes[point];
+    }
+
+    int layerAt(int point) {
+        return layers == null ? 0 : layers[point];
+    }
+
+    int attributesAt(int point) {
+        return attributes == null ? 0 : attributes[point];
+    }
+
+    /**
+     * Sets the attributes of the points by index, e.g. after the tree was read or built without
+     * them, and updates the masks of every node.
+     */
+    void setAttributes(@NonNull int[] pointAttributes) {
+        Preconditions.checkArgument(pointAttributes.length >= size);
+        allocateAttributes(latitudes.length, firstChild.length);
+        System.arraycopy(pointAttributes, 0, attributes, 0, size);
+        updateSubtreeAttributes(0);
+    }
+
+    /**
+     * Drops the attributes of all points, after which only {@link #NO_FILTER} matches them.
+     */
+    void clearAttributes() {
+        attributes = null;
+        anyAttributes = null;
+        allAttributes = null;
+    }
+
+    /**
+     * Returns the filter matching the points that have any of the given attributes. Points
+     * without attributes match no such filter.
+     */
+    static long attributeFilter(int attributes) {
+        return attributes & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns whether the point has an object. Points added by id and coordinates only do not;
+     * {@link #pointAt(int)} creates a new one on every call, and {@link #idAt(int)} identifies it.
+     */
+    boolean hasObjectAt(int point) {
+        return points != null && points[point] != null;
+    }
+
+    long idAt(int point) {
+        return ids[point];
     }
 
     @NonNull
-    private QuadTreeNode<T> createRootNode(int bucketSize) {
-        return new QuadTreeNode<>(90.0, -180.0, -90.0, 180.0, bucketSize);
+    T pointAt(int point) {
+        Object item = points == null ? null : points[point];
+        if (item == null) {
+            return pointFactory.createPoint(ids[point], latitudes[point], longitudes[point]);
+        }
+        //noinspection unchecked
+        return (T) item;
+    }
+
+    // Adds the points of the given layer, or of all layers if it is NONE.
+    private void queryRange(int node, double nodeNorth, double nodeWest, double nodeSouth, double nodeEast,
+                            double north, double west, double south, double east, int layer, long filter,
+                            @NonNull List<? super T> pointsInRange) {
+        // Automatically abort if the subtree is empty or the range does not intersect this quad.
+        if (subtreeSize[node] == 0
+                || !intersects(nodeNorth, nodeWest, nodeSouth, nodeEast, north, west, south, east)) {
+            return;
+        }
+        if ((layer != NONE && !mayHaveLayer(node, layer)) || (anyAttributesOf(node) & filter) == 0) {
+            return;
+        }
+
+        // Take the whole subtree without testing the coordinates of its points, if its bounding box
+        // lies inside the range.
+        if (TileGrid.contains(north, west, south, east, maxLatitude[node], minLongitude[node])
+                && TileGrid.contains(north, west, south, east, minLatitude[node], maxLongitude[node])) {
+            addPoints(node, layer, filter, pointsInRange);
+            return;
+        }
+
+        // Check objects at this quad level.
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            if ((layer == NONE || layers[point] == layer) && matches(point, filter)
+                    && TileGrid.contains(north, west, south, east, latitudes[point], longitudes[point])) {
+                pointsInRange.add(pointAt(point));
+            }
+        }
+
+        // Terminate here, if there are no children.
+        int child = firstChild[node];
+        if (child == NONE) {
+            return;
+        }
+
+        // Otherwise, add the points from the children.
+        double northSouthHalf = nodeNorth - (nodeNorth - nodeSouth) / 2.0;
+        double eastWestHalf = nodeEast - (nodeEast - nodeWest) / 2.0;
+
+        queryRange(child, nodeNorth, nodeWest, northSouthHalf, eastWestHalf,
+                north, west, south, east, layer, filter, pointsInRange);
+        queryRange(child + 1, nodeNorth, eastWestHalf, northSouthHalf, nodeEast,
+                north, west, south, east, layer, filter, pointsInRange);
+        queryRange(child + 2, northSouthHalf, nodeWest, nodeSouth, eastWestHalf,
+                north, west, south, east, layer, filter, pointsInRange);
+        queryRange(child + 3, northSouthHalf, eastWestHalf, nodeSouth, nodeEast,
+                north, west, south, east, layer, filter, pointsInRange);
+    }
+
+    // Adds the points of the subtree of the given layer, or of all layers if it is NONE.
+    private void addPoints(int node, int layer, long filter, @NonNull List<? super T> pointsInRange) {
+        if ((layer != NONE && !mayHaveLayer(node, layer)) || (anyAttributesOf(node) & filter) == 0) {
+            return;
+        }
+
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            if ((layer == NONE || layers[point] == layer) && matches(point, filter)) {
+                pointsInRange.add(pointAt(point));
+            }
+        }
+
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                addPoints(child + quadrant, layer, filter, pointsInRange);
+            }
+        }
+    }
+
+    private void aggregateRange(int node, double nodeNorth, double nodeWest, double nodeSouth, double nodeEast,
+                                double north, double west, double south, double east, long filter,
+                                @NonNull QuadTreeAggregate aggregate) {
+        // Automatically abort if the subtree is empty or the range does not intersect this quad.
+        if (subtreeSize[node] == 0
+                || !intersects(nodeNorth, nodeWest, nodeSouth, nodeEast, north, west, south, east)) {
+            return;
+        }
+        // Or if none of its points match the filter.
+        long anyAttributes = anyAttributesOf(node);
+        if ((anyAttributes & filter) == 0) {
+            return;
+        }
+
+        // Take the whole subtree at once, if all of its points are inside the range and match the
+        // filter, i.e. they share a bit of the filter or have no bits outside of it.
+        // Subtrees without aggregates per layer are small, and walked instead.
+        if (((allAttributesOf(node) & filter) != 0 || (anyAttributes & ~filter) == 0)
+                && (layerSlot == null || layerSlot[node] != NONE)
+                && TileGrid.contains(north, west, south, east, maxLatitude[node], minLongitude[node])
+                && TileGrid.contains(north, west, south, east, minLatitude[node], maxLongitude[node])) {
+            aggregate.size += subtreeSize[node];
+            aggregate.latitudeSum += latitudeSum[node];
+            aggregate.longitudeSum += longitudeSum[node];
+            if (layerSlot != null) {
+                int i = layerSlot[node] * storedLayerCount;
+                for (int layer = 0; layer < storedLayerCount; layer++, i++) {
+                    aggregate.layerSizes[layer] += layerSize[i];
+                    aggregate.layerLatitudeSums[layer] += layerLatitudeSum[i];
+                    aggregate.layerLongitudeSums[layer] += layerLongitudeSum[i];
+                }
+            }
+            return;
+        }
+
+        // Check objects at this quad level.
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            double latitude = latitudes[point];
+            double longitude = longitudes[point];
+            if (matches(point, filter) && TileGrid.contains(north, west, south, east, latitude, longitude)) {
+                aggregate.size++;
+                aggregate.latitudeSum += latitude;
+                aggregate.longitudeSum += longitude;
+                if (layers != null && layers[point] < storedLayerCount) {
+                    int layer = layers[point];
+                    aggregate.layerSizes[layer]++;
+                    aggregate.layerLatitudeSums[layer] += latitude;
+                    aggregate.layerLongitudeSums[layer] += longitude;
+                }
+            }
+        }
+
+        // Terminate here, if there are no children.
+        int child = firstChild[node];
+        if (child == NONE) {
+            return;
+        }
+
+        // Otherwise, add the aggregates of the children.
+        double northSouthHalf = nodeNorth - (nodeNorth - nodeSouth) / 2.0;
+        double eastWestHalf = nodeEast - (nodeEast - nodeWest) / 2.0;
+
+        aggregateRange(child, nodeNorth, nodeWest, northSouthHalf, eastWestHalf,
+                north, west, south, east, filter, aggregate);
+        aggregateRange(child + 1, nodeNorth, eastWestHalf, northSouthHalf, nodeEast,
+                north, west, south, east, filter, aggregate);
+        aggregateRange(child + 2, northSouthHalf, nodeWest, nodeSouth, eastWestHalf,
+                north, west, south, east, filter, aggregate);
+        aggregateRange(child + 3, northSouthHalf, eastWestHalf, nodeSouth, nodeEast,
+                north, west, south, east, filter, aggregate);
+    }
+
+    // Passes the points of the given layer, or of all layers if it is NONE.
+    private boolean queryRange(int node, double nodeNorth, double nodeWest, double nodeSouth, double nodeEast,
+                               double north, double west, double south, double east, int layer, long filter,
+                               @NonNull PointVisitor visitor) {
+        // Automatically abort if the subtree is empty or the range does not intersect this quad.
+        if (subtreeSize[node] == 0 || (anyAttributesOf(node) & filter) == 0
+                || !intersects(nodeNorth, nodeWest, nodeSouth, nodeEast, north, west, south, east)) {
+            return true;
+        }
+        if (layer != NONE && !mayHaveLayer(node, layer)) {
+            return true;
+        }
+
+        // Visit objects at this quad level.
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            double latitude = latitudes[point];
+            double longitude = longitudes[point];
+            if ((layer == NONE || layers[point] == layer) && matches(point, filter)
+                    && TileGrid.contains(north, west, south, east, latitude, longitude)) {
+                if (!visitor.visitPoint(point, latitude, longitude)) {
+                    return false;
+                }
+            }
+        }
+
+        // Terminate here, if there are no children.
+        int child = firstChild[node];
+        if (child == NONE) {
+            return true;
+        }
+
+        // Otherwise, visit the points of the children.
+        double northSouthHalf = nodeNorth - (nodeNorth - nodeSouth) / 2.0;
+        double eastWestHalf = nodeEast - (nodeEast - nodeWest) / 2.0;
+
+        return queryRange(child, nodeNorth, nodeWest, northSouthHalf, eastWestHalf,
+                north, west, south, east, layer, filter, visitor)
+                && queryRange(child + 1, nodeNorth, eastWestHalf, northSouthHalf, nodeEast,
+                north, west, south, east, layer, filter, visitor)
+                && queryRange(child + 2, northSouthHalf, nodeWest, nodeSouth, eastWestHalf,
+                north, west, south, east, layer, filter, visitor)
+                && queryRange(child + 3, northSouthHalf, eastWestHalf, nodeSouth, nodeEast,
+                north, west, south, east, layer, filter, visitor);
+    }
+
+    // Fills path with the nodes from the root to the node holding the point and returns the
+    // depth of that node. Follows the same edge rules as insert.
+    private int findPath(int index, double latitude, double longitude) {
+        int node = 0;
+        double north = ROOT_NORTH;
+        double west = ROOT_WEST;
+        double south = ROOT_SOUTH;
+        double east = ROOT_EAST;
+
+        for (int depth = 0; ; depth++) {
+            path[depth] = node;
+
+            for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+                if (point == index) {
+                    return depth;
+                }
+            }
+
+            double northSouthHalf = north - (north - south) / 2.0;
+            double eastWestHalf = east - (east - west) / 2.0;
+
+            int quadrant = 0;
+            if (latitude >= northSouthHalf) {
+                south = northSouthHalf;
+            } else {
+                north = northSouthHalf;
+                quadrant += 2;
+            }
+            if (longitude <= eastWestHalf) {
+                east = eastWestHalf;
+            } else {
+                west = eastWestHalf;
+                quadrant += 1;
+            }
+
+            node = firstChild[node] + quadrant;
+        }
+    }
+
+    private void unlinkPoint(int node, int index) {
+        if (firstPoint[node] == index) {
+            firstPoint[node] = nextPoint[index];
+            return;
+        }
+        int previous = firstPoint[node];
+        while (nextPoint[previous] != index) {
+            previous = nextPoint[previous];
+        }
+        nextPoint[previous] = nextPoint[index];
+    }
+
+    // Moves all points of the subtree below the node into the node and frees its children.
+    private void collapse(int node) {
+        int child = firstChild[node];
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int childNode = child + quadrant;
+            if (firstChild[childNode] != NONE) {
+                collapse(childNode);
+            }
+            if (layerSlot != null) {
+                freeLayerSlot(childNode);
+            }
+            int point = firstPoint[childNode];
+            while (point != NONE) {
+                int next = nextPoint[point];
+                nextPoint[point] = firstPoint[node];
+                firstPoint[node] = point;
+                pointCount[node]++;
+                point = next;
+            }
+        }
+        firstChild[child] = freeChildren;
+        freeChildren = child;
+        firstChild[node] = NONE;
+    }
+
+    // Recomputes the bounding box of the node from its points and the boxes of its children.
+    private void updateBounds(int node) {
+        minLatitude[node] = Double.POSITIVE_INFINITY;
+        maxLatitude[node] = Double.NEGATIVE_INFINITY;
+        minLongitude[node] = Double.POSITIVE_INFINITY;
+        maxLongitude[node] = Double.NEGATIVE_INFINITY;
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            minLatitude[node] = Math.min(minLatitude[node], latitudes[point]);
+            maxLatitude[node] = Math.max(maxLatitude[node], latitudes[point]);
+            minLongitude[node] = Math.min(minLongitude[node], longitudes[point]);
+            maxLongitude[node] = Math.max(maxLongitude[node], longitudes[point]);
+        }
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                minLatitude[node] = Math.min(minLatitude[node], minLatitude[child + quadrant]);
+                maxLatitude[node] = Math.max(maxLatitude[node], maxLatitude[child + quadrant]);
+                minLongitude[node] = Math.min(minLongitude[node], minLongitude[child + quadrant]);
+                maxLongitude[node] = Math.max(maxLongitude[node], maxLongitude[child + quadrant]);
+            }
+        }
+    }
+
+    // Recomputes the attribute masks of the node from its points and the masks of its children.
+    private void updateAttributes(int node) {
+        long any = 0L;
+        long all = -1L;
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            long attributeMask = attributeMask(attributes[point]);
+            any |= attributeMask;
+            all &= attributeMask;
+        }
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                any |= anyAttributes[child + quadrant];
+                all &= allAttributes[child + quadrant];
+            }
+        }
+        anyAttributes[node] = any;
+        allAttributes[node] = all;
+    }
+
+    // Recomputes the attribute masks of the whole subtree below the node, bottom up.
+    private void updateSubtreeAttributes(int node) {
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                updateSubtreeAttributes(child + quadrant);
+            }
+        }
+        updateAttributes(node);
+    }
+
+    // Adds the subtrees of more than threshold points below the top levels to subtrees, in
+    // depth-first order, and returns the number of nodes of the top levels below the given node.
+    private int collectSubtrees(int depth, int from, int to, @NonNull long[] keys, int threshold,
+                                @NonNull List<Subtree> subtrees) {
+        if (isLeaf(depth, from, to)) {
+            return 0;
+        }
+        if (to - from <= threshold) {
+            subtrees.add(new Subtree(depth, from, to));
+            return 0;
+        }
+
+        int nodeCount = 4;
+        int shift = 2 * (KEY_DEPTH - 1 - depth);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : upperBound(keys, from, to, shift, quadrant);
+            if (end > from) {
+                nodeCount += collectSubtrees(depth + 1, from, end, keys, threshold, subtrees);
+            }
+            from = end;
+        }
+        return nodeCount;
+    }
+
+    // Returns the number of nodes below a node built from the sorted points in [from, to).
+    private int countNodes(int depth, int from, int to, @NonNull long[] keys) {
+        if (isLeaf(depth, from, to)) {
+            return 0;
+        }
+
+        int nodeCount = 4;
+        int shift = 2 * (KEY_DEPTH - 1 - depth);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : upperBound(keys, from, to, shift, quadrant);
+            if (end > from) {
+                nodeCount += countNodes(depth + 1, from, end, keys);
+            }
+            from = end;
+        }
+        return nodeCount;
+    }
+
+    // Allocates the nodes of the top levels, fills their leaves and reserves the nodes of the
+    // subtrees, in the same order as build.
+    private void layOut(int node, int depth, int from, int to, @NonNull long[] keys, int threshold,
+                        @NonNull Iterator<Subtree> subtrees) {
+        if (isLeaf(depth, from, to)) {
+            buildLeaf(node, from, to);
+            return;
+        }
+        if (to - from <= threshold) {
+            Subtree subtree = subtrees.next();
+            subtree.node = node;
+            subtree.firstFreeNode = nodeCount;
+            nodeCount += subtree.nodeCount;
+            return;
+        }
+
+        int child = takeChildren(node, nodeCount);
+        nodeCount += 4;
+        int shift = 2 * (KEY_DEPTH - 1 - depth);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : upperBound(keys, from, to, shift, quadrant);
+            if (end > from) {
+                layOut(child + quadrant, depth + 1, from, end, keys, threshold, subtrees);
+            }
+            from = end;
+        }
+    }
+
+    // Adds the aggregates of the children to the nodes of the top levels once the subtrees are
+    // built, in the same order as build.
+    private void mergeTop(int node, int depth, int from, int to, @NonNull long[] keys, int threshold) {
+        if (isLeaf(depth, from, to) || to - from <= threshold) {
+            return;
+        }
+
+        int child = firstChild[node];
+        int shift = 2 * (KEY_DEPTH - 1 - depth);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : upperBound(keys, from, to, shift, quadrant);
+            if (end > from) {
+                mergeTop(child + quadrant, depth + 1, from, end, keys, threshold);
+                merge(node, child + quadrant);
+            }
+            from = end;
+        }
+    }
+
+    // Builds the subtree of a node from the sorted points in [from, to), taking the nodes it
+    // needs from firstFreeNode on, which must already be allocated. Returns the first node left.
+    private int build(int node, int depth, int from, int to, @NonNull long[] keys, int firstFreeNode) {
+        if (isLeaf(depth, from, to)) {
+            buildLeaf(node, from, to);
+            return firstFreeNode;
+        }
+
+        int child = takeChildren(node, firstFreeNode);
+        firstFreeNode += 4;
+        int shift = 2 * (KEY_DEPTH - 1 - depth);
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int end = quadrant == 3 ? to : upperBound(keys, from, to, shift, quadrant);
+            if (end > from) {
+                firstFreeNode = build(child + quadrant, depth + 1, from, end, keys, firstFreeNode);
+                merge(node, child + quadrant);
+            }
+            from = end;
+        }
+        return firstFreeNode;
+    }
+
+    private boolean isLeaf(int depth, int from, int to) {
+        return to - from <= bucketSize || depth == maxDepth;
+    }
+
+    private void buildLeaf(int node, int from, int to) {
+        for (int point = to - 1; point >= from; point--) {
+            nextPoint[point] = firstPoint[node];
+            firstPoint[node] = point;
+            accumulate(node, latitudes[point], longitudes[point], attributeMask(attributesAt(point)));
+        }
+        pointCount[node] = to - from;
+    }
+
+    private int takeChildren(int node, int child) {
+        firstChild[node] = child;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            initNode(child + quadrant);
+        }
+        return child;
+    }
+
+    private void accumulate(int node, double latitude, double longitude, long attributeMask) {
+        subtreeSize[node]++;
+        latitudeSum[node] += latitude;
+        longitudeSum[node] += longitude;
+        if (anyAttributes != null) {
+            anyAttributes[node] |= attributeMask;
+            allAttributes[node] &= attributeMask;
+        }
+        minLatitude[node] = Math.min(minLatitude[node], latitude);
+        maxLatitude[node] = Math.max(maxLatitude[node], latitude);
+        minLongitude[node] = Math.min(minLongitude[node], longitude);
+        maxLongitude[node] = Math.max(maxLongitude[node], longitude);
+    }
+
+    private void merge(int node, int child) {
+        subtreeSize[node] += subtreeSize[child];
+        latitudeSum[node] += latitudeSum[child];
+        longitudeSum[node] += longitudeSum[child];
+        if (anyAttributes != null) {
+            anyAttributes[node] |= anyAttributes[child];
+            allAttributes[node] &= allAttributes[child];
+        }
+        minLatitude[node] = Math.min(minLatitude[node], minLatitude[child]);
+        maxLatitude[node] = Math.max(maxLatitude[node], maxLatitude[child]);
+        minLongitude[node] = Math.min(minLongitude[node], minLongitude[child]);
+        maxLongitude[node] = Math.max(maxLongitude[node], maxLongitude[child]);
+    }
+
+    // Returns the first index in [from, to) whose quadrant at the given shift exceeds quadrant.
+    static int upperBound(@NonNull long[] keys, int from, int to, int shift, int quadrant) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (((keys[middle] >>> shift) & 3) <= quadrant) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    // Returns the Morton code of the quad at KEY_DEPTH that insert would put the coordinates in.
+    private static long quadrantKey(double latitude, double longitude) {
+        // The bounds of every quad down to KEY_DEPTH are exact multiples of the cell size, so
+        // the row and column estimated by division only need correcting near cell edges.
+        // Rows include their southern edge and columns their western edge, which matches
+        // the north-west preference of insert.
+        int cells = 1 << KEY_DEPTH;
+        double rowHeight = (ROOT_NORTH - ROOT_SOUTH) / cells;
+        double columnWidth = (ROOT_EAST - ROOT_WEST) / cells;
+
+        int row = (int) Math.min((ROOT_NORTH - latitude) / rowHeight, cells - 1);
+        while (row > 0 && latitude >= ROOT_NORTH - row * rowHeight) {
+            row--;
+        }
+        while (row < cells - 1 && latitude < ROOT_NORTH - (row + 1) * rowHeight) {
+            row++;
+        }
+
+        int column = (int) Math.min((longitude - ROOT_WEST) / columnWidth, cells - 1);
+        while (column > 0 && longitude <= ROOT_WEST + column * columnWidth) {
+            column--;
+        }
+        while (column < cells - 1 && longitude > ROOT_WEST + (column + 1) * columnWidth) {
+            column++;
+        }
+
+        // Interleave, so that each level contributes a quadrant of (south << 1) | east.
+        return (spreadBits(row) << 1) | spreadBits(column);
+    }
+
+    // Moves the bits of value to the even bit positions of the result.
+    static long spreadBits(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+
+    private void addPoint(int node, @NonNull T point, double latitude, double longitude, int layer,
+                          int pointAttributes) {
+        if (size == latitudes.length) {
+            // Arrays read from a snapshot fit their points exactly, and may be empty.
+            int capacity = Math.max(size + (size >> 1), INITIAL_POINT_CAPACITY);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            if (points != null) {
+                points = Arrays.copyOf(points, capacity);
+            }
+            if (ids != null) {
+                ids = Arrays.copyOf(ids, capacity);
+            }
+            if (layers != null) {
+                layers = Arrays.copyOf(layers, capacity);
+            }
+            if (attributes != null) {
+                attributes = Arrays.copyOf(attributes, capacity);
+            }
+            nextPoint = Arrays.copyOf(nextPoint, capacity);
+        }
+        if (points == null) {
+            points = new Object[latitudes.length];
+        }
+
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        points[size] = point;
+        if (layers != null) {
+            layers[size] = (byte) layer;
+        }
+        if (attributes != null) {
+            attributes[size] = pointAttributes;
+        }
+        if (pointIndices != null) {
+            pointIndices.put(point, size);
+        }
+        nextPoint[size] = firstPoint[node];
+        firstPoint[node] = size;
+        pointCount[node]++;
+        size++;
+    }
+
+    private void subdivide(int node) {
+        if (freeChildren != NONE) {
+            int child = freeChildren;
+            freeChildren = firstChild[child];
+            firstChild[node] = child;
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                initNode(child + quadrant);
+            }
+            return;
+        }
+
+        if (nodeCount + 4 > firstChild.length) {
+            int capacity = Math.max(nodeCount + 4, firstChild.length + (firstChild.length >> 1));
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            firstPoint = Arrays.copyOf(firstPoint, capacity);
+            pointCount = Arrays.copyOf(pointCount, capacity);
+            subtreeSize = Arrays.copyOf(subtreeSize, capacity);
+            latitudeSum = Arrays.copyOf(latitudeSum, capacity);
+            longitudeSum = Arrays.copyOf(longitudeSum, capacity);
+            minLatitude = Arrays.copyOf(minLatitude, capacity);
+            maxLatitude = Arrays.copyOf(maxLatitude, capacity);
+            minLongitude = Arrays.copyOf(minLongitude, capacity);
+            maxLongitude = Arrays.copyOf(maxLongitude, capacity);
+            if (layerSlot != null) {
+                layerSlot = Arrays.copyOf(layerSlot, capacity);
+            }
+            if (anyAttributes != null) {
+                anyAttributes = Arrays.copyOf(anyAttributes, capacity);
+                allAttributes = Arrays.copyOf(allAttributes, capacity);
+            }
+        }
+
+        firstChild[node] = nodeCount;
+        for (int child = nodeCount; child < nodeCount + 4; child++) {
+            initNode(child);
+        }
+        nodeCount += 4;
+    }
+
+    private void allocate(int pointCapacity, int nodeCapacity) {
+        allocate(new double[pointCapacity], new double[pointCapacity], nodeCapacity);
+    }
+
+    // Like allocate(int, int), but with the given arrays for the coordinates of the points.
+    private void allocate(@NonNull double[] pointLatitudes, @NonNull double[] pointLongitudes, int nodeCapacity) {
+        int pointCapacity = pointLatitudes.length;
+        firstChild = new int[nodeCapacity];
+        firstPoint = new int[nodeCapacity];
+        pointCount = new int[nodeCapacity];
+        subtreeSize = new int[nodeCapacity];
+        latitudeSum = new double[nodeCapacity];
+        longitudeSum = new double[nodeCapacity];
+        minLatitude = new double[nodeCapacity];
+        maxLatitude = new double[nodeCapacity];
+        minLongitude = new double[nodeCapacity];
+        maxLongitude = new double[nodeCapacity];
+        if (storedLayerCount > 0) {
+            layerSlot = new int[nodeCapacity];
+            layerSize = new int[INITIAL_LAYER_SLOT_CAPACITY * storedLayerCount];
+            layerLatitudeSum = new double[INITIAL_LAYER_SLOT_CAPACITY * storedLayerCount];
+            layerLongitudeSum = new double[INITIAL_LAYER_SLOT_CAPACITY * storedLayerCount];
+            layerSlotCount = 0;
+            freeLayerSlots = NONE;
+        }
+        anyAttributes = null;
+        allAttributes = null;
+        initNode(0);
+        nodeCount = 1;
+        freeChildren = NONE;
+
+        latitudes = pointLatitudes;
+        longitudes = pointLongitudes;
+        points = null;
+        ids = null;
+        nextPoint = new int[pointCapacity];
+        layers = layerCount > 1 ? new byte[pointCapacity] : null;
+        attributes = null;
+        size = 0;
+        pointIndices = null;
+    }
+
+    // Allocates the attribute arrays, with every node empty, i.e. with the masks of initNode.
+    private void allocateAttributes(int pointCapacity, int nodeCapacity) {
+        attributes = new int[pointCapacity];
+        anyAttributes = new long[nodeCapacity];
+        allAttributes = new long[nodeCapacity];
+        Arrays.fill(allAttributes, -1L);
+    }
+
+    private void initNode(int node) {
+        firstChild[node] = NONE;
+        firstPoint[node] = NONE;
+        pointCount[node] = 0;
+        subtreeSize[node] = 0;
+        latitudeSum[node] = 0.0;
+        longitudeSum[node] = 0.0;
+        minLatitude[node] = Double.POSITIVE_INFINITY;
+        maxLatitude[node] = Double.NEGATIVE_INFINITY;
+        minLongitude[node] = Double.POSITIVE_INFINITY;
+        maxLongitude[node] = Double.NEGATIVE_INFINITY;
+        if (layerSlot != null) {
+            layerSlot[node] = NONE;
+        }
+        if (anyAttributes != null) {
+            anyAttributes[node] = 0L;
+            allAttributes[node] = -1L;
+        }
+    }
+
+    // Returns false if the subtree has no points of the layer. A node without aggregates per layer
+    // may have some if it has any points.
+    private boolean mayHaveLayer(int node, int layer) {
+        int slot = layerSlot[node];
+        if (slot == NONE) {
+            return subtreeSize[node] > 0;
+        }
+        int from = slot * storedLayerCount;
+        if (layer < storedLayerCount) {
+            return layerSize[from + layer] > 0;
+        }
+        int size = subtreeSize[node];
+        for (int i = from; i < from + storedLayerCount; i++) {
+            size -= layerSize[i];
+        }
+        return size > 0;
+    }
+
+    // Adds a point on its way down to the aggregates per layer of the node, giving the node a slot
+    // once its subtree is large enough. The point is not linked yet, so it is added after the walk.
+    private void accumulateLayer(int node, double latitude, double longitude, int layer) {
+        int slot = layerSlot[node];
+        if (slot == NONE) {
+            if (subtreeSize[node] < LAYER_AGGREGATE_MIN_SIZE) {
+                return;
+            }
+            slot = takeLayerSlot(node);
+        }
+        if (layer < storedLayerCount) {
+            int i = slot * storedLayerCount + layer;
+            layerSize[i]++;
+            layerLatitudeSum[i] += latitude;
+            layerLongitudeSum[i] += longitude;
+        }
+    }
+
+    // Gives the nodes of large enough subtrees below the node their aggregates per layer, bottom
+    // up, after a bulk build, which leaves them out.
+    private void addLayerAggregates(int node) {
+        if (layerSlot == null || subtreeSize[node] < LAYER_AGGREGATE_MIN_SIZE) {
+            return;
+        }
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                addLayerAggregates(child + quadrant);
+            }
+        }
+        takeLayerSlot(node);
+    }
+
+    // Gives the node a slot and fills it from the points of its subtree, using the slots of the
+    // nodes below that have one.
+    private int takeLayerSlot(int node) {
+        int slot;
+        if (freeLayerSlots != NONE) {
+            slot = freeLayerSlots;
+            freeLayerSlots = layerSize[slot * storedLayerCount];
+        } else {
+            if ((layerSlotCount + 1) * storedLayerCount > layerSize.length) {
+                int capacity = (layerSlotCount + (layerSlotCount >> 1) + 1) * storedLayerCount;
+                layerSize = Arrays.copyOf(layerSize, capacity);
+                layerLatitudeSum = Arrays.copyOf(layerLatitudeSum, capacity);
+                layerLongitudeSum = Arrays.copyOf(layerLongitudeSum, capacity);
+            }
+            slot = layerSlotCount++;
+        }
+        int from = slot * storedLayerCount;
+        Arrays.fill(layerSize, from, from + storedLayerCount, 0);
+        Arrays.fill(layerLatitudeSum, from, from + storedLayerCount, 0.0);
+        Arrays.fill(layerLongitudeSum, from, from + storedLayerCount, 0.0);
+        addLayerSums(from, node);
+        layerSlot[node] = slot;
+        return slot;
+    }
+
+    private void addLayerSums(int from, int node) {
+        int slot = layerSlot[node];
+        if (slot != NONE) {
+            for (int i = from, j = slot * storedLayerCount; i < from + storedLayerCount; i++, j++) {
+                layerSize[i] += layerSize[j];
+                layerLatitudeSum[i] += layerLatitudeSum[j];
+                layerLongitudeSum[i] += layerLongitudeSum[j];
+            }
+            return;
+        }
+        for (int point = firstPoint[node]; point != NONE; point = nextPoint[point]) {
+            int layer = layers[point];
+            if (layer < storedLayerCount) {
+                layerSize[from + layer]++;
+                layerLatitudeSum[from + layer] += latitudes[point];
+                layerLongitudeSum[from + layer] += longitudes[point];
+            }
+        }
+        int child = firstChild[node];
+        if (child != NONE) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                addLayerSums(from, child + quadrant);
+            }
+        }
+    }
+
+    private void freeLayerSlot(int node) {
+        int slot = layerSlot[node];
+        if (slot != NONE) {
+            layerSize[slot * storedLayerCount] = freeLayerSlots;
+            freeLayerSlots = slot;
+            layerSlot[node] = NONE;
+        }
+    }
+
+    // Returns the union of the attribute masks of the subtree, which for a tree without attributes
+    // is that of points without attributes.
+    private long anyAttributesOf(int node) {
+        return anyAttributes == null ? NO_ATTRIBUTES : anyAttributes[node];
+    }
+
+    private long allAttributesOf(int node) {
+        return allAttributes == null ? NO_ATTRIBUTES : allAttributes[node];
+    }
+
+    private boolean matches(int point, long filter) {
+        return filter == NO_FILTER || (attributeMask(attributesAt(point)) & filter) != 0;
+    }
+
+    // Returns the mask of the given attributes, which sets a bit of its own for none, so that
+    // every point has a bit in the masks of its nodes.
+    private static long attributeMask(int attributes) {
+        return attributes == 0 ? NO_ATTRIBUTES : attributes & 0xFFFFFFFFL;
+    }
+
+    private static boolean contains(double north, double west, double south, double east,
+                                    double latitude, double longitude) {
+        return longitude >= west && longitude <= east && latitude <= north && latitude >= south;
+    }
+
+    private static boolean intersects(double north1, double west1, double south1, double east1,
+                                      double north2, double west2, double south2, double east2) {
+        return west1 <= east2 && east1 >= west2 && north1 >= south2 && south1 <= north2;
     }
 }
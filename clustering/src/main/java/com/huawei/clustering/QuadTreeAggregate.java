@@ -0,0 +1,41 @@
+package com.huawei.clustering;
+
+import java.util.Arrays;
+
+/**
+ * The number and coordinate sums of the points found by
+ * {@link QuadTree#aggregateRange(double, double, double, double, QuadTreeAggregate)}, in total and
+ * for every layer if there is more than one.
+ */
+class QuadTreeAggregate {
+
+    int size;
+    double latitudeSum;
+    double longitudeSum;
+
+    // Null if there is only one layer.
+    final int[] layerSizes;
+    final double[] layerLatitudeSums;
+    final double[] layerLongitudeSums;
+
+    QuadTreeAggregate() {
+        this(1);
+    }
+
+    QuadTreeAggregate(int layerCount) {
+        layerSizes = layerCount > 1 ? new int[layerCount] : null;
+        layerLatitudeSums = layerCount > 1 ? new double[layerCount] : null;
+        layerLongitudeSums = layerCount > 1 ? new double[layerCount] : null;
+    }
+
+    void reset() {
+        size = 0;
+        latitudeSum = 0.0;
+        longitudeSum = 0.0;
+        if (layerSizes != null) {
+            Arrays.fill(layerSizes, 0);
+            Arrays.fill(layerLatitudeSums, 0.0);
+            Arrays.fill(layerLongitudeSums, 0.0);
+        }
+    }
+}
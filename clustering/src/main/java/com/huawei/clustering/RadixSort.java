@@ -0,0 +1,44 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+final class RadixSort {
+
+    private static final int RADIX_BITS = 16;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+
+    /**
+     * Sorts the first count non-negative keys using their lowest keyBits bits, applying the
+     * same permutation to values. The sort is stable.
+     */
+    static void sort(@NonNull long[] keys, @NonNull int[] values, int count, int keyBits) {
+        long[] keyBuffer = new long[count];
+        int[] valueBuffer = new int[count];
+        int[] offsets = new int[RADIX_MASK + 1];
+
+        for (int shift = 0; shift < keyBits; shift += RADIX_BITS) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < count; i++) {
+                offsets[(int) (keys[i] >>> shift) & RADIX_MASK]++;
+            }
+            int offset = 0;
+            for (int digit = 0; digit <= RADIX_MASK; digit++) {
+                int digitCount = offsets[digit];
+                offsets[digit] = offset;
+                offset += digitCount;
+            }
+            for (int i = 0; i < count; i++) {
+                int position = offsets[(int) (keys[i] >>> shift) & RADIX_MASK]++;
+                keyBuffer[position] = keys[i];
+                valueBuffer[position] = values[i];
+            }
+            System.arraycopy(keyBuffer, 0, keys, 0, count);
+            System.arraycopy(valueBuffer, 0, values, 0, count);
+        }
+    }
+
+    private RadixSort() {
+    }
+}
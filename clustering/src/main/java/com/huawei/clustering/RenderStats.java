@@ -0,0 +1,260 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Describes how many markers the clustering passes added, updated in place and removed, in total
+ * and for the last pass. Markers of clusters whose items changed are updated rather than replaced,
+ * so with items updated live most markers should be kept or updated.
+ * <p>
+ * Markers taken from and returned to the pool set with
+ * {@link ClusterManager#setMarkerPoolSize(int)} are added and removed without calling into the
+ * map, which the call counts tell apart. With a frame budget set with
+ * {@link ClusterManager#setRenderFrameBudget(long)}, the changes of a pass are spread over
+ * frames, which the frame counts describe.
+ */
+public final class RenderStats {
+
+    /**
+     * The changes made by a renderer, or by all of them.
+     */
+    static final class Counts {
+
+        long added;
+        long updated;
+        long removed;
+        long addMarkerCalls;
+        long removeMarkerCalls;
+        long operations;
+        long frames;
+        long droppedFrames;
+
+        void add(@NonNull Counts counts) {
+            added += counts.added;
+            updated += counts.updated;
+            removed += counts.removed;
+            addMarkerCalls += counts.addMarkerCalls;
+            removeMarkerCalls += counts.removeMarkerCalls;
+            operations += counts.operations;
+            frames += counts.frames;
+            droppedFrames += counts.droppedFrames;
+        }
+
+        void subtract(@NonNull Counts counts) {
+            added -= counts.added;
+            updated -= counts.updated;
+            removed -= counts.removed;
+            addMarkerCalls -= counts.addMarkerCalls;
+            removeMarkerCalls -= counts.removeMarkerCalls;
+            operations -= counts.operations;
+            frames -= counts.frames;
+            droppedFrames -= counts.droppedFrames;
+        }
+    }
+
+    private final Counts total;
+    private final Counts lastPass;
+    private final int lastPassKeptCount;
+    private final int pendingCount;
+    private final int pooledMarkerCount;
+
+    RenderStats(@NonNull Counts total, @NonNull Counts lastPass,
+                int lastPassKeptCount, int pendingCount, int pooledMarkerCount) {
+        this.total = total;
+        this.lastPass = lastPass;
+        this.lastPassKeptCount = lastPassKeptCount;
+        this.pendingCount = pendingCount;
+        this.pooledMarkerCount = pooledMarkerCount;
+    }
+
+    /**
+     * The number of markers added since the manager was created.
+     *
+     * @return the number of added markers
+     */
+    public long getAddedCount() {
+        return total.added;
+    }
+
+    /**
+     * The number of times a marker was moved or given a new icon since the manager was created.
+     *
+     * @return the number of marker updates
+     */
+    public long getUpdatedCount() {
+        return total.updated;
+    }
+
+    /**
+     * The number of markers removed since the manager was created.
+     *
+     * @return the number of removed markers
+     */
+    public long getRemovedCount() {
+        return total.removed;
+    }
+
+    /**
+     * The number of markers added to the map since the manager was created, i.e. not taken from
+     * the pool.
+     *
+     * @return the number of markers added to the map
+     */
+    public long getAddMarkerCallCount() {
+        return total.addMarkerCalls;
+    }
+
+    /**
+     * The number of markers removed from the map since the manager was created, i.e. not
+     * returned to the pool.
+     *
+     * @return the number of markers removed from the map
+     */
+    public long getRemoveMarkerCallCount() {
+        return total.removeMarkerCalls;
+    }
+
+    /**
+     * The number of frames markers were changed in since the manager was created. Changes
+     * applied at once count as one frame.
+     *
+     * @return the number of frames with marker changes
+     */
+    public long getFrameCount() {
+        return total.frames;
+    }
+
+    /**
+     * The number of frames skipped while the changes of a pass were spread over frames, since the
+     * manager was created.
+     *
+     * @return the number of dropped frames
+     */
+    public long getDroppedFrameCount() {
+        return total.droppedFrames;
+    }
+
+    /**
+     * The number of markers added by the last pass.
+     *
+     * @return the number of markers added by the last pass
+     */
+    public int getLastPassAddedCount() {
+        return (int) lastPass.added;
+    }
+
+    /**
+     * The number of markers moved or given a new icon by the last pass.
+     *
+     * @return the number of markers updated by the last pass
+     */
+    public int getLastPassUpdatedCount() {
+        return (int) lastPass.updated;
+    }
+
+    /**
+     * The number of markers removed by the last pass.
+     *
+     * @return the number of markers removed by the last pass
+     */
+    public int getLastPassRemovedCount() {
+        return (int) lastPass.removed;
+    }
+
+    /**
+     * The number of markers the last pass left as they were.
+     *
+     * @return the number of markers kept by the last pass
+     */
+    public int getLastPassKeptCount() {
+        return lastPassKeptCount;
+    }
+
+    /**
+     * The number of markers added to the map by the last pass.
+     *
+     * @return the number of markers added to the map by the last pass
+     */
+    public int getLastPassAddMarkerCallCount() {
+        return (int) lastPass.addMarkerCalls;
+    }
+
+    /**
+     * The number of markers removed from the map since the pass before, including those removed
+     * once their animations of that pass ended.
+     *
+     * @return the number of markers removed from the map by the last pass
+     */
+    public int getLastPassRemoveMarkerCallCount() {
+        return (int) lastPass.removeMarkerCalls;
+    }
+
+    /**
+     * The number of frames the last pass changed markers in so far.
+     *
+     * @return the number of frames of the last pass
+     */
+    public int getLastPassFrameCount() {
+        return (int) lastPass.frames;
+    }
+
+    /**
+     * The number of frames skipped while the last pass changed markers.
+     *
+     * @return the number of dropped frames of the last pass
+     */
+    public int getLastPassDroppedFrameCount() {
+        return (int) lastPass.droppedFrames;
+    }
+
+    /**
+     * The average number of markers added, updated or removed per frame by the last pass.
+     *
+     * @return the number of changes per frame of the last pass, or 0 if it changed nothing yet
+     */
+    public double getLastPassOperationsPerFrame() {
+        return lastPass.frames == 0 ? 0.0 : (double) lastPass.operations / lastPass.frames;
+    }
+
+    /**
+     * The number of marker changes of the last pass that are left for the next frames.
+     *
+     * @return the number of pending changes
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * The number of hidden markers in the pool, over all layers.
+     *
+     * @return the number of pooled markers
+     */
+    public int getPooledMarkerCount() {
+        return pooledMarkerCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderStats{" +
+                "addedCount=" + total.added +
+                ", updatedCount=" + total.updated +
+                ", removedCount=" + total.removed +
+                ", addMarkerCallCount=" + total.addMarkerCalls +
+                ", removeMarkerCallCount=" + total.removeMarkerCalls +
+                ", frameCount=" + total.frames +
+                ", droppedFrameCount=" + total.droppedFrames +
+                ", lastPassAddedCount=" + lastPass.added +
+                ", lastPassUpdatedCount=" + lastPass.updated +
+                ", lastPassRemovedCount=" + lastPass.removed +
+                ", lastPassKeptCount=" + lastPassKeptCount +
+                ", lastPassAddMarkerCallCount=" + lastPass.addMarkerCalls +
+                ", lastPassRemoveMarkerCallCount=" + lastPass.removeMarkerCalls +
+                ", lastPassFrameCount=" + lastPass.frames +
+                ", lastPassDroppedFrameCount=" + lastPass.droppedFrames +
+                ", lastPassOperationsPerFrame=" + getLastPassOperationsPerFrame() +
+                ", pendingCount=" + pendingCount +
+                ", pooledMarkerCount=" + pooledMarkerCount +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks in the background of a {@link ClusterScheduler} one at a time and in order, so that
+ * the tasks of one {@link ClusterManager} behave as if run by a single thread, even when the
+ * scheduler spreads them over a pool. Each task sees everything done by the tasks before it.
+ */
+class SerialExecutor implements Executor {
+
+    private final ClusterScheduler mScheduler;
+
+    // Guarded by this.
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    SerialExecutor(@NonNull ClusterScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public synchronized void execute(@NonNull Runnable task) {
+        mTasks.add(Preconditions.checkNotNull(task));
+        if (!mRunning) {
+            mRunning = true;
+            scheduleNext();
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void scheduleNext() {
+        final Runnable task = mTasks.poll();
+        if (task == null) {
+            mRunning = false;
+            return;
+        }
+        try {
+            mScheduler.executeInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        synchronized (SerialExecutor.this) {
+                            scheduleNext();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // E.g. rejected by a released scheduler, so nothing would ever run the next task.
+            mTasks.clear();
+            mRunning = false;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Groups points by tile in a single pass. The size, coordinate sums and members of each tile
+ * are kept in flat arrays, and tiles are found through an open addressing hash table keyed by
+ * the tile key. A binner is meant to be reused, so that once its arrays have grown to the
+ * working size a clustering pass allocates nothing.
+ * <p>
+ * As a {@link QuadTree.PointVisitor}, a binner adds every visited point to the bin of its tile
+ * in the grid passed to {@link #clear(TileGrid, Cancellation)}, with the index of the point in
+ * the {@link QuadTree} as the point, and stops the query once the pass is cancelled.
+ */
+class TileBinner implements QuadTree.PointVisitor {
+
+    static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Visited points between checks for cancellation, a power of two.
+    private static final int CANCELLATION_INTERVAL = 1024;
+
+    // Hash table from tile key to bin, twice as large as the number of bins it can hold.
+    private long[] tableKeys = new long[2 * INITIAL_CAPACITY];
+    private int[] tableBins = new int[2 * INITIAL_CAPACITY];
+
+    // Bins.
+    private long[] tileKeys = new long[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    private double[] latitudeSums = new double[INITIAL_CAPACITY];
+    private double[] longitudeSums = new double[INITIAL_CAPACITY];
+    private int[] firstMembers = new int[INITIAL_CAPACITY];
+    private int binCount;
+
+    private TileGrid tileGrid;
+    private Cancellation cancellation;
+    private int visitCount;
+
+    // Members of the bins, numbered in the order they were added and linked by member number.
+    // Sized by the number of added points, so that a binner over part of the points stays small.
+    private int[] memberPoints = new int[INITIAL_CAPACITY];
+    private int[] nextMembers = new int[INITIAL_CAPACITY];
+    private int memberCount;
+
+    TileBinner() {
+        Arrays.fill(tableBins, NONE);
+    }
+
+    /**
+     * Removes all bins and sets the grid used to bin visited points and the cancellation that
+     * stops visiting.
+     */
+    void clear(@NonNull TileGrid tileGrid, @NonNull Cancellation cancellation) {
+        Arrays.fill(tableBins, NONE);
+        binCount = 0;
+        memberCount = 0;
+        this.tileGrid = tileGrid;
+        this.cancellation = cancellation;
+        visitCount = 0;
+    }
+
+    @Override
+    public boolean visitPoint(int index, double latitude, double longitude) {
+        add(tileGrid.row(latitude) * tileGrid.tileCount + tileGrid.column(longitude),
+                index, latitude, longitude);
+        return (++visitCount & (CANCELLATION_INTERVAL - 1)) != 0 || !cancellation.isCancelled();
+    }
+
+    /**
+     * Adds a point to the bin of the given tile as a new member. Points are identified by the
+     * caller, e.g. by their index in the {@link QuadTree}, and returned by {@link #point(int)}.
+     */
+    void add(long tileKey, int point, double latitude, double longitude) {
+        int bin = findOrCreateBin(tileKey);
+        sizes[bin]++;
+        latitudeSums[bin] += latitude;
+        longitudeSums[bin] += longitude;
+
+        if (memberCount == nextMembers.length) {
+            memberPoints = Arrays.copyOf(memberPoints, 2 * memberCount);
+            nextMembers = Arrays.copyOf(nextMembers, 2 * memberCount);
+        }
+        int member = memberCount++;
+        memberPoints[member] = point;
+        nextMembers[member] = firstMembers[bin];
+        firstMembers[bin] = member;
+    }
+
+    /**
+     * Returns the bin of the given tile, or {@link #NONE} if no point was added to it.
+     */
+    int bin(long tileKey) {
+        int mask = tableKeys.length - 1;
+        for (int slot = hash(tileKey) & mask; tableBins[slot] != NONE; slot = (slot + 1) & mask) {
+            if (tableKeys[slot] == tileKey) {
+                return tableBins[slot];
+            }
+        }
+        return NONE;
+    }
+
+    int size(int bin) {
+        return sizes[bin];
+    }
+
+    double latitudeSum(int bin) {
+        return latitudeSums[bin];
+    }
+
+    double longitudeSum(int bin) {
+        return longitudeSums[bin];
+    }
+
+    int firstMember(int bin) {
+        return firstMembers[bin];
+    }
+
+    int nextMember(int member) {
+        return nextMembers[member];
+    }
+
+    int point(int member) {
+        return memberPoints[member];
+    }
+
+    private int findOrCreateBin(long tileKey) {
+        int mask = tableKeys.length - 1;
+        int slot = hash(tileKey) & mask;
+        while (tableBins[slot] != NONE) {
+            if (tableKeys[slot] == tileKey) {
+                return tableBins[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (binCount == tileKeys.length) {
+            grow();
+            return findOrCreateBin(tileKey);
+        }
+
+        int bin = binCount++;
+        tableKeys[slot] = tileKey;
+        tableBins[slot] = bin;
+        tileKeys[bin] = tileKey;
+        sizes[bin] = 0;
+        latitudeSums[bin] = 0.0;
+        longitudeSums[bin] = 0.0;
+        firstMembers[bin] = NONE;
+        return bin;
+    }
+
+    private void grow() {
+        int capacity = 2 * tileKeys.length;
+        tileKeys = Arrays.copyOf(tileKeys, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        latitudeSums = Arrays.copyOf(latitudeSums, capacity);
+        longitudeSums = Arrays.copyOf(longitudeSums, capacity);
+        firstMembers = Arrays.copyOf(firstMembers, capacity);
+
+        tableKeys = new long[2 * capacity];
+        tableBins = new int[2 * capacity];
+        Arrays.fill(tableBins, NONE);
+        int mask = tableKeys.length - 1;
+        for (int bin = 0; bin < binCount; bin++) {
+            int slot = hash(tileKeys[bin]) & mask;
+            while (tableBins[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            tableKeys[slot] = tileKeys[bin];
+            tableBins[slot] = bin;
+        }
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
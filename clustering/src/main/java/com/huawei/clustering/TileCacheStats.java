@@ -0,0 +1,140 @@
+package com.huawei.clustering;
+
+/**
+ * Describes how well the cache of computed tiles used by {@link ClusteringStrategy#TILE_GRID}
+ * performs, in total and for the last clustering pass. A hit is a visible tile whose clusters
+ * were cached, a miss one that had to be computed.
+ */
+public final class TileCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long savedTimeNanos;
+    private final int lastPassHitCount;
+    private final int lastPassMissCount;
+    private final long lastPassSavedTimeNanos;
+    private final int tileCount;
+    private final long memoryBytes;
+    private final long maxMemoryBytes;
+
+    TileCacheStats(long hitCount, long missCount, long savedTimeNanos,
+                   int lastPassHitCount, int lastPassMissCount, long lastPassSavedTimeNanos,
+                   int tileCount, long memoryBytes, long maxMemoryBytes) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.savedTimeNanos = savedTimeNanos;
+        this.lastPassHitCount = lastPassHitCount;
+        this.lastPassMissCount = lastPassMissCount;
+        this.lastPassSavedTimeNanos = lastPassSavedTimeNanos;
+        this.tileCount = tileCount;
+        this.memoryBytes = memoryBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * The number of visible tiles found in the cache since the manager was created.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of visible tiles computed since the manager was created.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The share of visible tiles found in the cache since the manager was created.
+     *
+     * @return the hit rate between 0 and 1, or 0 if no tile was looked up yet
+     */
+    public double getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups == 0 ? 0.0 : (double) hitCount / lookups;
+    }
+
+    /**
+     * The time it took to compute the tiles that were found in the cache since the manager was
+     * created, i.e. the time the cache saved.
+     *
+     * @return the saved time in nanoseconds
+     */
+    public long getSavedTimeNanos() {
+        return savedTimeNanos;
+    }
+
+    /**
+     * The number of visible tiles found in the cache by the last pass.
+     *
+     * @return the number of hits of the last pass
+     */
+    public int getLastPassHitCount() {
+        return lastPassHitCount;
+    }
+
+    /**
+     * The number of visible tiles computed by the last pass.
+     *
+     * @return the number of misses of the last pass
+     */
+    public int getLastPassMissCount() {
+        return lastPassMissCount;
+    }
+
+    /**
+     * The time the cache saved the last pass, e.g. after a pan.
+     *
+     * @return the saved time of the last pass in nanoseconds
+     */
+    public long getLastPassSavedTimeNanos() {
+        return lastPassSavedTimeNanos;
+    }
+
+    /**
+     * The number of cached tiles, over all zoom levels.
+     *
+     * @return the number of cached tiles
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * The approximate heap size of the cached tiles in bytes.
+     *
+     * @return the approximate heap size of the cached tiles in bytes
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * The budget of the cache in bytes, see {@link ClusterManager#setTileCacheSize(long)}.
+     *
+     * @return the budget of the cache in bytes
+     */
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "TileCacheStats{" +
+                "hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", savedTimeNanos=" + savedTimeNanos +
+                ", lastPassHitCount=" + lastPassHitCount +
+                ", lastPassMissCount=" + lastPassMissCount +
+                ", lastPassSavedTimeNanos=" + lastPassSavedTimeNanos +
+                ", tileCount=" + tileCount +
+                ", memoryBytes=" + memoryBytes +
+                ", maxMemoryBytes=" + maxMemoryBytes +
+                '}';
+    }
+}
@@ -0,0 +1,247 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The clusters of the tiles computed by earlier clustering passes, kept so that a pass only
+ * computes the tiles it has not seen before or whose items changed since. Tiles of every grid,
+ * i.e. zoom level, are kept together and the least recently used ones are dropped once their
+ * approximate size exceeds a budget.
+ * <p>
+ * Changes are recorded as the coordinates they touched, since the tile grid of the next pass is
+ * not known yet. When a pass starts, the tiles containing those coordinates are dropped from
+ * every grid, or all tiles if the minimum cluster size or the filter differs from the cached one.
+ * <p>
+ * Cached clusters must not be handed out as they are, see {@link Cluster#withItemsLoader}.
+ */
+class TileClusterCache<T extends ClusterItem> {
+
+    static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    // Beyond this, dropping everything is cheaper than tracking what changed.
+    private static final int MAX_CHANGES = 4096;
+
+    // Rough heap sizes of a cached tile, i.e. its map entry, key and list, and of a cluster in it,
+    // including the list of a single item. Items of larger clusters are never loaded into cached
+    // clusters, since passes get copies of them.
+    private static final int BYTES_PER_TILE = 128;
+    private static final int BYTES_PER_CLUSTER = 104;
+
+    // In order of use, the least recently used first.
+    private final LinkedHashMap<TileKey, Tile<T>> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    // The number of cached tiles of every grid, keyed by tile count.
+    private final Map<Long, Integer> gridTileCounts = new HashMap<>();
+    private final TileKey lookupKey = new TileKey();
+    private long bytes;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int minClusterSize;
+    private long filter = QuadTree.NO_FILTER;
+
+    private double[] changedLatitudes = new double[16];
+    private double[] changedLongitudes = new double[16];
+    private int changeCount;
+    private boolean invalid = true;
+
+    private long hitCount;
+    private long missCount;
+    private long savedNanos;
+    private int passHitCount;
+    private int passMissCount;
+    private long passSavedNanos;
+
+    private static final class TileKey {
+
+        long tileCount;
+        long row;
+        long column;
+
+        TileKey() {
+        }
+
+        TileKey(long tileCount, long row, long column) {
+            this.tileCount = tileCount;
+            this.row = row;
+            this.column = column;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return tileCount == other.tileCount && row == other.row && column == other.column;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = (tileCount * 31 + row) * 31 + column;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    private static final class Tile<T extends ClusterItem> {
+
+        final List<Cluster<T>> clusters;
+        final long computeNanos;
+
+        Tile(@NonNull List<Cluster<T>> clusters, long computeNanos) {
+            this.clusters = clusters;
+            this.computeNanos = computeNanos;
+        }
+
+        long bytes() {
+            return BYTES_PER_TILE + (long) clusters.size() * BYTES_PER_CLUSTER;
+        }
+    }
+
+    /**
+     * Records that an item was added or removed at the given coordinates.
+     */
+    void invalidate(double latitude, double longitude) {
+        if (invalid) {
+            return;
+        }
+        if (changeCount == MAX_CHANGES) {
+            invalidateAll();
+            return;
+        }
+        if (changeCount == changedLatitudes.length) {
+            changedLatitudes = Arrays.copyOf(changedLatitudes, 2 * changeCount);
+            changedLongitudes = Arrays.copyOf(changedLongitudes, 2 * changeCount);
+        }
+        changedLatitudes[changeCount] = latitude;
+        changedLongitudes[changeCount] = longitude;
+        changeCount++;
+    }
+
+    void invalidateAll() {
+        invalid = true;
+        changeCount = 0;
+    }
+
+    /**
+     * Drops the tiles affected by the changes recorded since the last pass and starts counting
+     * the hits of a new pass. Must be called before the tiles of a pass are looked up.
+     */
+    void prepare(int minClusterSize, long filter, long maxBytes) {
+        if (invalid || minClusterSize != this.minClusterSize || filter != this.filter) {
+            clear();
+            this.minClusterSize = minClusterSize;
+            this.filter = filter;
+        } else if (changeCount > 0) {
+            for (Long tileCount : gridTileCounts.keySet().toArray(new Long[0])) {
+                TileGrid tileGrid = new TileGrid(tileCount);
+                for (int i = 0; i < changeCount; i++) {
+                    lookupKey.tileCount = tileCount;
+                    lookupKey.row = tileGrid.row(changedLatitudes[i]);
+                    lookupKey.column = tileGrid.column(changedLongitudes[i]);
+                    remove(lookupKey);
+                }
+            }
+        }
+        invalid = false;
+        changeCount = 0;
+
+        this.maxBytes = maxBytes;
+        trim();
+        passHitCount = 0;
+        passMissCount = 0;
+        passSavedNanos = 0;
+    }
+
+    /**
+     * Returns the clusters of a tile, or null if they are not cached, which counts as a miss.
+     */
+    @Nullable
+    List<Cluster<T>> get(@NonNull TileGrid tileGrid, long row, long column) {
+        lookupKey.tileCount = tileGrid.tileCount;
+        lookupKey.row = row;
+        lookupKey.column = column;
+        Tile<T> tile = tiles.get(lookupKey);
+        if (tile == null) {
+            missCount++;
+            passMissCount++;
+            return null;
+        }
+        hitCount++;
+        passHitCount++;
+        savedNanos += tile.computeNanos;
+        passSavedNanos += tile.computeNanos;
+        return tile.clusters;
+    }
+
+    /**
+     * Returns whether the clusters of a tile are cached, without counting a hit or a miss.
+     */
+    boolean contains(@NonNull TileGrid tileGrid, long row, long column) {
+        lookupKey.tileCount = tileGrid.tileCount;
+        lookupKey.row = row;
+        lookupKey.column = column;
+        return tiles.containsKey(lookupKey);
+    }
+
+    /**
+     * Caches the clusters of a tile, which took the given time to compute, and drops the least
+     * recently used tiles if the cache is then over its budget.
+     */
+    void put(@NonNull TileGrid tileGrid, long row, long column, @NonNull List<Cluster<T>> clusters,
+             long computeNanos) {
+        Tile<T> tile = new Tile<>(clusters, computeNanos);
+        Tile<T> previous = tiles.put(new TileKey(tileGrid.tileCount, row, column), tile);
+        if (previous != null) {
+            bytes -= previous.bytes();
+        } else {
+            Integer gridTileCount = gridTileCounts.get(tileGrid.tileCount);
+            gridTileCounts.put(tileGrid.tileCount, gridTileCount == null ? 1 : gridTileCount + 1);
+        }
+        bytes += tile.bytes();
+        trim();
+    }
+
+    @NonNull
+    TileCacheStats getStats() {
+        return new TileCacheStats(hitCount, missCount, savedNanos, passHitCount, passMissCount,
+                passSavedNanos, tiles.size(), bytes, maxBytes);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<TileKey, Tile<T>>> iterator = tiles.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<TileKey, Tile<T>> entry = iterator.next();
+            iterator.remove();
+            removed(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void remove(@NonNull TileKey key) {
+        Tile<T> tile = tiles.remove(key);
+        if (tile != null) {
+            removed(key, tile);
+        }
+    }
+
+    private void removed(@NonNull TileKey key, @NonNull Tile<T> tile) {
+        bytes -= tile.bytes();
+        int gridTileCount = gridTileCounts.get(key.tileCount) - 1;
+        if (gridTileCount == 0) {
+            gridTileCounts.remove(key.tileCount);
+        } else {
+            gridTileCounts.put(key.tileCount, gridTileCount);
+        }
+    }
+
+    private void clear() {
+        tiles.clear();
+        gridTileCounts.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The grid of equally sized tiles that clustering groups items by, with the same number of rows
+ * and columns over the whole world.
+ * <p>
+ * A tile contains its north and west edges but not its south and east edges, except where they
+ * are the edge of the world. This way every point belongs to exactly one tile, and the row and
+ * column of a point computed by {@link #row(double)} and {@link #column(double)} always agree
+ * with {@link #contains(double, double, double, double, double, double)} on the tile bounds.
+ */
+class TileGrid {
+
+    // Zoom levels of passes while the camera moves are snapped down to this fraction of a level,
+    // so that a pinch zoom goes through a few grids whose tiles and clusters can be reused rather
+    // than a new grid per camera move.
+    static final int ZOOM_STEPS_PER_LEVEL = 4;
+
+    final long tileCount;
+    final double stepLatitude;
+    final double stepLongitude;
+
+    TileGrid(long tileCount) {
+        Preconditions.checkArgument(tileCount > 0);
+        this.tileCount = tileCount;
+        this.stepLatitude = (QuadTree.ROOT_NORTH - QuadTree.ROOT_SOUTH) / tileCount;
+        this.stepLongitude = (QuadTree.ROOT_EAST - QuadTree.ROOT_WEST) / tileCount;
+    }
+
+    /**
+     * Returns the grid that clustering uses at the given zoom level, with twice as many tiles
+     * across as the map has at that zoom level, snapped down to a quarter level if requested.
+     */
+    @NonNull
+    static TileGrid forZoom(float zoomLevel, boolean snapped) {
+        double gridZoomLevel = snapped
+                ? Math.floor(zoomLevel * ZOOM_STEPS_PER_LEVEL) / ZOOM_STEPS_PER_LEVEL : zoomLevel;
+        return new TileGrid(Math.max((long) (Math.pow(2, gridZoomLevel) * 2), 1));
+    }
+
+    /**
+     * Returns whether the tile with the given bounds contains the point.
+     */
+    static boolean contains(double north, double west, double south, double east,
+                            double latitude, double longitude) {
+        return latitude <= north && (latitude > south || south <= QuadTree.ROOT_SOUTH)
+                && longitude >= west && (longitude < east || east >= QuadTree.ROOT_EAST);
+    }
+
+    double north(long row) {
+        return row >= tileCount ? QuadTree.ROOT_SOUTH : QuadTree.ROOT_NORTH - row * stepLatitude;
+    }
+
+    double south(long row) {
+        return north(row + 1);
+    }
+
+    double west(long column) {
+        return column >= tileCount ? QuadTree.ROOT_EAST : QuadTree.ROOT_WEST + column * stepLongitude;
+    }
+
+    double east(long column) {
+        return west(column + 1);
+    }
+
+    /**
+     * Returns the row of the tile that contains the given latitude.
+     */
+    long row(double latitude) {
+        long row = clamp((long) ((QuadTree.ROOT_NORTH - latitude) / stepLatitude));
+        // The division may be off by one next to an edge, so settle it with the tile bounds.
+        while (row > 0 && latitude > north(row)) {
+            row--;
+        }
+        while (row < tileCount - 1 && latitude <= south(row)) {
+            row++;
+        }
+        return row;
+    }
+
+    /**
+     * Returns the column of the tile that contains the given longitude.
+     */
+    long column(double longitude) {
+        long column = clamp((long) ((longitude - QuadTree.ROOT_WEST) / stepLongitude));
+        while (column > 0 && longitude < west(column)) {
+            column--;
+        }
+        while (column < tileCount - 1 && longitude >= east(column)) {
+            column++;
+        }
+        return column;
+    }
+
+    /**
+     * Returns the first row of the tiles covering a region whose north edge is the given
+     * latitude.
+     */
+    long startRow(double latitude) {
+        return clamp((long) ((QuadTree.ROOT_NORTH - latitude) / stepLatitude));
+    }
+
+    /**
+     * Returns the last row of the tiles covering a region whose south edge is the given
+     * latitude, with one more row to spare.
+     */
+    long endRow(double latitude) {
+        return clamp((long) ((QuadTree.ROOT_NORTH - latitude) / stepLatitude) + 1);
+    }
+
+    /**
+     * Returns the first column of the tiles covering a region whose west edge is the given
+     * longitude.
+     */
+    long startColumn(double longitude) {
+        return clamp((long) ((longitude - QuadTree.ROOT_WEST) / stepLongitude));
+    }
+
+    /**
+     * Returns the last column of the tiles covering a region whose east edge is the given
+     * longitude, with one more column to spare.
+     */
+    long endColumn(double longitude) {
+        return clamp((long) ((longitude - QuadTree.ROOT_WEST) / stepLongitude) + 1);
+    }
+
+    /**
+     * Returns the given row or column limited to the grid.
+     */
+    long clamp(long cell) {
+        return Math.max(0, Math.min(cell, tileCount - 1));
+    }
+}
@@ -0,0 +1,112 @@
+package com.huawei.clustering;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.huawei.hms.maps.HuaweiMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+public class ClusterManagerTest {
+
+    private static final class Item implements ClusterItem {
+
+        private final double latitude;
+        private final double longitude;
+
+        Item(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Nullable
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+
+    private QueueExecutor mBackground;
+    private QueueExecutor mMainThread;
+    private ClusterManager<Item> mClusterManager;
+
+    @Before
+    public void setUp() {
+        mBackground = new QueueExecutor();
+        mMainThread = new QueueExecutor();
+        mClusterManager = new ClusterManager<>(mock(Context.class, RETURNS_DEEP_STUBS),
+                mock(HuaweiMap.class, RETURNS_DEEP_STUBS), ClusterScheduler.create(mBackground, mMainThread));
+    }
+
+    @Test
+    public void coalescesChangesMadeBeforeTheBuildRuns() {
+        final List<Integer> appendedCounts = new ArrayList<>();
+        ClusterManager.OnItemsAppendedListener listener = new ClusterManager.OnItemsAppendedListener() {
+            @Override
+            public void onItemsAppended(int itemCount) {
+                appendedCounts.add(itemCount);
+            }
+        };
+        Item removed = new Item(1.0, 1.0);
+
+        mClusterManager.addItem(removed);
+        mClusterManager.appendItems(Arrays.asList(new Item(2.0, 2.0), new Item(3.0, 3.0)), listener);
+        mClusterManager.removeItem(removed);
+        mClusterManager.appendItems(Arrays.asList(new Item(4.0, 4.0)), listener);
+
+        assertEquals(1, mBackground.size());
+
+        mBackground.runNext();
+        mMainThread.runAll();
+
+        // Both appends were applied by the one build, which then requested a clustering pass.
+        assertEquals(Arrays.asList(2, 1), appendedCounts);
+        assertEquals(1, mBackground.size());
+    }
+
+    @Test
+    public void queuesAnotherBuildForChangesMadeAfterOneRan() {
+        mClusterManager.appendItems(Arrays.asList(new Item(1.0, 1.0)));
+        mBackground.runNext();
+
+        mClusterManager.appendItems(Arrays.asList(new Item(2.0, 2.0)));
+        mClusterManager.appendItems(Arrays.asList(new Item(3.0, 3.0)));
+
+        assertEquals(1, mBackground.size());
+    }
+
+    @Test
+    public void queuesNoBuildOnceReleased() {
+        mClusterManager.release();
+
+        mClusterManager.appendItems(Arrays.asList(new Item(1.0, 1.0)));
+
+        assertEquals(0, mBackground.size());
+    }
+}
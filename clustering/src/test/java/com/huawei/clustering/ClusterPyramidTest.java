@@ -0,0 +1,155 @@
+package com.huawei.clustering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the tiles visited in a {@link ClusterPyramid} against tiles summed up point by point.
+ */
+public class ClusterPyramidTest {
+
+    private static final int POINT_COUNT = 20_000;
+    private static final int QUERY_COUNT = 100;
+
+    private static final class Point implements QuadTreePoint {
+
+        private final double latitude;
+        private final double longitude;
+
+        Point(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    private static final class Tile {
+
+        int size;
+        double latitudeSum;
+        double longitudeSum;
+    }
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void visitedTilesMatchTheTilesOfThePoints() {
+        List<Point> points = createPoints();
+        QuadTree<Point> quadTree = new QuadTree<>(4, 24);
+        quadTree.build(points);
+        ClusterPyramid clusterPyramid = new ClusterPyramid(quadTree);
+
+        for (int zoom = 0; zoom <= ClusterPyramid.MAX_ZOOM; zoom++) {
+            TileGrid tileGrid = new TileGrid(1L << (zoom + 1));
+            assertSameTiles(expectedTiles(points, tileGrid, 90.0, -180.0, -90.0, 180.0),
+                    visitTiles(clusterPyramid, zoom, tileGrid, 90.0, -180.0, -90.0, 180.0));
+            for (int i = 0; i < QUERY_COUNT; i++) {
+                double latitude1 = -90.0 + mRandom.nextDouble() * 180.0;
+                double latitude2 = -90.0 + mRandom.nextDouble() * 180.0;
+                double longitude1 = -180.0 + mRandom.nextDouble() * 360.0;
+                double longitude2 = -180.0 + mRandom.nextDouble() * 360.0;
+                double north = Math.max(latitude1, latitude2);
+                double west = Math.min(longitude1, longitude2);
+                double south = Math.min(latitude1, latitude2);
+                double east = Math.max(longitude1, longitude2);
+                assertSameTiles(expectedTiles(points, tileGrid, north, west, south, east),
+                        visitTiles(clusterPyramid, zoom, tileGrid, north, west, south, east));
+            }
+        }
+    }
+
+    // Random points, some sharing their position and some on the edges of the world.
+    private List<Point> createPoints() {
+        List<Point> points = new ArrayList<>(POINT_COUNT);
+        for (int i = 0; i < POINT_COUNT; i++) {
+            if (i > 0 && mRandom.nextInt(10) == 0) {
+                points.add(new Point(points.get(i - 1).latitude, points.get(i - 1).longitude));
+            } else if (mRandom.nextInt(50) == 0) {
+                points.add(new Point(mRandom.nextBoolean() ? 90.0 : -90.0, mRandom.nextBoolean() ? 180.0 : -180.0));
+            } else if (mRandom.nextBoolean()) {
+                points.add(new Point(45.0 + mRandom.nextDouble() * 5.0, 5.0 + mRandom.nextDouble() * 5.0));
+            } else {
+                points.add(new Point(-90.0 + mRandom.nextDouble() * 180.0, -180.0 + mRandom.nextDouble() * 360.0));
+            }
+        }
+        return points;
+    }
+
+    // Sums up the points tile by tile, over the rows and columns the pyramid is documented to visit.
+    private static Map<Long, Tile> expectedTiles(List<Point> points, TileGrid tileGrid,
+                                                 double north, double west, double south, double east) {
+        long startRow = tileGrid.startRow(north);
+        long endRow = tileGrid.endRow(south);
+        long startColumn = tileGrid.startColumn(west);
+        long endColumn = tileGrid.endColumn(east);
+
+        Map<Long, Tile> tiles = new HashMap<>();
+        for (Point point : points) {
+            long row = tileGrid.row(point.latitude);
+            long column = tileGrid.column(point.longitude);
+            if (row < startRow || row > endRow || column < startColumn || column > endColumn) {
+                continue;
+            }
+            long key = row * tileGrid.tileCount + column;
+            Tile tile = tiles.get(key);
+            if (tile == null) {
+                tile = new Tile();
+                tiles.put(key, tile);
+            }
+            tile.size++;
+            tile.latitudeSum += point.latitude;
+            tile.longitudeSum += point.longitude;
+        }
+        return tiles;
+    }
+
+    private static Map<Long, Tile> visitTiles(ClusterPyramid clusterPyramid, int zoom, final TileGrid tileGrid,
+                                              double north, double west, double south, double east) {
+        final Map<Long, Tile> tiles = new HashMap<>();
+        clusterPyramid.visitTiles(zoom, north, west, south, east, new ClusterPyramid.TileVisitor() {
+            @Override
+            public void visitTile(double north, double west, double south, double east,
+                                  int size, double latitudeSum, double longitudeSum) {
+                long row = tileGrid.row((north + south) / 2);
+                long column = tileGrid.column((west + east) / 2);
+                Tile tile = new Tile();
+                tile.size = size;
+                tile.latitudeSum = latitudeSum;
+                tile.longitudeSum = longitudeSum;
+                assertNull(tiles.put(row * tileGrid.tileCount + column, tile));
+            }
+        });
+        return tiles;
+    }
+
+    private static void assertSameTiles(Map<Long, Tile> expected, Map<Long, Tile> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Long, Tile> entry : expected.entrySet()) {
+            Tile expectedTile = entry.getValue();
+            Tile actualTile = actual.get(entry.getKey());
+            assertNotNull(actualTile);
+            assertEquals(expectedTile.size, actualTile.size);
+            // The pyramid adds the points up in a different order.
+            assertEquals(expectedTile.latitudeSum, actualTile.latitudeSum, 1e-6 * expectedTile.size);
+            assertEquals(expectedTile.longitudeSum, actualTile.longitudeSum, 1e-6 * expectedTile.size);
+        }
+    }
+}
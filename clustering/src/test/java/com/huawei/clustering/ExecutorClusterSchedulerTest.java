@@ -0,0 +1,79 @@
+package com.huawei.clustering;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorClusterSchedulerTest {
+
+    @Test
+    public void releaseShutsDownTheOwnedExecutor() {
+        ExecutorService owned = Executors.newSingleThreadExecutor();
+        ClusterScheduler scheduler = new ExecutorClusterScheduler(owned, QueueExecutor.DIRECT, owned);
+
+        scheduler.release();
+
+        assertTrue(owned.isShutdown());
+    }
+
+    @Test
+    public void releaseLeavesTheExecutorsOfTheCallerRunning() {
+        ExecutorService background = Executors.newSingleThreadExecutor();
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+        try {
+            ClusterScheduler.create(background, mainThread).release();
+            ClusterScheduler.create(background, mainThread, forkJoinPool).release();
+
+            assertFalse(background.isShutdown());
+            assertFalse(mainThread.isShutdown());
+            assertFalse(forkJoinPool.isShutdown());
+        } finally {
+            background.shutdown();
+            mainThread.shutdown();
+            forkJoinPool.shutdown();
+        }
+    }
+
+    @Test
+    public void runsTasksOnTheGivenExecutors() {
+        QueueExecutor background = new QueueExecutor();
+        QueueExecutor mainThread = new QueueExecutor();
+        ClusterScheduler scheduler = ClusterScheduler.create(background, mainThread);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        scheduler.executeInBackground(task);
+        scheduler.executeOnMainThread(task);
+        scheduler.executeOnMainThread(task);
+
+        assertEquals(1, background.size());
+        assertEquals(2, mainThread.size());
+    }
+
+    @Test
+    public void sharesTheDefaultForkJoinPoolUnlessGivenOne() {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+        try {
+            ClusterScheduler first = ClusterScheduler.create(QueueExecutor.DIRECT, QueueExecutor.DIRECT);
+            ClusterScheduler second = ClusterScheduler.create(QueueExecutor.DIRECT, QueueExecutor.DIRECT);
+            ClusterScheduler given = ClusterScheduler.create(QueueExecutor.DIRECT, QueueExecutor.DIRECT,
+                    forkJoinPool);
+
+            assertSame(first.getForkJoinPool(), second.getForkJoinPool());
+            assertSame(forkJoinPool, given.getForkJoinPool());
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+}
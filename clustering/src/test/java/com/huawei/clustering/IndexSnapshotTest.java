@@ -0,0 +1,159 @@
+package com.huawei.clustering;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class IndexSnapshotTest {
+
+    private static final long DATA_VERSION = 7;
+    private static final int BUCKET_SIZE = 4;
+    private static final int MAX_DEPTH = 24;
+    private static final int LAYER_COUNT = 3;
+
+    // The header of the file and the counts at the start of the tree, before its first array.
+    private static final int FIRST_CHILD_OFFSET = 56 + 24;
+
+    private static final class Point implements QuadTreePoint {
+
+        private final double latitude;
+        private final double longitude;
+
+        Point(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("index", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readsTheTreeAndPyramidThatWereWritten() throws IOException {
+        List<Point> points = createPoints(20_000);
+        QuadTree<Point> quadTree = build(points);
+        ClusterPyramid clusterPyramid = new ClusterPyramid(quadTree);
+        IndexSnapshot.write(mFile, DATA_VERSION, points, quadTree, clusterPyramid);
+
+        IndexSnapshot<Point> indexSnapshot = IndexSnapshot.read(mFile, DATA_VERSION, points, BUCKET_SIZE,
+                MAX_DEPTH, LAYER_COUNT);
+
+        assertNotNull(indexSnapshot);
+        assertNotNull(indexSnapshot.clusterPyramid);
+        QuadTree<Point> read = indexSnapshot.quadTree;
+        assertEquals(quadTree.size(), read.size());
+        for (int point = 0; point < quadTree.size(); point++) {
+            assertEquals(quadTree.pointAt(point), read.pointAt(point));
+            assertEquals(quadTree.layerAt(point), read.layerAt(point));
+        }
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            List<Point> expected = new ArrayList<>();
+            quadTree.queryRange(layer, 50.0, 6.0, 46.0, 9.0, expected);
+            List<Point> actual = new ArrayList<>();
+            read.queryRange(layer, 50.0, 6.0, 46.0, 9.0, actual);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void ignoresFilesSavedForOtherItemsOrLimits() throws IOException {
+        List<Point> points = createPoints(1000);
+        IndexSnapshot.write(mFile, DATA_VERSION, points, build(points), null);
+
+        assertNull(IndexSnapshot.read(mFile, DATA_VERSION + 1, points, BUCKET_SIZE, MAX_DEPTH, LAYER_COUNT));
+        assertNull(IndexSnapshot.read(mFile, DATA_VERSION, points.subList(0, 999), BUCKET_SIZE, MAX_DEPTH,
+                LAYER_COUNT));
+        assertNull(IndexSnapshot.read(mFile, DATA_VERSION, points, BUCKET_SIZE + 1, MAX_DEPTH, LAYER_COUNT));
+        assertNull(IndexSnapshot.read(mFile, DATA_VERSION, points, BUCKET_SIZE, MAX_DEPTH, LAYER_COUNT - 1));
+        assertNull(IndexSnapshot.read(new File(mFile.getPath() + ".missing"), DATA_VERSION, points,
+                BUCKET_SIZE, MAX_DEPTH, LAYER_COUNT));
+    }
+
+    @Test
+    public void treesReadFromSmallFilesTakeInsertions() throws IOException {
+        for (int count = 0; count <= 2; count++) {
+            List<Point> points = createPoints(count);
+            IndexSnapshot.write(mFile, DATA_VERSION, points, build(points), null);
+            IndexSnapshot<Point> indexSnapshot = IndexSnapshot.read(mFile, DATA_VERSION, points, BUCKET_SIZE,
+                    MAX_DEPTH, LAYER_COUNT);
+            assertNotNull(indexSnapshot);
+
+            QuadTree<Point> quadTree = indexSnapshot.quadTree;
+            for (Point point : createPoints(100)) {
+                quadTree.insert(point, 1);
+            }
+            assertEquals(count + 100, quadTree.queryRange(90.0, -180.0, -90.0, 180.0).size());
+        }
+    }
+
+    @Test
+    public void rejectsADamagedTree() throws IOException {
+        List<Point> points = createPoints(1000);
+        IndexSnapshot.write(mFile, DATA_VERSION, points, build(points), null);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            // Points the root at children past the end of the nodes.
+            randomAccessFile.seek(FIRST_CHILD_OFFSET);
+            randomAccessFile.write(new byte[]{0x01, 0x10, 0x00, 0x00});
+        } finally {
+            randomAccessFile.close();
+        }
+
+        try {
+            IndexSnapshot.read(mFile, DATA_VERSION, points, BUCKET_SIZE, MAX_DEPTH, LAYER_COUNT);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // The links are checked as the tree is read.
+        }
+    }
+
+    private static List<Point> createPoints(int count) {
+        Random random = new Random(count);
+        List<Point> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            points.add(new Point(45.0 + random.nextDouble() * 7.0, 5.0 + random.nextDouble() * 7.0));
+        }
+        return points;
+    }
+
+    private static QuadTree<Point> build(List<Point> points) {
+        byte[] layers = new byte[points.size()];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = (byte) (i % LAYER_COUNT);
+        }
+        QuadTree<Point> quadTree = new QuadTree<>(BUCKET_SIZE, MAX_DEPTH, LAYER_COUNT);
+        quadTree.build(points, layers, null);
+        return quadTree;
+    }
+}
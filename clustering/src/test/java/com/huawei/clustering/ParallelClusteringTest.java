@@ -0,0 +1,141 @@
+package com.huawei.clustering;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.huawei.hms.maps.HuaweiMap;
+import com.huawei.hms.maps.model.LatLng;
+import com.huawei.hms.maps.model.LatLngBounds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Checks that clustering on several threads gives the same clusters, in the same order, as
+ * clustering on one.
+ */
+public class ParallelClusteringTest {
+
+    private static final int ITEM_COUNT = 50_000;
+    private static final LatLngBounds BOUNDS = new LatLngBounds(new LatLng(45.0, 5.0), new LatLng(50.0, 10.0));
+
+    private static final class Item implements ClusterItem {
+
+        private final double latitude;
+        private final double longitude;
+
+        Item(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Nullable
+        @Override
+        public String getTitle() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getSnippet() {
+            return null;
+        }
+    }
+
+    private final ForkJoinPool mForkJoinPool = new ForkJoinPool(4);
+    private QueueExecutor mBackground;
+    private ClusterManager<Item> mSequential;
+    private ClusterManager<Item> mParallel;
+
+    @Before
+    public void setUp() {
+        mBackground = new QueueExecutor();
+        ClusterScheduler scheduler = ClusterScheduler.create(mBackground, new QueueExecutor(), mForkJoinPool);
+        mSequential = createClusterManager(scheduler);
+        mParallel = createClusterManager(scheduler);
+        mParallel.setParallelism(4);
+
+        Random random = new Random(1);
+        List<Item> items = new ArrayList<>(ITEM_COUNT);
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            if (i > 0 && random.nextInt(10) == 0) {
+                items.add(new Item(items.get(i - 1).latitude, items.get(i - 1).longitude));
+            } else {
+                items.add(new Item(45.0 + random.nextDouble() * 5.0, 5.0 + random.nextDouble() * 5.0));
+            }
+        }
+        mSequential.addItems(items);
+        mParallel.addItems(items);
+        mBackground.runAll();
+    }
+
+    @After
+    public void tearDown() {
+        mForkJoinPool.shutdown();
+    }
+
+    @Test
+    public void tileGridGivesTheSameClustersOnSeveralThreads() {
+        assertSameClusters(ClusteringStrategy.TILE_GRID);
+    }
+
+    @Test
+    public void tileBinningGivesTheSameClustersOnSeveralThreads() {
+        assertSameClusters(ClusteringStrategy.TILE_BINNING);
+    }
+
+    private void assertSameClusters(ClusteringStrategy clusteringStrategy) {
+        mSequential.setClusteringStrategy(clusteringStrategy);
+        mParallel.setClusteringStrategy(clusteringStrategy);
+
+        for (float zoomLevel = 4.0f; zoomLevel <= 14.0f; zoomLevel += 1.5f) {
+            List<Cluster<Item>> expected = mSequential.getClusters(BOUNDS, zoomLevel);
+            List<Cluster<Item>> actual = mParallel.getClusters(BOUNDS, zoomLevel);
+
+            assertFalse(expected.isEmpty());
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Cluster<Item> expectedCluster = expected.get(i);
+                Cluster<Item> actualCluster = actual.get(i);
+                assertEquals(expectedCluster, actualCluster);
+                assertEquals(expectedCluster.getSize(), actualCluster.getSize());
+                assertEquals(expectedCluster.getLatitude(), actualCluster.getLatitude(), 0.0);
+                assertEquals(expectedCluster.getLongitude(), actualCluster.getLongitude(), 0.0);
+                if (expectedCluster.getSize() == 1) {
+                    assertSame(expectedCluster.getItems().get(0), actualCluster.getItems().get(0));
+                }
+            }
+        }
+    }
+
+    private static ClusterManager<Item> createClusterManager(ClusterScheduler scheduler) {
+        ClusterManager<Item> clusterManager = new ClusterManager<>(mock(Context.class, RETURNS_DEEP_STUBS),
+                mock(HuaweiMap.class, RETURNS_DEEP_STUBS), scheduler);
+        // Every tile is computed again at every zoom level.
+        clusterManager.setTileCacheSize(0);
+        return clusterManager;
+    }
+}
@@ -0,0 +1,128 @@
+package com.huawei.clustering;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that range queries allocate nothing once warmed up, with the visitor and with a list
+ * reused across queries, by the bytes the JVM counts as allocated by the test thread.
+ */
+public class QuadTreeAllocationTest {
+
+    private static final int POINT_COUNT = 100_000;
+    private static final int QUERY_COUNT = 1000;
+    // Some slack for the JVM, far below one byte per visited point.
+    private static final long MAX_ALLOCATED_BYTES = 4 * 1024;
+
+    private static final class Point implements QuadTreePoint {
+
+        private final double latitude;
+        private final double longitude;
+
+        Point(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    private static final class CountingVisitor implements QuadTree.PointVisitor {
+
+        int count;
+
+        @Override
+        public boolean visitPoint(int index, double latitude, double longitude) {
+            count++;
+            return true;
+        }
+    }
+
+    private com.sun.management.ThreadMXBean mThreadMXBean;
+    private QuadTree<Point> mQuadTree;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        mThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(mThreadMXBean.isThreadAllocatedMemorySupported());
+        mThreadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(1);
+        List<Point> points = new ArrayList<>(POINT_COUNT);
+        for (int i = 0; i < POINT_COUNT; i++) {
+            points.add(new Point(45.0 + random.nextDouble() * 10.0, 5.0 + random.nextDouble() * 10.0));
+        }
+        mQuadTree = new QuadTree<>(4, 24);
+        mQuadTree.build(points);
+    }
+
+    @Test
+    public void queryRangeWithVisitorAllocatesNothing() {
+        CountingVisitor visitor = new CountingVisitor();
+        queryWithVisitor(visitor);
+
+        visitor.count = 0;
+        long allocatedBytes = allocatedBytes();
+        queryWithVisitor(visitor);
+        allocatedBytes = allocatedBytes() - allocatedBytes;
+
+        assertTrue(visitor.count > QUERY_COUNT);
+        assertTrue("allocated " + allocatedBytes + " bytes", allocatedBytes < MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void queryRangeIntoReusedListAllocatesNothing() {
+        List<Point> pointsInRange = new ArrayList<>();
+        int count = queryIntoList(pointsInRange);
+
+        long allocatedBytes = allocatedBytes();
+        assertEquals(count, queryIntoList(pointsInRange));
+        allocatedBytes = allocatedBytes() - allocatedBytes;
+
+        assertTrue(count > QUERY_COUNT);
+        assertTrue("allocated " + allocatedBytes + " bytes", allocatedBytes < MAX_ALLOCATED_BYTES);
+    }
+
+    private void queryWithVisitor(CountingVisitor visitor) {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            double north = 50.0 + (i % 10) * 0.1;
+            double west = 8.0 + (i % 7) * 0.1;
+            mQuadTree.queryRange(north, west, north - 1.0, west + 1.0, visitor);
+        }
+    }
+
+    private int queryIntoList(List<Point> pointsInRange) {
+        int count = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            double north = 50.0 + (i % 10) * 0.1;
+            double west = 8.0 + (i % 7) * 0.1;
+            pointsInRange.clear();
+            mQuadTree.queryRange(north, west, north - 1.0, west + 1.0, pointsInRange);
+            count += pointsInRange.size();
+        }
+        return count;
+    }
+
+    private long allocatedBytes() {
+        return mThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
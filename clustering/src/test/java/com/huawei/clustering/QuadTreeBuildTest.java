@@ -0,0 +1,154 @@
+package com.huawei.clustering;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that building a tree on several threads lays it out exactly like building it on one,
+ * by comparing the arrays both trees write to a snapshot.
+ */
+public class QuadTreeBuildTest {
+
+    private static final int POINT_COUNT = 200_000;
+    private static final int LAYER_COUNT = 3;
+
+    private static final class Point implements QuadTreePoint {
+
+        private final double latitude;
+        private final double longitude;
+
+        Point(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    private final ForkJoinPool mForkJoinPool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        mForkJoinPool.shutdown();
+    }
+
+    @Test
+    public void parallelBuildLaysOutTheSameTreeAsSequentialBuild() {
+        List<Point> points = createPoints();
+
+        QuadTree<Point> sequential = new QuadTree<>(4, 24);
+        sequential.build(points, null);
+        QuadTree<Point> parallel = new QuadTree<>(4, 24);
+        parallel.build(points, mForkJoinPool);
+
+        assertArrayEquals(snapshot(sequential, points), snapshot(parallel, points));
+    }
+
+    @Test
+    public void parallelBuildLaysOutTheSameLayersAsSequentialBuild() {
+        List<Point> points = createPoints();
+        byte[] layers = new byte[points.size()];
+        Random random = new Random(2);
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = (byte) random.nextInt(LAYER_COUNT);
+        }
+
+        QuadTree<Point> sequential = new QuadTree<>(4, 24, LAYER_COUNT);
+        sequential.build(points, layers, null);
+        QuadTree<Point> parallel = new QuadTree<>(4, 24, LAYER_COUNT);
+        parallel.build(points, layers, mForkJoinPool);
+
+        assertArrayEquals(snapshot(sequential, points), snapshot(parallel, points));
+    }
+
+    @Test
+    public void parallelBuildOfPackedPointsKeepsTheSameOrder() {
+        List<Point> points = createPoints();
+        double[][] sequentialArrays = packedArrays(points);
+        double[][] parallelArrays = packedArrays(points);
+        long[] sequentialIds = ids(points.size());
+        long[] parallelIds = ids(points.size());
+        QuadTree.PointFactory<Point> pointFactory = new QuadTree.PointFactory<Point>() {
+            @Override
+            public Point createPoint(long id, double latitude, double longitude) {
+                return new Point(latitude, longitude);
+            }
+        };
+
+        QuadTree<Point> sequential = new QuadTree<>(4, 24);
+        sequential.build(sequentialArrays[0], sequentialArrays[1], sequentialIds, points.size(), pointFactory,
+                null);
+        QuadTree<Point> parallel = new QuadTree<>(4, 24);
+        parallel.build(parallelArrays[0], parallelArrays[1], parallelIds, points.size(), pointFactory,
+                mForkJoinPool);
+
+        assertEquals(sequential.size(), parallel.size());
+        for (int point = 0; point < sequential.size(); point++) {
+            assertEquals(sequential.idAt(point), parallel.idAt(point));
+            assertEquals(sequential.latitudeAt(point), parallel.latitudeAt(point), 0.0);
+            assertEquals(sequential.longitudeAt(point), parallel.longitudeAt(point), 0.0);
+        }
+    }
+
+    // Random points, with some sharing their position and some outside of the tree.
+    private static List<Point> createPoints() {
+        Random random = new Random(1);
+        List<Point> points = new ArrayList<>(POINT_COUNT);
+        for (int i = 0; i < POINT_COUNT; i++) {
+            if (i > 0 && random.nextInt(10) == 0) {
+                Point previous = points.get(i - 1);
+                points.add(new Point(previous.latitude, previous.longitude));
+            } else if (random.nextInt(1000) == 0) {
+                points.add(new Point(Double.NaN, 0.0));
+            } else {
+                points.add(new Point(45.0 + random.nextDouble() * 10.0, 5.0 + random.nextDouble() * 10.0));
+            }
+        }
+        return points;
+    }
+
+    private static double[][] packedArrays(List<Point> points) {
+        double[][] arrays = new double[2][points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            arrays[0][i] = points.get(i).latitude;
+            arrays[1][i] = points.get(i).longitude;
+        }
+        return arrays;
+    }
+
+    private static long[] ids(int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i;
+        }
+        return ids;
+    }
+
+    private static byte[] snapshot(QuadTree<Point> quadTree, List<Point> points) {
+        IdentityIntMap itemPositions = new IdentityIntMap(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            itemPositions.put(points.get(i), i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) quadTree.snapshotBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        quadTree.write(buffer, itemPositions);
+        return buffer.array();
+    }
+}
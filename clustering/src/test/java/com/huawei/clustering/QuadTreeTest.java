@@ -0,0 +1,183 @@
+package com.huawei.clustering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuadTreeTest {
+
+    private static final int POINT_COUNT = 20_000;
+    private static final int QUERY_COUNT = 500;
+
+    private static final class Point implements QuadTreePoint {
+
+        private final double latitude;
+        private final double longitude;
+
+        Point(double latitude, double longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void buildFindsTheSamePointsAsInsertion() {
+        List<Point> points = createPoints();
+        QuadTree<Point> built = new QuadTree<>(4, 24);
+        built.build(points);
+        QuadTree<Point> inserted = new QuadTree<>(4, 24);
+        for (Point point : points) {
+            inserted.insert(point);
+        }
+
+        assertEquals(inserted.size(), built.size());
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            double[] range = randomRange();
+            assertEquals(count(inserted.queryRange(range[0], range[1], range[2], range[3])),
+                    count(built.queryRange(range[0], range[1], range[2], range[3])));
+            assertEquals(countInside(points, range), aggregate(built, range));
+            assertEquals(countInside(points, range), aggregate(inserted, range));
+        }
+    }
+
+    @Test
+    public void removalKeepsQueriesAndReusesCollapsedNodes() {
+        List<Point> points = createPoints();
+        QuadTree<Point> quadTree = new QuadTree<>(4, 24);
+        for (Point point : points) {
+            quadTree.insert(point);
+        }
+        long snapshotBytes = quadTree.snapshotBytes();
+
+        List<Point> remaining = new ArrayList<>(points);
+        while (!remaining.isEmpty()) {
+            Point point = remaining.remove(mRandom.nextInt(remaining.size()));
+            quadTree.removeAt(quadTree.indexOf(point));
+            if (remaining.size() % 1000 == 0) {
+                assertEquals(remaining.size(), quadTree.size());
+                for (int i = 0; i < QUERY_COUNT / 10; i++) {
+                    double[] range = randomRange();
+                    assertEquals(count(filterInside(remaining, range)),
+                            count(quadTree.queryRange(range[0], range[1], range[2], range[3])));
+                    assertEquals(countInside(remaining, range), aggregate(quadTree, range));
+                }
+            }
+        }
+        assertEquals(0, aggregate(quadTree, new double[]{90.0, -180.0, -90.0, 180.0}));
+
+        // Removing every point collapsed the tree, and inserting them again takes the freed nodes.
+        for (Point point : points) {
+            quadTree.insert(point);
+        }
+        assertEquals(snapshotBytes, quadTree.snapshotBytes());
+    }
+
+    @Test
+    public void pointsAtTheSamePositionStopAtTheMaximumDepth() {
+        for (int maxDepth : new int[]{0, 8, QuadTree.KEY_DEPTH}) {
+            List<Point> points = new ArrayList<>();
+            for (int i = 0; i < 5000; i++) {
+                points.add(new Point(48.0, 8.0));
+            }
+            points.add(new Point(48.0, 8.000001));
+            points.add(new Point(-10.0, 100.0));
+
+            QuadTree<Point> built = new QuadTree<>(4, maxDepth);
+            built.build(points);
+            QuadTree<Point> inserted = new QuadTree<>(4, maxDepth);
+            for (Point point : points) {
+                inserted.insert(point);
+            }
+
+            double[] range = {48.5, 7.5, 47.5, 8.5};
+            assertEquals(points.size() - 1, built.queryRange(range[0], range[1], range[2], range[3]).size());
+            assertEquals(points.size() - 1, inserted.queryRange(range[0], range[1], range[2], range[3]).size());
+            assertEquals(points.size() - 1, aggregate(built, range));
+
+            // Removal walks the same path down to the bucket at the maximum depth.
+            for (int i = 0; i < points.size(); i += 2) {
+                built.removeAt(built.indexOf(points.get(i)));
+                inserted.removeAt(inserted.indexOf(points.get(i)));
+            }
+            assertEquals(points.size() / 2, built.size());
+            assertEquals(count(inserted.queryRange(range[0], range[1], range[2], range[3])),
+                    count(built.queryRange(range[0], range[1], range[2], range[3])));
+        }
+    }
+
+    // Random points, some sharing their position and some on the edges of the world.
+    private List<Point> createPoints() {
+        List<Point> points = new ArrayList<>(POINT_COUNT);
+        for (int i = 0; i < POINT_COUNT; i++) {
+            if (i > 0 && mRandom.nextInt(10) == 0) {
+                points.add(new Point(points.get(i - 1).latitude, points.get(i - 1).longitude));
+            } else if (mRandom.nextInt(50) == 0) {
+                points.add(new Point(mRandom.nextBoolean() ? 90.0 : -90.0, mRandom.nextBoolean() ? 180.0 : -180.0));
+            } else {
+                points.add(new Point(-90.0 + mRandom.nextDouble() * 180.0, -180.0 + mRandom.nextDouble() * 360.0));
+            }
+        }
+        return points;
+    }
+
+    // North, west, south and east of a random range, some reaching the edges of the world.
+    private double[] randomRange() {
+        double latitude1 = -90.0 + mRandom.nextDouble() * 180.0;
+        double latitude2 = -90.0 + mRandom.nextDouble() * 180.0;
+        double longitude1 = -180.0 + mRandom.nextDouble() * 360.0;
+        double longitude2 = -180.0 + mRandom.nextDouble() * 360.0;
+        return new double[]{
+                mRandom.nextInt(10) == 0 ? 90.0 : Math.max(latitude1, latitude2),
+                mRandom.nextInt(10) == 0 ? -180.0 : Math.min(longitude1, longitude2),
+                mRandom.nextInt(10) == 0 ? -90.0 : Math.min(latitude1, latitude2),
+                mRandom.nextInt(10) == 0 ? 180.0 : Math.max(longitude1, longitude2)};
+    }
+
+    // Counts how often every point occurs, so that lists in a different order compare equal.
+    private static Map<Point, Integer> count(List<Point> points) {
+        Map<Point, Integer> counts = new IdentityHashMap<>();
+        for (Point point : points) {
+            Integer count = counts.get(point);
+            counts.put(point, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    private static List<Point> filterInside(List<Point> points, double[] range) {
+        List<Point> pointsInside = new ArrayList<>();
+        for (Point point : points) {
+            if (TileGrid.contains(range[0], range[1], range[2], range[3], point.latitude, point.longitude)) {
+                pointsInside.add(point);
+            }
+        }
+        return pointsInside;
+    }
+
+    private static int countInside(List<Point> points, double[] range) {
+        return filterInside(points, range).size();
+    }
+
+    private static int aggregate(QuadTree<Point> quadTree, double[] range) {
+        QuadTreeAggregate aggregate = new QuadTreeAggregate();
+        quadTree.aggregateRange(range[0], range[1], range[2], range[3], aggregate);
+        return aggregate.size;
+    }
+}
@@ -0,0 +1,50 @@
+package com.huawei.clustering;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Queues tasks until the test runs them, on the test thread, and rejects tasks while told to.
+ */
+class QueueExecutor implements Executor {
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable task) {
+            task.run();
+        }
+    };
+
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRejecting;
+
+    @Override
+    public void execute(@NonNull Runnable task) {
+        if (mRejecting) {
+            throw new RejectedExecutionException();
+        }
+        mTasks.add(task);
+    }
+
+    void setRejecting(boolean rejecting) {
+        mRejecting = rejecting;
+    }
+
+    int size() {
+        return mTasks.size();
+    }
+
+    void runNext() {
+        mTasks.remove().run();
+    }
+
+    void runAll() {
+        while (!mTasks.isEmpty()) {
+            runNext();
+        }
+    }
+}
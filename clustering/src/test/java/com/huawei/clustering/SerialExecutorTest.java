@@ -0,0 +1,151 @@
+package com.huawei.clustering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void runsTasksOneAtATimeInOrderOnAPool() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            SerialExecutor executor = new SerialExecutor(ClusterScheduler.create(pool, QueueExecutor.DIRECT));
+            int taskCount = 1000;
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(taskCount);
+            for (int i = 0; i < taskCount; i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+                        order.add(index);
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(1, maxRunning.get());
+            for (int i = 0; i < taskCount; i++) {
+                assertEquals(i, (int) order.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void runsTasksAddedByTasksAfterThem() {
+        QueueExecutor background = new QueueExecutor();
+        final SerialExecutor executor = new SerialExecutor(ClusterScheduler.create(background, QueueExecutor.DIRECT));
+        final List<String> order = new ArrayList<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("first");
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add("added by first");
+                    }
+                });
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("second");
+            }
+        });
+
+        // Only the running task is handed to the scheduler.
+        assertEquals(1, background.size());
+        background.runAll();
+        assertEquals(3, order.size());
+        assertEquals("first", order.get(0));
+        assertEquals("second", order.get(1));
+        assertEquals("added by first", order.get(2));
+    }
+
+    @Test
+    public void acceptsTasksAgainAfterARejectedTask() {
+        QueueExecutor background = new QueueExecutor();
+        SerialExecutor executor = new SerialExecutor(ClusterScheduler.create(background, QueueExecutor.DIRECT));
+        final AtomicInteger runCount = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runCount.incrementAndGet();
+            }
+        };
+
+        background.setRejecting(true);
+        try {
+            executor.execute(task);
+            fail();
+        } catch (RejectedExecutionException expected) {
+            // Thrown to the caller.
+        }
+
+        background.setRejecting(false);
+        executor.execute(task);
+        background.runAll();
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void dropsQueuedTasksWhenTheNextOneIsRejected() {
+        QueueExecutor background = new QueueExecutor();
+        SerialExecutor executor = new SerialExecutor(ClusterScheduler.create(background, QueueExecutor.DIRECT));
+        final List<String> order = new ArrayList<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("first");
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("dropped");
+            }
+        });
+
+        background.setRejecting(true);
+        try {
+            background.runNext();
+            fail();
+        } catch (RejectedExecutionException expected) {
+            // Thrown once the first task is done and the second one cannot be scheduled.
+        }
+
+        background.setRejecting(false);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add("after");
+            }
+        });
+        background.runAll();
+        assertEquals(2, order.size());
+        assertEquals("first", order.get(0));
+        assertEquals("after", order.get(1));
+    }
+}
@@ -130,7 +130,7 @@ public class CustomIconGenerator<T extends ClusterItem> extends DefaultIconGener
     }
 
     private int getClusterIconBucket(@NonNull Cluster<T> cluster) {
-        int itemCount = cluster.getItems().size();
+        int itemCount = cluster.getSize();
         if (itemCount <= CLUSTER_ICON_BUCKETS[0]) {
             return itemCount;
         }
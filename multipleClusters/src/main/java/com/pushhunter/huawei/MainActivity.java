@@ -9,6 +9,7 @@ import androidx.fragment.app.FragmentActivity;
 
 import com.huawei.clustering.Cluster;
 import com.huawei.clustering.ClusterManager;
+import com.huawei.clustering.ClusterScheduler;
 import com.huawei.clustering.IconGenerator;
 import com.huawei.hms.maps.CameraUpdateFactory;
 import com.huawei.hms.maps.HuaweiMap;
@@ -41,6 +42,9 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
 
     private static final int[] CLUSTER_ICON_BUCKETS = {10, 20, 50, 100, 500, 1000, 5000, 10000, 20000, 50000, 100000};
 
+    private static final int LAYER_DEUTSCHLAND = 0;
+    private static final int LAYER_NETHERLANDS = 1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -61,36 +65,32 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
             }
         });
 
-        //Cluster Manager 1 & 2
-        final ClusterManager<MyItem> clusterManager = new ClusterManager<>(this, huaweiMap);
-        final ClusterManager<MyItem> clusterManager2 = new ClusterManager<>(this, huaweiMap);
+        //One Cluster Manager with a layer per country, sharing one index and one marker click listener
+        final ClusterManager<MyItem> clusterManager = new ClusterManager<>(this, huaweiMap,
+                ClusterScheduler.getDefault(), 2, new ClusterManager.LayerSelector<MyItem>() {
+                    @Override
+                    public int getLayer(@NonNull MyItem clusterItem) {
+                        return clusterItem.getLayer();
+                    }
+                });
 
         clusterManagers(clusterManager);
-        clusterManagers(clusterManager2);
 
-        huaweiMap.setOnCameraIdleListener(new HuaweiMap.OnCameraIdleListener() {
-            @Override
-            public void onCameraIdle() {
-                clusterManager.cluster();
-                clusterManager2.cluster();
-            }
-        });
+        huaweiMap.setOnCameraIdleListener(clusterManager);
 
-        //Cluster Items 1 by using addItems
+        //Cluster Items of both layers by using addItems
         List<MyItem> clusterItems = new ArrayList<>();
         for (int i = 0; i < 100000; i++) {
             clusterItems.add(new MyItem(
-                    RandomLocationGenerator.generate(DEUTSCHLAND)));
+                    RandomLocationGenerator.generate(DEUTSCHLAND), LAYER_DEUTSCHLAND));
         }
-        clusterManager.addItems(clusterItems);
-
-        //Cluster Items 2 by using addItem
         for (int i = 0; i < 100000; i++) {
-            clusterManager2.addItem(new MyItem(
-                    RandomLocationGenerator.generate(NETHERLANDS)));
+            clusterItems.add(new MyItem(
+                    RandomLocationGenerator.generate(NETHERLANDS), LAYER_NETHERLANDS));
         }
+        clusterManager.addItems(clusterItems);
 
-        clusterManager2.setIconGenerator(new IconGenerator<MyItem>() {
+        clusterManager.setIconGenerator(LAYER_NETHERLANDS, new IconGenerator<MyItem>() {
             @NonNull
             @Override
             public BitmapDescriptor getClusterIcon(@NonNull Cluster<MyItem> cluster) {
@@ -115,7 +115,7 @@ public class MainActivity extends FragmentActivity implements OnMapReadyCallback
     }
 
     private int getClusterIconBucket(@NonNull Cluster<MyItem> cluster) {
-        int itemCount = cluster.getItems().size();
+        int itemCount = cluster.getSize();
         if (itemCount <= CLUSTER_ICON_BUCKETS[0]) {
             return itemCount;
         }
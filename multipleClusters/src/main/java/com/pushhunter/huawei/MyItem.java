@@ -6,9 +6,15 @@ import com.huawei.clustering.ClusterItem;
 class MyItem implements ClusterItem {
 
     private final LatLng location;
+    private final int layer;
 
-    MyItem(LatLng location) {
+    MyItem(LatLng location, int layer) {
         this.location = location;
+        this.layer = layer;
+    }
+
+    int getLayer() {
+        return layer;
     }
 
     @Override